@@ -1,9 +1,18 @@
 package simpledb;
 import java.io.*;
-import java.util.LinkedHashMap;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +22,47 @@ import java.util.Map;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages dirtied by a transaction stay in the pool until it completes (NO
+ * STEAL), and are discarded if it aborts.  Nor are they written when it
+ * commits (NO FORCE): the log records of their changes are, and the
+ * committed images of the pages wait in the pool for the
+ * {@link PageWriter}, which writes them in the background in page number
+ * order, coalescing adjacent pages and the pages of transactions
+ * committing together into as few writes as it can.  A page is not
+ * evicted while it is dirty or its committed image waits; an eviction
+ * that finds no other page writes the waiting images itself.  The pool
+ * keeps the set of pages
+ * each transaction fetched with READ_WRITE permission, which are all the
+ * pages it may have dirtied, so committing or aborting a transaction
+ * costs in proportion to the pages it wrote, not to the size of the pool;
+ * its locked pages are likewise kept by the LockManager.
+ * <p>
+ * Pages in use are pinned: a page fetched by pinPage is not evicted until
+ * the matching unpinPage, however cold the replacement policy thinks it
+ * is.  HeapFile pins the page its iterators are reading and the pages it
+ * is modifying.
+ * <p>
+ * The page table is split into shards by PageId hash, each guarded by its
+ * own monitor and with its own ReplacementPolicy state, so getPage calls on
+ * pages of different shards don't wait for each other, and a miss doesn't
+ * hold up hits while it reads its page.  Only the number of pages is
+ * shared: when the pool is full, a page is evicted from the shard of the
+ * page being added, or from the next shard with a clean page.  Operations
+ * on the whole pool, like flushAllPages, visit the shards one at a time
+ * and never hold two shards' monitors at once.
+ * <p>
+ * In off-heap mode, HeapFile pages are read into frames of a FrameArena
+ * preallocated outside the Java heap, one frame per page of the pool, and
+ * are kept and updated there instead of in byte arrays and decoded tuples
+ * on the heap.  A page leaving the pool is moved back onto the heap (it
+ * may still be referenced) and its frame reused.  Off-heap mode is chosen
+ * by the constructor, or by the system property simpledb.BufferPool.offHeap,
+ * e.g. -Dsimpledb.BufferPool.offHeap=true.
+ *
+ * @see LockManager
+ * @see ReplacementPolicy
+ * @see PageWriter
  */
 public class BufferPool {
   /** Bytes per page, including header. */
@@ -23,39 +73,135 @@ public class BufferPool {
     constructor instead. */
   public static final int DEFAULT_PAGES = 50;
 
+  /** Largest number of shards the page table is split into by default. */
+  public static final int DEFAULT_SHARDS = 16;
+
   private int numPages;
 
-  private class BufferMap extends LinkedHashMap<PageId, Page> {
-      private int capacity;
-      public BufferMap(int capacity) {
-	  super();
-	  this.capacity = capacity;
-      }
-      @Override
-      protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
-	  if (size() > capacity) {
-	      try {
-		  evictPage(eldest.getKey());
-	      } catch (DbException e) {
-	      } catch (IOException e) {
-	      }
-	      return false;
-	  }
-	  return false;
-      }
-  }
+  private final Shard[] shards;
+  // pages in all shards, plus room reserved for pages about to be added
+  private final AtomicInteger size = new AtomicInteger();
+  private final LockManager locks = new LockManager();
+  // null unless off-heap
+  private final FrameArena arena;
+  // pages each transaction fetched READ_WRITE; see writeSet
+  private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets =
+    new ConcurrentHashMap<TransactionId, Set<PageId>>();
+  // writes committed pages out; see writeCommitted
+  private final PageWriter writer;
+  // committed pages not yet written, in all shards
+  private final AtomicInteger pendingWrites = new AtomicInteger();
+  private final AtomicLong evictionStalls = new AtomicLong();
+  private final AtomicLong evictionStallNanos = new AtomicLong();
 
-  private BufferMap pool;
+  /**
+   * One partition of the page table: the pages whose ids hash to it and
+   * their replacement state, guarded by the shard's monitor.
+   */
+  private static class Shard {
+    final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+    final ReplacementPolicy policy;
+    // pin counts of the pinned pages
+    final HashMap<PageId, Integer> pins = new HashMap<PageId, Integer>();
+    final ReplacementPolicy.Evictable evictable =
+      new ReplacementPolicy.Evictable() {
+	public boolean canEvict(PageId pid) {
+	  return pages.get(pid).isDirty() == null && !pins.containsKey(pid)
+	    && !unwritten.containsKey(pid) && !writing.containsKey(pid);
+	}
+      };
+    long hits;
+    long misses;
+    // committed pages waiting for the PageWriter, with their committed
+    // images, and those being written; a page in either stays in the pool.
+    // Threads waiting for a page to leave writing wait on the monitor
+    final HashMap<PageId, PageWriter.Pending> unwritten =
+      new HashMap<PageId, PageWriter.Pending>();
+    final HashMap<PageId, PageWriter.Pending> writing =
+      new HashMap<PageId, PageWriter.Pending>();
+    // number of page writes and discards so far; lets prefetchPage detect
+    // that a page it read may have been written out, or rewritten on disk
+    // by a rollback or recovery, which discard it, while the read was in
+    // progress
+    long writes;
+
+    Shard(ReplacementPolicy policy) {
+      this.policy = policy;
+    }
+
+    void pin(PageId pid) {
+      Integer n = pins.get(pid);
+      pins.put(pid, n == null ? 1 : n + 1);
+    }
+  }
 
   /**
-   * Creates a BufferPool that caches up to numPages pages.
+   * Creates a BufferPool that caches up to numPages pages, with the
+   * replacement policy given by ReplacementPolicy.defaultKind().
    *
    * @param numPages maximum number of pages in this buffer pool.
    */
   public BufferPool(int numPages) {
+    this(numPages, ReplacementPolicy.defaultKind());
+  }
+
+  /**
+   * Creates a BufferPool that caches up to numPages pages.  The page table
+   * is split into as many shards as leave at least 8 pages per shard, so
+   * each shard's policy has some pages to choose among, up to
+   * DEFAULT_SHARDS.
+   *
+   * @param numPages maximum number of pages in this buffer pool.
+   * @param kind the replacement policy to evict pages by
+   */
+  public BufferPool(int numPages, ReplacementPolicy.Kind kind) {
+    this(numPages, kind, defaultShards(numPages));
+  }
+
+  /**
+   * Creates a BufferPool that caches up to numPages pages in a page table
+   * of numShards shards.
+   *
+   * @param numPages maximum number of pages in this buffer pool.
+   * @param kind the replacement policy to evict pages by
+   * @param numShards number of shards to split the page table into
+   */
+  public BufferPool(int numPages, ReplacementPolicy.Kind kind, int numShards) {
+    this(numPages, kind, numShards,
+	Boolean.getBoolean("simpledb.BufferPool.offHeap"));
+  }
+
+  /**
+   * Creates a BufferPool that caches up to numPages pages in a page table
+   * of numShards shards, keeping them off the Java heap if offHeap.
+   *
+   * @param numPages maximum number of pages in this buffer pool.
+   * @param kind the replacement policy to evict pages by
+   * @param numShards number of shards to split the page table into
+   * @param offHeap whether to keep pages in preallocated off-heap frames
+   */
+  public BufferPool(int numPages, ReplacementPolicy.Kind kind, int numShards,
+      boolean offHeap) {
     // some code goes here
+    if (numShards < 1) {
+      throw new IllegalArgumentException("a BufferPool needs a shard");
+    }
     this.numPages = numPages;
-    pool = new BufferMap(numPages);
+    shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new Shard(ReplacementPolicy.create(kind,
+	  Math.max(1, numPages / numShards)));
+    }
+    arena = offHeap ? new FrameArena(numPages) : null;
+    writer = new PageWriter(this);
+  }
+
+  /**
+   * Returns the number of shards a pool of numPages pages is split into by
+   * default.
+   */
+  static int defaultShards(int numPages) {
+    return Math.max(1, Math.min(DEFAULT_SHARDS, numPages / 8));
   }
 
   /**
@@ -69,33 +215,344 @@ public class BufferPool {
    * space in the buffer pool, an page should be evicted and the new page
    * should be added in its place.
    *
-   * @param tid the ID of the transaction requesting the page
+   * @param tid the ID of the transaction requesting the page, or null to
+   *     read the page without locking it
    * @param pid the ID of the requested page
    * @param perm the requested permissions on the page
+   * @throws TransactionAbortedException if the transaction gave up waiting
+   *     for the lock
+   * @throws DbException if the page is not in the pool and every page in
+   *     the pool is dirty or pinned
    */
   public Page getPage(TransactionId tid, PageId pid, Permissions perm)
     throws TransactionAbortedException, DbException {
     // some code goes here
-    if (holdsLock(tid, pid)) {
-      throw (new TransactionAbortedException());
+    return getPage(tid, pid, perm, false);
+  }
+
+  /**
+   * Retrieves the specified page like getPage, and pins it: the page stays
+   * in the pool until unpinPage has been called as many times as pinPage.
+   *
+   * @see #getPage(TransactionId, PageId, Permissions)
+   */
+  public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+    throws TransactionAbortedException, DbException {
+    return getPage(tid, pid, perm, true);
+  }
+
+  /**
+   * Releases one pin on the specified page.
+   *
+   * @throws IllegalStateException if the page is not pinned
+   */
+  public void unpinPage(PageId pid) {
+    Shard s = shards[shardIndex(pid)];
+    synchronized (s) {
+      Integer n = s.pins.get(pid);
+      if (n == null) {
+	throw new IllegalStateException("page " + pid + " is not pinned");
+      }
+      if (n == 1) {
+	s.pins.remove(pid);
+      } else {
+	s.pins.put(pid, n - 1);
+      }
     }
-    if (pool.containsKey(pid)) {
-      // page is already in pool - return it
-      return pool.get(pid);
-    } else {
-      // page is not in pool. get it from the catalog
-      Catalog c = Database.getCatalog();
-      Iterator<Integer> tableIdIter = c.tableIdIterator();
-      while (tableIdIter.hasNext()) {
-	  int tableId = tableIdIter.next();
-	  if (tableId == pid.getTableId()) {
-	      Page page = c.getDbFile(tableId).readPage(pid);
-	      pool.put(pid, page);
-	      return page;
-	  }
+  }
+
+  /** Returns the number of pins on the specified page. */
+  public int pinCount(PageId pid) {
+    Shard s = shards[shardIndex(pid)];
+    synchronized (s) {
+      Integer n = s.pins.get(pid);
+      return n == null ? 0 : n;
+    }
+  }
+
+  /** Retrieves a page, and pins it if pin is true. */
+  private Page getPage(TransactionId tid, PageId pid, Permissions perm,
+      boolean pin) throws TransactionAbortedException, DbException {
+    // lock first, and never while holding a shard's monitor: the wait may
+    // be long, and the lock keeps the page from changing under the read
+    if (tid != null) {
+      locks.acquire(tid, pid, perm);
+      if (perm == Permissions.READ_WRITE) {
+	writeSet(tid).add(pid);
+      }
+    }
+    int i = shardIndex(pid);
+    Shard s = shards[i];
+    synchronized (s) {
+      Page cached = s.pages.get(pid);
+      if (cached != null) {
+	// page is already in pool - return it
+	s.hits++;
+	s.policy.accessed(pid);
+	if (pin) {
+	  s.pin(pid);
+	}
+	return cached;
+      }
+      s.misses++;
+    }
+    // page is not in pool.  Read it without holding the shard's monitor, so
+    // hits and the read-ahead thread aren't held up by the I/O
+    Page page = read(pid);
+    return cache(i, pid, page, pin);
+  }
+
+  /**
+   * Reads the specified page from disk, into a frame if this pool is
+   * off-heap and the page's file can keep pages in frames.
+   */
+  private Page read(PageId pid) throws DbException {
+    DbFile file = findFile(pid);
+    if (arena != null && file instanceof HeapFile) {
+      // null if every frame is taken by concurrent misses; read onto the
+      // heap then
+      ByteBuffer frame = arena.allocate();
+      if (frame != null) {
+	Page page;
+	try {
+	  page = ((HeapFile) file).readPage(pid, frame);
+	} catch (IOException e) {
+	  arena.release(frame);
+	  throw new DbException("Could not read page " + pid + ": " + e);
+	}
+	if (page != null) {
+	  return page;
+	}
+	arena.release(frame);
       }
+    }
+    return file.readPage(pid);
+  }
+
+  /**
+   * Releases the frame of a page that left the pool, or was never added.
+   */
+  private void drop(Page page) {
+    if (arena != null && page instanceof HeapPage) {
+      ByteBuffer frame = ((HeapPage) page).leaveFrame();
+      if (frame != null) {
+	arena.release(frame);
+      }
+    }
+  }
+
+  /**
+   * Returns the DbFile holding the specified page.
+   */
+  private DbFile findFile(PageId pid) throws DbException {
+    DbFile file = Database.getCatalog().findDbFile(pid.getTableId());
+    if (file == null) {
       throw (new DbException("Page not found in catalog"));
     }
+    return file;
+  }
+
+  /** Returns the index of the shard holding the specified page. */
+  int shardIndex(PageId pid) {
+    return (pid.hashCode() & 0x7fffffff) % shards.length;
+  }
+
+  /**
+   * Adds a page just read from disk to shard i, unless another thread
+   * cached the same page meanwhile, and returns the cached page, pinned if
+   * pin is true.
+   */
+  private Page cache(int i, PageId pid, Page page, boolean pin)
+    throws DbException {
+    Shard s = shards[i];
+    try {
+      reserve(i);
+    } catch (DbException e) {
+      drop(page);
+      throw e;
+    }
+    Page cached;
+    synchronized (s) {
+      if (pin) {
+	s.pin(pid);
+      }
+      cached = s.pages.get(pid);
+      if (cached == null) {
+	s.pages.put(pid, page);
+	s.policy.added(pid);
+	return page;
+      }
+      s.policy.accessed(pid);
+    }
+    size.decrementAndGet();
+    drop(page);
+    return cached;
+  }
+
+  /**
+   * Reserves room for a page to be added to shard i, evicting a page if the
+   * pool is full.
+   *
+   * @throws DbException if the pool is full and every page in it is dirty
+   *     or pinned
+   */
+  private void reserve(int i) throws DbException {
+    while (true) {
+      int n = size.get();
+      if (n < numPages) {
+	if (size.compareAndSet(n, n + 1)) {
+	  return;
+	}
+      } else {
+	evictPage(i);
+      }
+    }
+  }
+
+  /** Return true if the specified page is in the buffer pool. */
+  public boolean isCached(PageId pid) {
+    Shard s = shards[shardIndex(pid)];
+    synchronized (s) {
+      return s.pages.containsKey(pid);
+    }
+  }
+
+  /**
+   * Returns the lock manager of this buffer pool, e.g. to read its deadlock
+   * counters.
+   */
+  public LockManager getLockManager() {
+    return locks;
+  }
+
+  /**
+   * Returns the number of getPage calls that found their page in the pool,
+   * including pages put there by prefetchPage.
+   */
+  public long getHits() {
+    long hits = 0;
+    for (Shard s : shards) {
+      synchronized (s) {
+	hits += s.hits;
+      }
+    }
+    return hits;
+  }
+
+  /** Returns the number of getPage calls that had to read their page. */
+  public long getMisses() {
+    long misses = 0;
+    for (Shard s : shards) {
+      synchronized (s) {
+	misses += s.misses;
+      }
+    }
+    return misses;
+  }
+
+  /** Returns true if this pool keeps pages in off-heap frames. */
+  public boolean isOffHeap() {
+    return arena != null;
+  }
+
+  /** Returns the number of off-heap frames holding a page. */
+  public int framesInUse() {
+    return arena == null ? 0 : arena.framesInUse();
+  }
+
+  /** Returns the number of shards the page table is split into. */
+  public int numShards() {
+    return shards.length;
+  }
+
+  /** Returns the maximum number of pages in this buffer pool. */
+  public int capacity() {
+    return numPages;
+  }
+
+  /**
+   * Reads the specified page into the buffer pool if it is not already
+   * there.  No lock is acquired, since the page is not handed to any
+   * transaction; a transaction that later asks for it through getPage
+   * still acquires its lock there.  Used by ReadAhead.
+   *
+   * @see ReadAhead
+   */
+  public void prefetchPage(PageId pid) throws DbException {
+    prefetch(pid, false);
+  }
+
+  /**
+   * Reads a page that was hot when the pool's contents were saved back
+   * into the pool, like prefetchPage, telling the replacement policy it is
+   * hot rather than just read.
+   *
+   * @see WarmStart
+   */
+  void restorePage(PageId pid) throws DbException {
+    prefetch(pid, true);
+  }
+
+  /**
+   * Returns the ids of the pages in the pool, hottest first as judged by
+   * the replacement policy.  The shards' pages are interleaved, hottest of
+   * each shard first.
+   */
+  public List<PageId> hotPages() {
+    ArrayList<List<PageId>> perShard = new ArrayList<List<PageId>>(shards.length);
+    int n = 0;
+    for (Shard s : shards) {
+      ArrayList<PageId> pids = new ArrayList<PageId>();
+      synchronized (s) {
+	s.policy.hottestFirst(pids);
+      }
+      perShard.add(pids);
+      n += pids.size();
+    }
+    ArrayList<PageId> hot = new ArrayList<PageId>(n);
+    for (int rank = 0; hot.size() < n; rank++) {
+      for (List<PageId> pids : perShard) {
+	if (rank < pids.size()) {
+	  hot.add(pids.get(rank));
+	}
+      }
+    }
+    return hot;
+  }
+
+  private void prefetch(PageId pid, boolean restore) throws DbException {
+    int i = shardIndex(pid);
+    Shard s = shards[i];
+    long writesBefore;
+    synchronized (s) {
+      if (s.pages.containsKey(pid)) {
+	return;
+      }
+      writesBefore = s.writes;
+    }
+    Page page = read(pid);
+    try {
+      reserve(i);
+    } catch (DbException e) {
+      // no clean page to make room for it
+      drop(page);
+      return;
+    }
+    synchronized (s) {
+      // a page written meanwhile may have been evicted after the write, in
+      // which case this read could be older than the disk; just drop it
+      if (s.writes == writesBefore && !s.pages.containsKey(pid)) {
+	s.pages.put(pid, page);
+	if (restore) {
+	  s.policy.restored(pid);
+	} else {
+	  s.policy.added(pid);
+	}
+	return;
+      }
+    }
+    size.decrementAndGet();
+    drop(page);
   }
 
   /**
@@ -110,6 +567,7 @@ public class BufferPool {
   public  void releasePage(TransactionId tid, PageId pid) {
     // some code goes here
     // not necessary for proj1
+    locks.release(tid, pid);
   }
 
   /**
@@ -120,13 +578,14 @@ public class BufferPool {
   public void transactionComplete(TransactionId tid) throws IOException {
     // some code goes here
     // not necessary for proj1
+    transactionComplete(tid, true);
   }
 
   /** Return true if the specified transaction has a lock on the specified page */
   public boolean holdsLock(TransactionId tid, PageId p) {
     // some code goes here
     // not necessary for proj1
-    return false;
+    return tid != null && locks.holdsLock(tid, p);
   }
 
   /**
@@ -140,6 +599,102 @@ public class BufferPool {
     throws IOException {
     // some code goes here
   // not necessary for proj1
+    if (commit) {
+      flushPages(tid);
+    } else {
+      rollback(tid);
+    }
+    writeSets.remove(tid);
+    locks.releaseAll(tid);
+  }
+
+  /**
+   * Returns the set of pages the specified transaction fetched with
+   * READ_WRITE permission, creating it if this is the first.
+   */
+  private Set<PageId> writeSet(TransactionId tid) {
+    Set<PageId> pids = writeSets.get(tid);
+    if (pids == null) {
+      Set<PageId> created = Collections.synchronizedSet(new HashSet<PageId>());
+      pids = writeSets.putIfAbsent(tid, created);
+      if (pids == null) {
+	pids = created;
+      }
+    }
+    return pids;
+  }
+
+  /**
+   * Returns the pages of the specified transaction's write set that it
+   * has dirtied and that are still in the pool.
+   */
+  private ArrayList<Page> dirtiedBy(TransactionId tid) {
+    return writeSetPages(tid, true);
+  }
+
+  /**
+   * Returns the pages of the specified transaction's write set that are
+   * still in the pool, or only those it has dirtied if dirtiedOnly.
+   */
+  private ArrayList<Page> writeSetPages(TransactionId tid, boolean dirtiedOnly) {
+    ArrayList<Page> dirtied = new ArrayList<Page>();
+    Set<PageId> pids = writeSets.get(tid);
+    if (pids == null) {
+      return dirtied;
+    }
+    PageId[] candidates;
+    synchronized (pids) {
+      candidates = pids.toArray(new PageId[pids.size()]);
+    }
+    for (PageId pid : candidates) {
+      Shard s = shards[shardIndex(pid)];
+      synchronized (s) {
+	Page p = s.pages.get(pid);
+	if (p != null && (!dirtiedOnly || isDirtiedBy(p, tid))) {
+	  dirtied.add(p);
+	}
+      }
+    }
+    return dirtied;
+  }
+
+  private static boolean isDirtiedBy(Page p, TransactionId tid) {
+    TransactionId dirtier = p.isDirty();
+    return dirtier != null && dirtier.equals(tid);
+  }
+
+  /**
+   * Undoes the changes of the specified transaction by replacing each page
+   * it dirtied with the page's before image, or discarding it from the
+   * pool, to be read again from disk, if it has none.
+   */
+  private void rollback(TransactionId tid) {
+    for (Page p : dirtiedBy(tid)) {
+      PageId pid = p.getId();
+      Shard s = shards[shardIndex(pid)];
+      Page before = p.getBeforeImage();
+      synchronized (s) {
+	if (s.pages.get(pid) != p) {
+	  // discarded meanwhile
+	  continue;
+	}
+	if (before != null) {
+	  s.pages.put(pid, before);
+	} else {
+	  s.pages.remove(pid);
+	  s.policy.removed(pid);
+	  size.decrementAndGet();
+	}
+	drop(p);
+      }
+      if (before != null) {
+	DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+	if (file instanceof HeapFile) {
+	  // the aborted changes may have filled or emptied the page
+	  ((HeapFile) file).noteFreeSpace(before);
+	}
+      }
+    }
   }
 
   /**
@@ -202,10 +757,14 @@ public class BufferPool {
   public synchronized void flushAllPages() throws IOException {
     // some code goes here
     // not necessary for proj1
-    for (PageId pid : pool.keySet()) {
-	if (pool.get(pid).isDirty() != null) {
-	    flushPage(pid);
+    for (Shard s : shards) {
+      synchronized (s) {
+	// flushPage may wait for the PageWriter, releasing the monitor
+	PageId[] pids = s.pages.keySet().toArray(new PageId[s.pages.size()]);
+	for (PageId pid : pids) {
+	  flushPage(s, pid);
 	}
+      }
     }
   }
 
@@ -214,48 +773,384 @@ public class BufferPool {
     buffer pool doesn't keep a rolled back page in its
     cache.
    */
-  public synchronized void discardPage(PageId pid) {
+  public void discardPage(PageId pid) {
     // some code goes here
     // not necessary for proj1
-      pool.remove(pid);
+    Shard s = shards[shardIndex(pid)];
+    synchronized (s) {
+      awaitWriting(s, pid);
+      // whoever discards the page may have rewritten it on disk, even if
+      // it wasn't in the pool: a prefetch that read it before then must
+      // not add it
+      s.writes++;
+      // a committed image waiting for the PageWriter is written first:
+      // discarding it would lose the commit until recovery
+      PageWriter.Pending u = s.unwritten.remove(pid);
+      if (u != null) {
+	try {
+	  writePending(s, u);
+	} catch (IOException e) {
+	  throw new RuntimeException(e);
+	}
+      }
+      Page p = s.pages.remove(pid);
+      if (p != null) {
+	s.policy.removed(pid);
+	size.decrementAndGet();
+	drop(p);
+      }
+    }
   }
 
   /**
    * Flushes a certain page to disk
    * @param pid an ID indicating the page to flush
    */
-  private synchronized  void flushPage(PageId pid) throws IOException {
+  private void flushPage(PageId pid) throws IOException {
     // some code goes here
     // not necessary for proj1
     if (pid == null) {
 	  return;
     }
-    Catalog c = Database.getCatalog();
-    DbFile db = c.getDbFile(pid.getTableId());
-    Page p = pool.get(pid);
-    p.markDirty(false, null);
-    db.writePage(pool.get(pid));
+    Shard s = shards[shardIndex(pid)];
+    synchronized (s) {
+      flushPage(s, pid);
+    }
+  }
+
+  /**
+   * Writes page pid of shard s to disk if it is dirty, or if it is
+   * committed and waiting for the PageWriter.  The caller holds the
+   * shard's monitor.
+   */
+  private void flushPage(Shard s, PageId pid) throws IOException {
+    awaitWriting(s, pid);
+    Page p = s.pages.get(pid);
+    PageWriter.Pending u = s.unwritten.get(pid);
+    if (p != null && p.isDirty() != null) {
+      DbFile db = Database.getCatalog().getDbFile(pid.getTableId());
+      List<Page> pages = Collections.singletonList(p);
+      long[] lsns = logUpdates(p.isDirty(), pages);
+      if (lsns != null) {
+	Database.getLogFile().force(lsns[0]);
+      }
+      p.markDirty(false, null);
+      s.writes++;
+      db.writePage(p);
+      noteWritten(pages, lsns);
+      if (u != null) {
+	// the page holds the committed image's changes too
+	s.unwritten.remove(pid);
+	pendingWrites.decrementAndGet();
+	written(u, null);
+      }
+    } else if (u != null) {
+      s.unwritten.remove(pid);
+      writePending(s, u);
+    }
+    // clean pages otherwise match what is on disk; rewriting them costs a
+    // write, and for a CompressedHeapFile a recompression and a new frame
+  }
+
+  /**
+   * Writes the committed image of u, taken out of the shard's unwritten
+   * pages, after forcing the log up to its records.  The caller holds the
+   * shard's monitor.
+   */
+  private void writePending(Shard s, PageWriter.Pending u) throws IOException {
+    boolean done = false;
+    try {
+      if (u.log != null) {
+	u.log.force(u.lastLsn);
+      }
+      s.writes++;
+      u.file.writePage(u.image);
+      done = true;
+    } finally {
+      if (done) {
+	pendingWrites.decrementAndGet();
+	written(u, null);
+      } else {
+	s.unwritten.put(u.pid, u);
+      }
+    }
   }
 
-  /** Write all pages of the specified transaction to disk.
+  /**
+   * Records in the log that the committed image of u has been written;
+   * newer is the page's next committed image, still waiting, if any.
    */
-  public synchronized  void flushPages(TransactionId tid) throws IOException {
+  private static void written(PageWriter.Pending u, PageWriter.Pending newer) {
+    if (u.log != null) {
+      u.log.pageWritten(u.pid, u.recLsn, newer == null ? -1 : newer.recLsn);
+    }
+  }
+
+  /**
+   * Waits until the PageWriter has finished writing page pid of shard s,
+   * or every page of the shard if pid is null.  The caller holds the
+   * shard's monitor.
+   */
+  private static void awaitWriting(Shard s, PageId pid) {
+    while (pid == null ? !s.writing.isEmpty() : s.writing.containsKey(pid)) {
+      try {
+	s.wait();
+      } catch (InterruptedException e) {
+	// the write finishes regardless, and is short
+      }
+    }
+  }
+
+  /**
+   * Appends an UPDATE record for each of the specified pages, dirtied by
+   * tid, to the log.  The caller forces the log before any of the pages
+   * reaches the disk.  Transactions that did not write a BEGIN record,
+   * such as those of tests driving the BufferPool directly, are not
+   * logged.
+   *
+   * @return the LSNs of the records, or null if nothing was logged
+   */
+  private static long[] logUpdates(TransactionId tid, List<Page> pages)
+    throws IOException {
+    LogFile log = Database.getLogFile();
+    if (pages.isEmpty() || tid == null || !log.isActive(tid)) {
+      return null;
+    }
+    long[] lsns = new long[pages.size()];
+    for (int i = 0; i < lsns.length; i++) {
+      Page p = pages.get(i);
+      lsns[i] = log.logWrite(tid, p.getBeforeImage(), p);
+    }
+    return lsns;
+  }
+
+  /**
+   * Adds the specified pages, just written after the log records with
+   * LSNs lsns, to the log's dirty page table, which keeps the records in
+   * the log until the pages are forced to disk (see LogFile.syncPages).
+   */
+  private static void noteWritten(List<Page> pages, long[] lsns) {
+    if (lsns == null) {
+      return;
+    }
+    LogFile log = Database.getLogFile();
+    for (int i = 0; i < lsns.length; i++) {
+      log.pageWritten(pages.get(i).getId(), lsns[i]);
+    }
+  }
+
+  /** Commit all pages of the specified transaction: log UPDATE records
+   * of the pages it dirtied (see logUpdates) and hand their committed
+   * images to the PageWriter, which writes them after the caller has
+   * forced the log, e.g. with the transaction's COMMIT record.
+   */
+  public void flushPages(TransactionId tid) throws IOException {
     // some code goes here
     // not necessary for proj1
-    for (PageId pid : pool.keySet()) {
-	flushPage(pid);
+    ArrayList<Page> pages = writeSetPages(tid, false);
+    ArrayList<Page> dirtied = new ArrayList<Page>();
+    for (Page p : pages) {
+      if (isDirtiedBy(p, tid)) {
+	dirtied.add(p);
+      } else {
+	// committed too, e.g. written and cleaned by flushAllPages
+	p.setBeforeImage();
+      }
+    }
+    long[] lsns = logUpdates(tid, dirtied);
+    LogFile log = lsns == null ? null : Database.getLogFile();
+    // the pages' contents are now committed, so they become the before
+    // images a later abort restores, and later changes are logged
+    // against.  The pages turn clean, but stay in the pool until the
+    // PageWriter has written the images: a page evicted and read back
+    // before then would miss the commit
+    for (int i = 0; i < dirtied.size(); i++) {
+      Page p = dirtied.get(i);
+      PageId pid = p.getId();
+      p.setBeforeImage();
+      PageWriter.Pending u = new PageWriter.Pending(
+	Database.getCatalog().getDbFile(pid.getTableId()),
+	p.getBeforeImage(), log, lsns == null ? -1 : lsns[i]);
+      Shard s = shards[shardIndex(pid)];
+      synchronized (s) {
+	p.markDirty(false, null);
+	s.writes++;
+	PageWriter.Pending old = s.unwritten.put(pid, u);
+	if (old == null) {
+	  pendingWrites.incrementAndGet();
+	} else if (old.log == log) {
+	  // the older image's changes are not on disk either
+	  u.recLsn = Math.min(u.recLsn, old.recLsn);
+	}
+	if (log != null) {
+	  log.pageCommitted(pid, u.recLsn);
+	}
+      }
+    }
+    writer.committed(pendingWrites.get());
+  }
+
+  /**
+   * Writes out the committed pages waiting for the PageWriter, and waits
+   * for those it is writing, so that every committed change is in its
+   * table file, if not yet forced to disk.  Checkpoints call this before
+   * forcing the table files, so that their changes leave the log.
+   */
+  public void writeCommittedPages() throws IOException {
+    writeCommitted(true);
+  }
+
+  /**
+   * Writes a round of the committed pages waiting in the pool: forces the
+   * log up to their records, then has the PageWriter write those not
+   * being written already.  Pages that fail to be written stay waiting.
+   * If wait, also waits for rounds other threads are writing.
+   */
+  void writeCommitted(boolean wait) throws IOException {
+    // force the log holding no shard's monitor: a rollback holding the
+    // log's monitor may be waiting for one
+    IdentityHashMap<LogFile, Long> lastLsns = new IdentityHashMap<LogFile, Long>();
+    for (Shard s : shards) {
+      synchronized (s) {
+	for (PageWriter.Pending u : s.unwritten.values()) {
+	  Long last = lastLsns.get(u.log);
+	  if (u.log != null && (last == null || last < u.lastLsn)) {
+	    lastLsns.put(u.log, u.lastLsn);
+	  }
+	}
+      }
+    }
+    for (Map.Entry<LogFile, Long> e : lastLsns.entrySet()) {
+      e.getKey().force(e.getValue());
+    }
+
+    ArrayList<PageWriter.Pending> round = new ArrayList<PageWriter.Pending>();
+    for (Shard s : shards) {
+      synchronized (s) {
+	Iterator<PageWriter.Pending> it = s.unwritten.values().iterator();
+	while (it.hasNext()) {
+	  PageWriter.Pending u = it.next();
+	  // pages committed since the force wait for the next round
+	  if (!s.writing.containsKey(u.pid)
+	      && (u.log == null || u.log.getDurableLsn() > u.lastLsn)) {
+	    it.remove();
+	    s.writing.put(u.pid, u);
+	    round.add(u);
+	  }
+	}
+      }
+    }
+    try {
+      if (!round.isEmpty()) {
+	writer.write(round);
+      }
+    } finally {
+      for (PageWriter.Pending u : round) {
+	Shard s = shards[shardIndex(u.pid)];
+	synchronized (s) {
+	  s.writing.remove(u.pid);
+	  PageWriter.Pending newer = s.unwritten.get(u.pid);
+	  if (u.written) {
+	    s.writes++;
+	    pendingWrites.decrementAndGet();
+	    written(u, newer);
+	  } else if (newer != null) {
+	    // newer holds u's changes too
+	    pendingWrites.decrementAndGet();
+	    if (newer.log == u.log) {
+	      newer.recLsn = Math.min(newer.recLsn, u.recLsn);
+	    }
+	  } else {
+	    s.unwritten.put(u.pid, u);
+	  }
+	  s.notifyAll();
+	}
+      }
     }
+    if (wait) {
+      for (Shard s : shards) {
+	synchronized (s) {
+	  awaitWriting(s, null);
+	}
+      }
+    }
+  }
+
+  /** Returns the PageWriter writing this pool's committed pages. */
+  public PageWriter getPageWriter() {
+    return writer;
+  }
+
+  /** Returns the number of committed pages waiting to be written. */
+  public int pendingWrites() {
+    return pendingWrites.get();
+  }
+
+  /**
+   * Returns the number of evictions that found no page to evict and
+   * wrote committed pages on the evicting thread, an eviction stall.
+   */
+  public long getEvictionStalls() {
+    return evictionStalls.get();
+  }
+
+  /** Returns the time spent in eviction stalls so far, in nanoseconds. */
+  public long getEvictionStallNanos() {
+    return evictionStallNanos.get();
   }
 
   /**
-   * Discards a page from the buffer pool.
-   * Flushes the page to disk to ensure dirty pages are updated on disk.
+   * Discards a page from the buffer pool to make room for one being added
+   * to shard first.  Only clean, unpinned pages are evicted, so that no
+   * uncommitted change reaches the disk and no page in use is dropped,
+   * and only once any committed image of theirs is written; which one is
+   * up to the replacement policy of shard first, or of the next shard
+   * that has such a page.  If there is none, the committed pages waiting
+   * for the PageWriter are written here, and the eviction retried.
+   *
+   * @throws DbException if every page in the pool is dirty or pinned
    */ 
-    private synchronized  void evictPage(PageId pid) throws DbException, IOException {
+    private void evictPage(int first) throws DbException {
     // some code goes here
     // not necessary for proj1
-    flushPage(pid);
-    pool.remove(pid);
+    if (evictClean(first)) {
+      return;
+    }
+    if (pendingWrites.get() > 0) {
+      long start = System.nanoTime();
+      try {
+	writeCommitted(true);
+      } catch (IOException e) {
+	throw new DbException("Could not write committed pages: " + e);
+      } finally {
+	evictionStalls.incrementAndGet();
+	evictionStallNanos.addAndGet(System.nanoTime() - start);
+      }
+      if (evictClean(first)) {
+	return;
+      }
+    }
+    throw (new DbException("All pages in the buffer pool are dirty or pinned"));
   }
 
+  /**
+   * Evicts an evictable page of shard first, or of the next shard that
+   * has one; returns false if no shard has.
+   */
+  private boolean evictClean(int first) {
+    for (int i = 0; i < shards.length; i++) {
+      Shard s = shards[(first + i) % shards.length];
+      synchronized (s) {
+	PageId pid = s.policy.evict(s.evictable);
+	if (pid != null) {
+	  drop(s.pages.remove(pid));
+	  size.decrementAndGet();
+	  return true;
+	}
+      }
+    }
+    return false;
+  }
+
+
 }
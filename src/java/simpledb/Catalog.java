@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -18,6 +19,9 @@ public class Catalog {
 
   private HashMap<String, Table> tables;
   private HashMap<Integer, String> idToName;
+  // table id -> file; looked up by the BufferPool on every miss, possibly
+  // from the read-ahead thread, so it must be safe to read concurrently
+  private ConcurrentHashMap<Integer, DbFile> files;
 
   /**
    * Constructor.
@@ -26,6 +30,7 @@ public class Catalog {
   public Catalog() {
     tables = new HashMap<String, Table>();
     idToName = new HashMap<Integer, String>();
+    files = new ConcurrentHashMap<Integer, DbFile>();
     // some code goes here
   }
 
@@ -47,13 +52,23 @@ public class Catalog {
     if (idToName.containsValue(name)) {
       int id = getTableId(name);
       idToName.remove(id);
+      files.remove(id);
+      closeReplaced(tables.get(name), file);
     }
     if (idToName.containsKey(file.getId())) {
       String n = idToName.get(file.getId());
-      tables.remove(n);
+      closeReplaced(tables.remove(n), file);
     }
     tables.put(name, new Table(file, pkeyField));
     idToName.put(file.getId(), name);
+    files.put(file.getId(), file);
+  }
+
+  /** Close the file of a table that is being dropped from the catalog. */
+  private void closeReplaced(Table old, DbFile replacement) {
+    if (old != null && old.getFile() != replacement) {
+      old.getFile().close();
+    }
   }
 
   public void addTable(DbFile file, String name) {
@@ -118,6 +133,18 @@ public class Catalog {
     }
   }
 
+  /**
+   * Returns the DbFile of the specified table, or null if the table doesn't
+   * exist.  This is a single hash lookup that is safe to call concurrently
+   * with addTable, so the BufferPool uses it to find the file of each page
+   * it reads.
+   * @param tableid The id of the table, as specified by the DbFile.getId()
+   *     function passed to addTable
+   */
+  public DbFile findDbFile(int tableid) {
+    return files.get(tableid);
+  }
+
   public String getPrimaryKey(int tableid) {
     // some code goes here
     String name = idToName.get(tableid);
@@ -135,14 +162,40 @@ public class Catalog {
     return idToName.get(id);
   }
 
-  /** Delete all tables from the catalog */
+  /** Delete all tables from the catalog, closing their files */
   public void clear() {
+    for (Table t : tables.values()) {
+      t.getFile().close();
+    }
     idToName.clear();
     tables.clear();
+    files.clear();
   }
 
   /**
    * Reads the schema from a file and creates the appropriate tables in the database.
+   * Each line has the form
+   * <pre>
+   *     name (field type [pk], field type, ...) [option ...]
+   * </pre>
+   * where the optional trailing storage options are:
+   * <ul>
+   * <li> <code>mmap</code> -- access the table's HeapFile through memory
+   *      mappings (see {@link HeapFile#HeapFile(File, TupleDesc, boolean)})
+   * <li> <code>slotted</code> -- store the table as a SlottedHeapFile, with
+   *      variable-length records (see {@link SlottedHeapPage})
+   * <li> <code>pax</code> -- store the table as a PaxHeapFile, with each
+   *      page laid out column by column (see {@link PaxHeapPage})
+   * <li> <code>compressed</code> -- store the table as a CompressedHeapFile,
+   *      with pages compressed on disk (see {@link PageCodec})
+   * </ul>
+   * At most one of <code>slotted</code>, <code>pax</code> and
+   * <code>compressed</code> may be given, and <code>compressed</code> cannot
+   * be combined with <code>mmap</code>.
+   * <p>
+   * If warm start is on, the pages listed in the catalog file's sidecar
+   * are then read back into the BufferPool in the background (see
+   * {@link WarmStart}).
    * @param catalogFile
    */
   public void loadSchema(String catalogFile) {
@@ -180,13 +233,51 @@ public class Catalog {
             }
           }
         }
+        boolean mapped = false;
+        boolean slotted = false;
+        boolean pax = false;
+        boolean compressed = false;
+        String options = line.substring(line.indexOf(")") + 1).trim();
+        if (options.length() > 0) {
+          for (String opt : options.split("\\s+")) {
+            if (opt.toLowerCase().equals("mmap"))
+              mapped = true;
+            else if (opt.toLowerCase().equals("slotted"))
+              slotted = true;
+            else if (opt.toLowerCase().equals("pax"))
+              pax = true;
+            else if (opt.toLowerCase().equals("compressed"))
+              compressed = true;
+            else {
+              System.out.println("Unknown storage option " + opt);
+              System.exit(0);
+            }
+          }
+        }
+        if ((slotted ? 1 : 0) + (pax ? 1 : 0) + (compressed ? 1 : 0) > 1
+            || compressed && mapped) {
+          System.out.println("Conflicting storage options " + options);
+          System.exit(0);
+        }
         Type[] typeAr = types.toArray(new Type[0]);
         String[] namesAr = names.toArray(new String[0]);
         TupleDesc t = new TupleDesc(typeAr, namesAr);
-	HeapFile tabHf = new HeapFile(new File(baseFolder, name + ".dat"), t);
+        File tabFile = new File(baseFolder, name + ".dat");
+	HeapFile tabHf;
+	if (slotted)
+	  tabHf = new SlottedHeapFile(tabFile, t, mapped);
+	else if (pax)
+	  tabHf = new PaxHeapFile(tabFile, t, mapped);
+	else if (compressed)
+	  tabHf = new CompressedHeapFile(tabFile, t);
+	else
+	  tabHf = new HeapFile(tabFile, t, mapped);
         addTable(tabHf,name,primaryKey);
         System.out.println("Added table : " + name + " with schema " + t);
       }
+      if (WarmStart.isEnabled()) {
+        WarmStart.start(WarmStart.sidecarOf(catalogFile));
+      }
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(0);
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * Checkpointer is the background writer of a LogFile.  Every tick it
+ * forces the table files written since the last tick to disk
+ * ({@link LogFile#syncPages}), so that committed pages trickle out to
+ * disk a few at a time and the log's dirty page table stays short, and
+ * once the checkpoint interval has passed, or the log has grown by the
+ * checkpoint volume, since the last checkpoint, it takes a fuzzy
+ * checkpoint ({@link LogFile#logCheckpoint}).  Neither holds up queries
+ * or commits: files are forced without holding any BufferPool or LogFile
+ * lock, and a checkpoint holds the LogFile's monitor only to append its
+ * record and drop the log before its redo offset.
+ * <p>
+ * The writer is never interrupted, as an interrupt closes the FileChannel
+ * it may be forcing; it waits for the next tick on its own monitor.  It
+ * stops when stopped, or at the first tick after the Database has moved
+ * on to another log.
+ *
+ * @see LogFile#setCheckpointPolicy
+ */
+class Checkpointer {
+
+  /** Longest time between two ticks, in milliseconds. */
+  static final long TICK_MILLIS = 100;
+
+  private final LogFile log;
+  private final long intervalNanos;
+  private final long logBytes;
+  private final long startLsn;
+  private final long tickMillis;
+  private final Thread thread;
+  // guarded by this
+  private boolean running = true;
+
+  /**
+   * Creates a writer that checkpoints log every intervalMillis
+   * milliseconds and every logBytes bytes of log appended after LSN lsn,
+   * where 0 turns either trigger off.  lsn is read by the caller, as the
+   * thread may only start running once records have been appended.
+   */
+  Checkpointer(LogFile log, long intervalMillis, long logBytes, long lsn) {
+    this.log = log;
+    this.intervalNanos = intervalMillis * 1000000L;
+    this.logBytes = logBytes;
+    this.startLsn = lsn;
+    this.tickMillis = intervalMillis > 0 ? Math.min(intervalMillis, TICK_MILLIS) : TICK_MILLIS;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "simpledb-checkpointer");
+    thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /** Stops the writer and waits for it to finish its tick. */
+  void stop() {
+    synchronized (this) {
+      running = false;
+      notifyAll();
+    }
+    if (Thread.currentThread() == thread) {
+      return;
+    }
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Waits for the next tick; returns false if stopped meanwhile. */
+  private synchronized boolean awaitTick() {
+    long end = System.currentTimeMillis() + tickMillis;
+    long left = tickMillis;
+    while (running && left > 0) {
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        // only stop() ends the wait early
+      }
+      left = end - System.currentTimeMillis();
+    }
+    return running;
+  }
+
+  private void writeLoop() {
+    long lastCheckpoint = System.nanoTime();
+    long lastLsn = startLsn;
+    while (awaitTick() && Database.getLogFile() == log) {
+      try {
+        long lsn = log.getCurrentLsn();
+        if ((intervalNanos > 0 && System.nanoTime() - lastCheckpoint >= intervalNanos)
+            || (logBytes > 0 && lsn - lastLsn >= logBytes)) {
+          log.logCheckpoint();
+          lastCheckpoint = System.nanoTime();
+          lastLsn = lsn;
+        } else {
+          log.syncPages();
+        }
+      } catch (IOException e) {
+        // e.g. a table file closed meanwhile; try again next tick
+        e.printStackTrace();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
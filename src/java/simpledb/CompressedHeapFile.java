@@ -0,0 +1,257 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * CompressedHeapFile is a HeapFile that keeps its pages compressed on
+ * disk.  Pages are ordinary HeapPages in the BufferPool; writePage
+ * compresses a page image with a PageCodec and readPage decompresses it.
+ * It is meant for cold tables that are scanned far more often than they
+ * are updated: string fields, which HeapPage pads out to Type.STRING_LEN
+ * bytes, and empty slots mostly disappear, so scans read a fraction of
+ * the bytes.
+ * <p>
+ * Because compressed pages vary in size, the file is a sequence of frames
+ * <pre>
+ *     int pageNo | byte codec | int length | length bytes of compressed page
+ * </pre>
+ * and writing a page appends a new frame for it.  The last frame for a
+ * page number is the current one.  The frame index is rebuilt by reading
+ * the frame headers when the file is first accessed after being opened,
+ * and a torn frame at the end of the file, left by a crash during a
+ * write, is ignored.  Superseded frames are reclaimed by {@link #compact}.
+ *
+ * @see PageCodec
+ */
+public class CompressedHeapFile extends HeapFile {
+
+  // bytes in a frame header
+  static final int FRAME_HEADER = 9;
+
+  private final PageCodec codec;
+
+  // frame index, rebuilt after open: the compressed bytes of page i's
+  // current frame start at frameOffsets[i]
+  private transient long[] frameOffsets;
+  private transient int[] frameLengths;
+  private transient byte[] frameCodecs;
+  private transient int numPages;
+  // offset at which the next frame is appended
+  private transient long fileEnd;
+
+  /**
+   * Constructs a compressed heap file backed by the specified file, which
+   * compresses pages with PageCodec.COLUMN.
+   *
+   * @param f
+   *            the file that stores the on-disk backing store for this
+   *            heap file.
+   */
+  public CompressedHeapFile(File f, TupleDesc td) {
+    this(f, td, PageCodec.COLUMN);
+  }
+
+  /**
+   * Constructs a compressed heap file backed by the specified file.
+   *
+   * @param codec the codec pages are compressed with when written; frames
+   *            already in the file are read with the codec they were
+   *            written with
+   */
+  public CompressedHeapFile(File f, TupleDesc td, PageCodec codec) {
+    super(f, td, false);
+    this.codec = codec;
+  }
+
+  /** Returns the codec pages are compressed with when written. */
+  public PageCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Builds the frame index from the frame headers on disk if the file was
+   * opened since it was last built.
+   */
+  private synchronized void loadIndex() throws IOException {
+    if (frameOffsets != null) {
+      return;
+    }
+    frameOffsets = new long[16];
+    frameLengths = new int[16];
+    frameCodecs = new byte[16];
+    numPages = 0;
+
+    FileChannel fc = getChannel();
+    long size = fc.size();
+    long off = 0;
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+    while (off + FRAME_HEADER <= size) {
+      header.clear();
+      while (header.hasRemaining()) {
+        if (fc.read(header, off + header.position()) < 0) {
+          break;
+        }
+      }
+      int pageNo = header.getInt(0);
+      byte c = header.get(4);
+      int len = header.getInt(5);
+      if (pageNo < 0 || c < 0 || c >= PageCodec.values().length || len <= 0
+          || off + FRAME_HEADER + len > size) {
+        // torn or garbage tail; no codec produces an empty page, so this
+        // also stops at zeroes left by a file extended but not written
+        break;
+      }
+      setFrame(pageNo, off + FRAME_HEADER, len, c);
+      off += FRAME_HEADER + len;
+    }
+    fileEnd = off;
+  }
+
+  private void setFrame(int pageNo, long offset, int len, byte c) {
+    if (pageNo >= frameOffsets.length) {
+      int n = Math.max(pageNo + 1, frameOffsets.length * 2);
+      long[] offs = new long[n];
+      int[] lens = new int[n];
+      byte[] codecs = new byte[n];
+      System.arraycopy(frameOffsets, 0, offs, 0, frameOffsets.length);
+      System.arraycopy(frameLengths, 0, lens, 0, frameLengths.length);
+      System.arraycopy(frameCodecs, 0, codecs, 0, frameCodecs.length);
+      frameOffsets = offs;
+      frameLengths = lens;
+      frameCodecs = codecs;
+    }
+    frameOffsets[pageNo] = offset;
+    frameLengths[pageNo] = len;
+    frameCodecs[pageNo] = c;
+    numPages = Math.max(numPages, pageNo + 1);
+  }
+
+  // see HeapFile.java for javadocs
+  protected void readPageBytes(int pageNo, ByteBuffer dst) throws IOException {
+    long offset;
+    int len;
+    PageCodec c;
+    synchronized (this) {
+      loadIndex();
+      if (pageNo >= numPages || frameOffsets[pageNo] == 0) {
+        // never written
+        return;
+      }
+      offset = frameOffsets[pageNo];
+      len = frameLengths[pageNo];
+      c = PageCodec.values()[frameCodecs[pageNo]];
+    }
+    byte[] compressed = new byte[len];
+    ByteBuffer buf = ByteBuffer.wrap(compressed);
+    FileChannel fc = getChannel();
+    while (buf.hasRemaining()) {
+      if (fc.read(buf, offset + buf.position()) < 0) {
+        throw new IOException("Truncated frame for page " + pageNo);
+      }
+    }
+    byte[] page = new byte[BufferPool.PAGE_SIZE];
+    c.decompress(compressed, len, page, getTupleDesc());
+    dst.put(page, 0, Math.min(dst.remaining(), page.length));
+  }
+
+  // see HeapFile.java for javadocs
+  protected boolean contiguousPages() {
+    // each write appends a new frame
+    return false;
+  }
+
+  // see HeapFile.java for javadocs
+  protected void writePageBytes(int pageNo, byte[] data) throws IOException {
+    byte[] compressed = codec.compress(data, getTupleDesc());
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + compressed.length);
+    frame.putInt(pageNo);
+    frame.put((byte) codec.ordinal());
+    frame.putInt(compressed.length);
+    frame.put(compressed);
+    frame.flip();
+
+    synchronized (this) {
+      loadIndex();
+      FileChannel fc = getChannel();
+      long offset = fileEnd;
+      while (frame.hasRemaining()) {
+        fc.write(frame, offset + frame.position());
+      }
+      fileEnd = offset + frame.limit();
+      setFrame(pageNo, offset + FRAME_HEADER, compressed.length, (byte) codec.ordinal());
+    }
+  }
+
+  /**
+   * Returns the number of pages in this CompressedHeapFile.
+   */
+  public int numPages() {
+    try {
+      synchronized (this) {
+        loadIndex();
+        return numPages;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the total size of the current frames, i.e. what the file's
+   * length would be after compact().
+   */
+  public synchronized long compressedBytes() throws IOException {
+    loadIndex();
+    long total = 0;
+    for (int i = 0; i < numPages; i++) {
+      total += FRAME_HEADER + frameLengths[i];
+    }
+    return total;
+  }
+
+  /**
+   * Rewrites the file with only the current frame of each page, reclaiming
+   * the space taken by superseded frames.  Pages are copied still
+   * compressed.
+   */
+  public synchronized void compact() throws IOException {
+    loadIndex();
+    File f = getFile();
+    File tmp = new File(f.getPath() + ".compact");
+    FileChannel fc = getChannel();
+    RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+    try {
+      out.setLength(0);
+      for (int i = 0; i < numPages; i++) {
+        if (frameOffsets[i] == 0) {
+          continue;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + frameLengths[i]);
+        long start = frameOffsets[i] - FRAME_HEADER;
+        while (frame.hasRemaining()) {
+          if (fc.read(frame, start + frame.position()) < 0) {
+            throw new IOException("Truncated frame for page " + i);
+          }
+        }
+        frame.flip();
+        out.getChannel().write(frame);
+      }
+    } finally {
+      out.close();
+    }
+    close();
+    if (!f.delete() || !tmp.renameTo(f)) {
+      throw new IOException("Could not replace " + f + " with " + tmp);
+    }
+  }
+
+  // see DbFile.java for javadocs
+  public synchronized void close() {
+    super.close();
+    frameOffsets = null;
+    frameLengths = null;
+    frameCodecs = null;
+  }
+}
@@ -50,10 +50,42 @@ public class Database {
         buffer pool and return it
     */
     public static BufferPool resetBufferPool(int pages) {
+        writeCommittedPages();
         _instance._bufferpool = new BufferPool(pages);
         return _instance._bufferpool;
     }
 
+    /** Method used for testing -- create a new instance of the
+        buffer pool with the given replacement policy and return it
+    */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind kind) {
+        writeCommittedPages();
+        _instance._bufferpool = new BufferPool(pages, kind);
+        return _instance._bufferpool;
+    }
+
+    /** Method used for testing -- create a new instance of the
+        buffer pool with the given replacement policy, keeping its
+        pages off the Java heap if offHeap, and return it
+    */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind kind,
+            boolean offHeap) {
+        writeCommittedPages();
+        _instance._bufferpool = new BufferPool(pages, kind,
+                BufferPool.defaultShards(pages), offHeap);
+        return _instance._bufferpool;
+    }
+
+    /** Writes out the committed pages the buffer pool being replaced
+        still holds, which would otherwise be lost with it. */
+    private static void writeCommittedPages() {
+        try {
+            _instance._bufferpool.writeCommittedPages();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
     	_instance = new Database();
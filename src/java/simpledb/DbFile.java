@@ -28,6 +28,13 @@ public interface DbFile extends Serializable {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Release any operating system resources (open files, mappings) held
+     * by this file.  Called by the Catalog when the table is removed or
+     * replaced.  A closed file may be reopened by a later page access.
+     */
+    public void close();
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
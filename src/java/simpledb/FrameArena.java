@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * FrameArena is the off-heap memory of a BufferPool in off-heap mode: a
+ * fixed number of page-sized frames carved out of direct ByteBuffers
+ * allocated up front, so that cached page images live outside the Java
+ * heap and are never copied or collected by the garbage collector.
+ * HeapPages read into a frame are kept there (see
+ * {@link HeapFile#readPage(PageId, ByteBuffer)}), and the frame goes back
+ * to the arena when the page leaves the pool.
+ */
+class FrameArena {
+  // frames per direct buffer; keeps each allocation well under 2 GB
+  private static final int FRAMES_PER_CHUNK = 16384;
+
+  private final int numFrames;
+  // frames not holding a page
+  private final ArrayList<ByteBuffer> free;
+
+  /**
+   * Allocates numFrames frames of BufferPool.PAGE_SIZE bytes.
+   */
+  FrameArena(int numFrames) {
+    this.numFrames = numFrames;
+    free = new ArrayList<ByteBuffer>(numFrames);
+    for (int start = 0; start < numFrames; start += FRAMES_PER_CHUNK) {
+      int n = Math.min(FRAMES_PER_CHUNK, numFrames - start);
+      ByteBuffer chunk = ByteBuffer.allocateDirect(n * BufferPool.PAGE_SIZE);
+      for (int i = 0; i < n; i++) {
+	chunk.limit((i + 1) * BufferPool.PAGE_SIZE);
+	chunk.position(i * BufferPool.PAGE_SIZE);
+	free.add(chunk.slice());
+      }
+    }
+  }
+
+  /**
+   * Returns a free frame, positioned at 0 with its limit at
+   * BufferPool.PAGE_SIZE, or null if every frame holds a page.
+   */
+  synchronized ByteBuffer allocate() {
+    if (free.isEmpty()) {
+      return null;
+    }
+    ByteBuffer frame = free.remove(free.size() - 1);
+    frame.clear();
+    return frame;
+  }
+
+  /** Returns a frame obtained from allocate() to the arena. */
+  synchronized void release(ByteBuffer frame) {
+    free.add(frame);
+  }
+
+  /** Returns the number of frames in this arena. */
+  int numFrames() {
+    return numFrames;
+  }
+
+  /** Returns the number of frames holding a page. */
+  synchronized int framesInUse() {
+    return numFrames - free.size();
+  }
+}
@@ -0,0 +1,33 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have at least one empty
+ * slot, so that inserts can go straight to a page with room instead of
+ * fetching every page of the file.
+ * <p>
+ * The map is a hint: it is rebuilt from the page headers on disk when the
+ * file is opened and kept up to date as pages are read, filled and emptied,
+ * but callers must still check the page they are directed to and report
+ * it full if it has no room.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    private final BitSet free = new BitSet();
+
+    /** Record whether the specified page has an empty slot. */
+    public synchronized void setFree(int pageNo, boolean hasRoom) {
+        free.set(pageNo, hasRoom);
+    }
+
+    /**
+     * Returns the first page at or after pageNo believed to have an empty
+     * slot, or -1 if there is none.
+     */
+    public synchronized int nextFree(int pageNo) {
+        return free.nextSetBit(pageNo);
+    }
+}
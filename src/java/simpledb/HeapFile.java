@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -15,8 +19,33 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+  /** Number of pages in each memory-mapped segment of a mapped HeapFile. */
+  public static final int MAPPED_SEGMENT_PAGES = 256;
+
+  /** Largest number of pages writePages writes with one write. */
+  public static final int MAX_WRITE_PAGES = 64;
+
   private File file;
   private TupleDesc td;
+  private final boolean mapped;
+
+  // opened lazily on first page access and kept until close(); all page
+  // I/O uses positional reads/writes so concurrent readers don't share a
+  // file pointer
+  private transient RandomAccessFile raf;
+  private transient FileChannel channel;
+  private transient boolean writable;
+
+  // mapped mode only: segment i covers pages [i*MAPPED_SEGMENT_PAGES,
+  // (i+1)*MAPPED_SEGMENT_PAGES).  Only segments lying entirely inside the
+  // file are mapped; pages in the trailing partial segment use the channel.
+  // Replaced under the monitor, never updated in place, and read without it
+  private transient volatile MappedByteBuffer[] segments;
+
+  // pages with empty slots; rebuilt from the page headers on first insert
+  // after the file is opened; set under the monitor, read without it by
+  // page reads
+  private transient volatile FreeSpaceMap freeSpace;
 
   /**
    * Constructs a heap file backed by the specified file.
@@ -26,9 +55,33 @@ public class HeapFile implements DbFile {
    *            file.
    */
   public HeapFile(File f, TupleDesc td) {
+    this(f, td, false);
+  }
+
+  /**
+   * Constructs a heap file backed by the specified file, optionally
+   * accessing it through memory mappings.
+   * <p>
+   * In mapped mode, readPage decodes pages directly out of the mapping,
+   * avoiding a read syscall and a byte[] copy per page.  writePage stores
+   * into the same mapping, so mapped readers always observe written pages.
+   * This mode suits large tables that are scanned much more often than
+   * they are updated.
+   *
+   * @param f the file that stores the on-disk backing store for this heap
+   *            file.
+   * @param mapped true to read and write pages through memory mappings
+   */
+  public HeapFile(File f, TupleDesc td, boolean mapped) {
     // some code goes here
     this.file = f;
     this.td = td;
+    this.mapped = mapped;
+  }
+
+  /** Returns true if this file reads its pages through memory mappings. */
+  public boolean isMapped() {
+    return mapped;
   }
 
   /**
@@ -65,6 +118,108 @@ public class HeapFile implements DbFile {
     return td;
   }
 
+  /**
+   * Returns the channel used for page I/O, opening the backing file if
+   * this is the first access since construction or the last close(), or
+   * reopening it if an interrupt has closed the channel: a thread
+   * interrupted during channel I/O, e.g. one aborted while waiting for a
+   * lock, closes the channel for every thread.  Mapped segments stay
+   * valid once their channel is closed and are kept.
+   */
+  protected synchronized FileChannel getChannel() throws IOException {
+    if (channel != null && !channel.isOpen()) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        // already closed with its channel
+      }
+      channel = null;
+    }
+    if (channel == null) {
+      try {
+        raf = new RandomAccessFile(file, "rw");
+        writable = true;
+      } catch (FileNotFoundException e) {
+        // read-only table file; writePage will fail
+        raf = new RandomAccessFile(file, "r");
+        writable = false;
+      }
+      channel = raf.getChannel();
+    }
+    return channel;
+  }
+
+  /**
+   * Returns a buffer positioned at the start of the specified page inside
+   * its memory-mapped segment and limited to the page, or null if the page
+   * does not lie in a fully populated segment.  Pages of segments already
+   * mapped are found without taking the file's monitor, so that scans of
+   * a mapped table don't queue on it.
+   */
+  private ByteBuffer mappedPage(int pageNum) throws IOException {
+    int seg = pageNum / MAPPED_SEGMENT_PAGES;
+    MappedByteBuffer[] segs = segments;
+    MappedByteBuffer mapping = segs != null && seg < segs.length ? segs[seg] : null;
+    if (mapping == null) {
+      mapping = mapSegment(seg);
+      if (mapping == null) {
+        return null;
+      }
+    }
+    ByteBuffer page = mapping.duplicate();
+    int start = (pageNum % MAPPED_SEGMENT_PAGES) * BufferPool.PAGE_SIZE;
+    page.position(start);
+    page.limit(start + BufferPool.PAGE_SIZE);
+    return page;
+  }
+
+  /**
+   * Maps segment seg, unless another thread has meanwhile, and returns
+   * it, or null if the file doesn't cover the whole segment.  The segments
+   * array is copied rather than updated in place, so that readers of the
+   * volatile field only ever see fully mapped segments.
+   */
+  private synchronized MappedByteBuffer mapSegment(int seg) throws IOException {
+    MappedByteBuffer[] segs = segments;
+    if (segs != null && seg < segs.length && segs[seg] != null) {
+      return segs[seg];
+    }
+    long segBytes = (long) MAPPED_SEGMENT_PAGES * BufferPool.PAGE_SIZE;
+    FileChannel fc = getChannel();
+    if ((seg + 1) * segBytes > fc.size()) {
+      return null;
+    }
+    FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+                                        : FileChannel.MapMode.READ_ONLY;
+    MappedByteBuffer mapping = fc.map(mode, seg * segBytes, segBytes);
+    MappedByteBuffer[] grown =
+        new MappedByteBuffer[segs == null ? seg + 1 : Math.max(segs.length, seg + 1)];
+    if (segs != null) {
+      System.arraycopy(segs, 0, grown, 0, segs.length);
+    }
+    grown[seg] = mapping;
+    segments = grown;
+    return mapping;
+  }
+
+  // see DbFile.java for javadocs
+  public synchronized void close() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      raf.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    raf = null;
+    channel = null;
+    freeSpace = null;
+    // mappings are released when garbage collected; there is no portable
+    // way to unmap them eagerly
+    segments = null;
+  }
+
   // see DbFile.java for javadocs
   public Page readPage(PageId pid) {
     // some code goes here
@@ -74,17 +229,16 @@ public class HeapFile implements DbFile {
     }
 
     try {
-	int pageNum = pid.pageNumber();
+	if (mapped) {
+	  ByteBuffer page = mappedPage(pid.pageNumber());
+	  if (page != null) {
+	    // read-only, so that the page reads the mapping in place
+	    return noteFreeSpace(createPage((HeapPageId)pid, page.asReadOnlyBuffer()));
+	  }
+	}
 	byte[] data = new byte[BufferPool.PAGE_SIZE];
-	
-	RandomAccessFile raf = new RandomAccessFile(file, "r");
-	raf.seek(pageNum * BufferPool.PAGE_SIZE);
-	raf.read(data, 0,  BufferPool.PAGE_SIZE);
-	raf.close();
-	return (new HeapPage((HeapPageId)pid, data));
-    } catch (FileNotFoundException e1) {
-	System.err.println("FileNotFoundException");
-	e1.printStackTrace();
+	readBytes(pid.pageNumber(), ByteBuffer.wrap(data));
+	return noteFreeSpace(createPage((HeapPageId)pid, ByteBuffer.wrap(data)));
     } catch (IOException e) {
 	System.err.println("IOException");
 	e.printStackTrace();
@@ -93,16 +247,335 @@ public class HeapFile implements DbFile {
     throw new IllegalArgumentException();
   }
 
+  /**
+   * Reads the specified page into frame, a page-sized direct buffer of an
+   * off-heap BufferPool, and returns a page that is kept in the frame
+   * rather than on the Java heap, or null if this file's pages can't be.
+   *
+   * @see FrameArena
+   */
+  public Page readPage(PageId pid, ByteBuffer frame) throws IOException {
+    if (pid.getTableId() != getId()) {
+      throw new IllegalArgumentException("Page not in file");
+    }
+    frame.clear();
+    readBytes(pid.pageNumber(), frame);
+    // a frame is reused, and bytes past the end of the file aren't read
+    while (frame.hasRemaining()) {
+      frame.put((byte) 0);
+    }
+    frame.clear();
+    return noteFreeSpace(createFramePage((HeapPageId) pid, frame));
+  }
+
   // see DbFile.java for javadocs
   public void writePage(Page page) throws IOException {
     // some code goes here
     // not necessary for proj1
-    int offset = page.getId().pageNumber();
+    if (mapped) {
+      ByteBuffer mappedPage = mappedPage(page.getId().pageNumber());
+      if (mappedPage != null && !mappedPage.isReadOnly()) {
+        mappedPage.put(page.getPageData());
+        return;
+      }
+    }
     byte[] data = page.getPageData();
-    RandomAccessFile raf = new RandomAccessFile(file, "rw");
-    raf.seek(offset * BufferPool.PAGE_SIZE);
-    raf.write(data);
-    raf.close();
+    try {
+      writePageBytes(page.getId().pageNumber(), data);
+    } catch (ClosedChannelException e) {
+      // closed by an interrupt; retried as in readBytes
+      boolean interrupted = Thread.interrupted();
+      try {
+        writePageBytes(page.getId().pageNumber(), data);
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the specified pages of this file, which must be sorted by page
+   * number.  Each run of consecutive pages, up to MAX_WRITE_PAGES long, is
+   * written with a single gathering write of the pages' data; in mapped
+   * mode, and for subclasses whose pages are not stored at
+   * pageNo * PAGE_SIZE, the pages are written one at a time with writePage.
+   *
+   * @return the number of writes made
+   */
+  public int writePages(List<Page> pages) throws IOException {
+    if (mapped || !contiguousPages()) {
+      for (Page p : pages) {
+        writePage(p);
+      }
+      return pages.size();
+    }
+    int writes = 0;
+    int start = 0;
+    while (start < pages.size()) {
+      int end = start + 1;
+      while (end < pages.size() && end - start < MAX_WRITE_PAGES
+          && pages.get(end).getId().pageNumber() == pages.get(end - 1).getId().pageNumber() + 1) {
+        end++;
+      }
+      ByteBuffer[] bufs = new ByteBuffer[end - start];
+      for (int i = start; i < end; i++) {
+        bufs[i - start] = ByteBuffer.wrap(pages.get(i).getPageData());
+      }
+      long offset = (long) pages.get(start).getId().pageNumber() * BufferPool.PAGE_SIZE;
+      try {
+        writeFully(bufs, offset);
+      } catch (ClosedChannelException e) {
+        // closed by an interrupt; retried as in readBytes
+        boolean interrupted = Thread.interrupted();
+        try {
+          for (ByteBuffer buf : bufs) {
+            buf.rewind();
+          }
+          writeFully(bufs, offset);
+        } finally {
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+      writes++;
+      start = end;
+    }
+    return writes;
+  }
+
+  /**
+   * Forces the pages written so far to disk, so that they survive a crash
+   * of the machine and not only of the process; pages written through a
+   * memory mapping are forced with their segment.  The file's monitor is
+   * not held while forcing, so that reads and writes go on meanwhile.
+   */
+  public void sync() throws IOException {
+    FileChannel fc = getChannel();
+    MappedByteBuffer[] segs = segments;
+    if (segs != null) {
+      for (MappedByteBuffer seg : segs) {
+        if (seg != null && !seg.isReadOnly()) {
+          seg.force();
+        }
+      }
+    }
+    fc.force(false);
+  }
+
+  /**
+   * Returns true if page pageNo of this file is stored at offset
+   * pageNo * BufferPool.PAGE_SIZE, so that adjacent pages can be written
+   * together.  Subclasses that override writePageBytes to lay pages out
+   * differently return false.
+   */
+  protected boolean contiguousPages() {
+    return true;
+  }
+
+  /**
+   * Writes bufs to the file at offset with gathering writes.  These go at
+   * the channel's position, which nothing else in HeapFile uses: page reads
+   * and single page writes are positional.
+   */
+  private void writeFully(ByteBuffer[] bufs, long offset) throws IOException {
+    FileChannel fc = getChannel();
+    synchronized (fc) {
+      fc.position(offset);
+      while (bufs[bufs.length - 1].hasRemaining()) {
+        fc.write(bufs);
+      }
+    }
+  }
+
+  /**
+   * Reads page pageNo with readPageBytes, retrying once if the channel was
+   * closed by an interrupt meanwhile.  The retry runs with this thread's
+   * interrupt status cleared, and restores it afterwards, so that a thread
+   * that was itself interrupted, such as one rolling back after a lock
+   * wait was interrupted, can still read its pages.
+   */
+  private void readBytes(int pageNo, ByteBuffer dst) throws IOException {
+    int start = dst.position();
+    try {
+      readPageBytes(pageNo, dst);
+    } catch (ClosedChannelException e) {
+      boolean interrupted = Thread.interrupted();
+      try {
+        dst.position(start);
+        readPageBytes(pageNo, dst);
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the leading bytes of page pageNo from disk into dst, filling it
+   * from its position to its limit; bytes past the end of the file are
+   * left untouched.  Together with writePageBytes and numPages this is all
+   * of HeapFile's page I/O outside mapped mode, and subclasses that store
+   * pages differently on disk, such as CompressedHeapFile, override them.
+   */
+  protected void readPageBytes(int pageNo, ByteBuffer dst) throws IOException {
+    long offset = (long) pageNo * BufferPool.PAGE_SIZE;
+    int start = dst.position();
+    FileChannel fc = getChannel();
+    while (dst.hasRemaining()) {
+      if (fc.read(dst, offset + dst.position() - start) < 0) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Writes the image of page pageNo to disk.
+   *
+   * @see #readPageBytes
+   */
+  protected void writePageBytes(int pageNo, byte[] data) throws IOException {
+    long offset = (long) pageNo * BufferPool.PAGE_SIZE;
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    FileChannel fc = getChannel();
+    while (buf.hasRemaining()) {
+      fc.write(buf, offset + buf.position());
+    }
+  }
+
+  /**
+   * Record whether a page has room in the free space map, if it has been
+   * built; otherwise the next rebuild will pick the page up from disk.
+   */
+  private void setFree(int pageNo, boolean hasRoom) {
+    FreeSpaceMap fsm = freeSpace;
+    if (fsm != null) {
+      fsm.setFree(pageNo, hasRoom);
+    }
+  }
+
+  /**
+   * Records whether page p has room in the free space map, e.g. after the
+   * BufferPool has rolled it back to its before image, and returns it.
+   */
+  Page noteFreeSpace(Page p) {
+    setFree(p.getId().pageNumber(), hasRoom(p));
+    return p;
+  }
+
+  /**
+   * Returns the free space map of this file, building it from the page
+   * headers on disk if the file was opened since it was last built.  Pages
+   * are examined without going through the BufferPool, so building the map
+   * does not disturb the cached working set.
+   */
+  private synchronized FreeSpaceMap getFreeSpaceMap() throws IOException {
+    if (freeSpace == null) {
+      FreeSpaceMap fsm = new FreeSpaceMap();
+      byte[] header = new byte[pageHeaderBytes()];
+      for (int i = 0; i < numPages(); i++) {
+        readBytes(i, ByteBuffer.wrap(header));
+        fsm.setFree(i, hasRoom(header));
+      }
+      freeSpace = fsm;
+    }
+    return freeSpace;
+  }
+
+  /**
+   * Returns the first page at or after pageNo that the free space map
+   * believes to have an empty slot, or -1 if there is none.
+   */
+  int nextFreePage(int pageNo) throws IOException {
+    return getFreeSpaceMap().nextFree(pageNo);
+  }
+
+  /*
+   * Page format.  HeapFile itself only moves page images between disk and
+   * the BufferPool, tracks free space and iterates over pages; the methods
+   * below are the only ones that look inside a page, and subclasses such as
+   * SlottedHeapFile override them to store tuples in another page format.
+   */
+
+  /**
+   * Constructs the page held in a page image read from this file.  Reads
+   * BufferPool.PAGE_SIZE bytes from the buffer's current position.
+   */
+  protected Page createPage(HeapPageId pid, ByteBuffer data) throws IOException {
+    return new HeapPage(pid, data);
+  }
+
+  /**
+   * Constructs the page held in frame, keeping it there.
+   *
+   * @see #readPage(PageId, ByteBuffer)
+   */
+  protected Page createFramePage(HeapPageId pid, ByteBuffer frame) throws IOException {
+    return new HeapPage(pid, frame, true);
+  }
+
+  /** Returns the image of a page of this file holding no tuples. */
+  protected byte[] createEmptyPageData() {
+    return HeapPage.createEmptyPageData();
+  }
+
+  /**
+   * Returns the number of bytes at the start of a page image that
+   * {@link #hasRoom(byte[])} needs to see.
+   */
+  protected int pageHeaderBytes() {
+    return HeapPage.headerBytes(td);
+  }
+
+  /**
+   * Returns true if the page whose leading pageHeaderBytes() bytes are
+   * given has room for another tuple.
+   */
+  protected boolean hasRoom(byte[] pageHeader) {
+    return HeapPage.hasEmptySlot(pageHeader, HeapPage.slotsPerPage(td));
+  }
+
+  /** Returns true if page p has room for another tuple. */
+  protected boolean hasRoom(Page p) {
+    return ((HeapPage) p).getNumEmptySlots() > 0;
+  }
+
+  /**
+   * Adds t to page p.
+   *
+   * @return false, leaving p unchanged, if t does not fit on p
+   * @throws DbException if t cannot be stored in this file
+   */
+  protected boolean insertInto(Page p, Tuple t) throws DbException {
+    HeapPage hp = (HeapPage) p;
+    if (hp.getNumEmptySlots() == 0) {
+      return false;
+    }
+    hp.insertTuple(t);
+    return true;
+  }
+
+  /** Removes t from page p, which holds it. */
+  protected void deleteFrom(Page p, Tuple t) throws DbException {
+    ((HeapPage) p).deleteTuple(t);
+  }
+
+  /** Returns an iterator over the tuples on page p. */
+  protected Iterator<Tuple> pageIterator(Page p) {
+    return ((HeapPage) p).iterator();
+  }
+
+  /**
+   * Returns an iterator over the tuples on page p, projected onto the
+   * specified fields.
+   *
+   * @see #iterator(TransactionId, int[])
+   */
+  protected Iterator<Tuple> pageIterator(Page p, int[] fields, TupleDesc projected) {
+    return ((HeapPage) p).iterator(fields, projected);
   }
 
   /**
@@ -119,23 +592,49 @@ public class HeapFile implements DbFile {
     throws DbException, IOException, TransactionAbortedException {
     // some code goes here
     ArrayList<Page> results = new ArrayList<Page>();
-    for(int i = 0; i < numPages(); i++) {
+    BufferPool bp = Database.getBufferPool();
+    FreeSpaceMap fsm = getFreeSpaceMap();
+    int numPages = numPages();
+    for (int i = fsm.nextFree(0); i >= 0 && i < numPages; i = fsm.nextFree(i + 1)) {
 	HeapPageId pid = new HeapPageId(getId(), i);
-	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+	// pinned until it is dirty, so it can't be evicted mid-change
+	Page p = bp.pinPage(tid, pid, Permissions.READ_WRITE);
+	boolean inserted;
 	try {
-	    p.insertTuple(t);
-	    // Adds to result/returns iff there is a page with an empty slot
-	    results.add(p);
-	    return results;
-	} catch (DbException e) {
+	    inserted = insertInto(p, t);
+	    if (inserted) {
+		p.markDirty(true, tid);
+	    }
+	} finally {
+	    bp.unpinPage(pid);
+	}
+	if (!inserted) {
+	    // stale hint, or not enough room left for this tuple
+	    fsm.setFree(i, false);
 	    continue;
 	}
+	fsm.setFree(i, hasRoom(p));
+	results.add(p);
+	return results;
+    }
+    // No pages left: extend the file with an empty page, then insert into
+    // it through the BufferPool like into any other page, so that it is
+    // locked and the insert can be rolled back
+    HeapPageId pid;
+    synchronized (this) {
+      pid = new HeapPageId(getId(), numPages());
+      writePage(createPage(pid, ByteBuffer.wrap(createEmptyPageData())));
     }
-    // No pages left, add new page
-    HeapPageId pid = new HeapPageId(getId(), numPages());
-    HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
-    p.insertTuple(t);
-    writePage(p);
+    Page p = bp.pinPage(tid, pid, Permissions.READ_WRITE);
+    try {
+      if (!insertInto(p, t)) {
+	throw new DbException("Tuple does not fit on an empty page!");
+      }
+      p.markDirty(true, tid);
+    } finally {
+      bp.unpinPage(pid);
+    }
+    fsm.setFree(pid.pageNumber(), hasRoom(p));
     results.add(p);
     return results;
     
@@ -147,8 +646,15 @@ public class HeapFile implements DbFile {
     // some code goes here
     RecordId rid = t.getRecordId();
     PageId pid = rid.getPageId();
-    HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    p.deleteTuple(t);
+    BufferPool bp = Database.getBufferPool();
+    Page p = bp.pinPage(tid, pid, Permissions.READ_WRITE);
+    try {
+      deleteFrom(p, t);
+      p.markDirty(true, tid);
+    } finally {
+      bp.unpinPage(pid);
+    }
+    setFree(pid.pageNumber(), true);
     return p;
     // not necessary for proj1
   }
@@ -159,15 +665,75 @@ public class HeapFile implements DbFile {
     return (new MyIter(tid));
   }
 
+  /**
+   * Returns an iterator over some of the fields of the tuples in this file.
+   * Field i of each returned tuple is field fields[i] of the stored tuple,
+   * and the tuple keeps the stored tuple's RecordId, so it can still be
+   * passed to deleteTuple.  Unlike projecting the tuples returned by
+   * {@link #iterator(TransactionId)}, the other fields are never decoded.
+   *
+   * @param tid the transaction scanning the file
+   * @param fields indexes of the fields to return, in order
+   */
+  public DbFileIterator iterator(TransactionId tid, int[] fields) {
+    return (new MyIter(tid, fields, null));
+  }
+
+  /**
+   * Returns an iterator over the tuples in this file, or over some of
+   * their fields as with iterator(tid, fields), that uses readAhead to
+   * prefetch the pages ahead of the one being scanned.
+   *
+   * @param fields indexes of the fields to return, or null for all fields
+   * @param readAhead the read-ahead state of this scan, or null to read
+   *            pages only as they are reached
+   * @see ReadAhead
+   */
+  public DbFileIterator iterator(TransactionId tid, int[] fields, ReadAhead readAhead) {
+    return (new MyIter(tid, fields, readAhead));
+  }
+
+  /**
+   * Returns the TupleDesc of the tuples returned by
+   * iterator(tid, fields).
+   */
+  public TupleDesc getTupleDesc(int[] fields) {
+    Type[] types = new Type[fields.length];
+    String[] names = new String[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      types[i] = td.getFieldType(fields[i]);
+      names[i] = td.getFieldName(fields[i]);
+    }
+    return new TupleDesc(types, names);
+  }
+
   private class MyIter implements DbFileIterator {
     Iterator<Tuple> tupleIter;
     int currentPageNum;
     TransactionId tid;
+    // null to return whole tuples
+    int[] fields;
+    TupleDesc projected;
+    // null if not reading ahead
+    ReadAhead readAhead;
+    // the page being read, pinned until the iterator moves off it, and
+    // the pool it is pinned in, in case the pool is replaced meanwhile
+    PageId pinned;
+    BufferPool pinnedIn;
 
     public MyIter(TransactionId tid) {
       this.tid = tid;
     }
 
+    public MyIter(TransactionId tid, int[] fields, ReadAhead readAhead) {
+      this.tid = tid;
+      if (fields != null) {
+        this.fields = fields.clone();
+        this.projected = getTupleDesc(fields);
+      }
+      this.readAhead = readAhead;
+    }
+
     public void open()
       throws DbException, TransactionAbortedException {
       currentPageNum = 0;
@@ -185,6 +751,8 @@ public class HeapFile implements DbFile {
 	setIterPage(currentPageNum);
 	return hasNext();
       } else {
+	// done with the last page; don't count on close() to unpin it
+	unpin();
 	return false;
       }
     }
@@ -208,13 +776,33 @@ public class HeapFile implements DbFile {
 
     public void close() {
       tupleIter = null;
+      unpin();
+      if (readAhead != null) {
+        readAhead.reset();
+      }
+    }
+
+    private void unpin() {
+      if (pinned != null) {
+        pinnedIn.unpinPage(pinned);
+        pinned = null;
+        pinnedIn = null;
+      }
     }
 
     // Encapsulates using the next page in tupleIter
     private void setIterPage(int pageNum) throws DbException, TransactionAbortedException{
+      if (readAhead != null) {
+        readAhead.reached(HeapFile.this, pageNum, numPages());
+      }
       HeapPageId pid = new HeapPageId(getId(), pageNum);
-      Page page = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-      tupleIter = ((HeapPage) page).iterator();
+      unpin();
+      BufferPool bp = Database.getBufferPool();
+      Page page = bp.pinPage(tid, pid, Permissions.READ_ONLY);
+      pinned = pid;
+      pinnedIn = bp;
+      tupleIter = (fields == null) ? pageIterator(page)
+                                   : pageIterator(page, fields, projected);
       
     }
   }
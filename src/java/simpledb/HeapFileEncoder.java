@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -9,10 +10,34 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * Text files can also be converted to the page formats of the HeapFile
+ * subclasses; see {@link Format}.
  */
 
 public class HeapFileEncoder {
 
+  /** The page formats HeapFileEncoder can write. */
+  public enum Format {
+    /** HeapPages, for HeapFile */
+    HEAP,
+    /** SlottedHeapPages with variable-length records, for SlottedHeapFile */
+    SLOTTED,
+    /** column-major PaxHeapPages, for PaxHeapFile */
+    PAX,
+    /** HeapPages compressed with PageCodec.COLUMN, for CompressedHeapFile */
+    COMPRESSED;
+
+    /** Returns the format named s, ignoring case, or null if none is. */
+    public static Format parse(String s) {
+      for (Format f : values()) {
+        if (f.name().equalsIgnoreCase(s))
+          return f;
+      }
+      return null;
+    }
+  }
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -223,4 +248,143 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /**
+   * Convert the specified input text file into a binary page file in the
+   * specified page format.  The input format is as for
+   * {@link #convert(File, File, int, int, Type[], char)}.
+   *
+   * @see SlottedHeapPage
+   * @see PaxHeapPage
+   * @param format the page format to write
+   * @throws IOException if the input/output file can't be opened or a
+   *   malformed input line is encountered
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 Format format)
+      throws IOException {
+    if (format == Format.HEAP) {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+    } else if (format == Format.SLOTTED) {
+      convertSlotted(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+    } else if (format == Format.PAX) {
+      convertPax(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+    } else {
+      convertCompressed(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+    }
+  }
+
+  /**
+   * Writes a HeapPage file and appends a compressed frame for each of its
+   * pages to outFile.
+   */
+  private static void convertCompressed(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    if (npagebytes != BufferPool.PAGE_SIZE)
+      throw new IllegalArgumentException("compressed pages must be BufferPool.PAGE_SIZE bytes");
+    File rowFile = File.createTempFile("tempTable", ".dat");
+    rowFile.deleteOnExit();
+    convert(inFile, rowFile, npagebytes, numFields, typeAr, fieldSeparator);
+
+    if (outFile.exists() && !outFile.delete())
+      throw new IOException("Could not replace " + outFile);
+    CompressedHeapFile out = new CompressedHeapFile(outFile, new TupleDesc(typeAr));
+    DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(rowFile)));
+    byte[] page = new byte[npagebytes];
+    int npages = (int) (rowFile.length() / npagebytes);
+    for (int i = 0; i < npages; i++) {
+      is.readFully(page);
+      out.writePageBytes(i, page);
+    }
+    is.close();
+    out.close();
+    rowFile.delete();
+  }
+
+  /**
+   * Writes a HeapPage file and rearranges each of its pages into column
+   * major order.
+   */
+  private static void convertPax(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    File rowFile = File.createTempFile("tempTable", ".dat");
+    rowFile.deleteOnExit();
+    convert(inFile, rowFile, npagebytes, numFields, typeAr, fieldSeparator);
+
+    DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(rowFile)));
+    FileOutputStream os = new FileOutputStream(outFile);
+    byte[] page = new byte[npagebytes];
+    long npages = rowFile.length() / npagebytes;
+    for (long i = 0; i < npages; i++) {
+      is.readFully(page);
+      os.write(PaxHeapPage.fromRowImage(page, typeAr, npagebytes));
+    }
+    is.close();
+    os.close();
+    rowFile.delete();
+  }
+
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+
+    TupleDesc td = new TupleDesc(typeAr);
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    String sep = Pattern.quote(String.valueOf(fieldSeparator));
+
+    ArrayList<byte[]> records = new ArrayList<byte[]>();
+    int used = SlottedHeapPage.HEADER_SIZE;
+    int npages = 0;
+    String line;
+    while ((line = br.readLine()) != null) {
+      if (line.trim().length() == 0)
+        continue;
+      String[] vals = line.split(sep, -1);
+      if (vals.length < numFields) {
+        br.close();
+        os.close();
+        throw new IOException("BAD LINE : " + line);
+      }
+      Tuple t = new Tuple(td);
+      for (int i = 0; i < numFields; i++) {
+        String s = vals[i].trim();
+        if (typeAr[i] == Type.INT_TYPE) {
+          try {
+            t.setField(i, new IntField(Integer.parseInt(s)));
+          } catch (NumberFormatException e) {
+            br.close();
+            os.close();
+            throw new IOException("BAD LINE : " + line);
+          }
+        } else {
+          t.setField(i, new StringField(s, Type.STRING_LEN));
+        }
+      }
+      byte[] rec = SlottedHeapPage.encodeRecord(t);
+      int need = rec.length + SlottedHeapPage.ENTRY_SIZE;
+      if (used + need > npagebytes) {
+        writeSlottedPage(os, records, npagebytes);
+        npages++;
+        records.clear();
+        used = SlottedHeapPage.HEADER_SIZE;
+      }
+      records.add(rec);
+      used += need;
+    }
+    // as above, an empty input still produces one (empty) page
+    if (records.size() > 0 || npages == 0)
+      writeSlottedPage(os, records, npagebytes);
+    br.close();
+    os.close();
+  }
+
+  private static void writeSlottedPage(OutputStream os, ArrayList<byte[]> records,
+                                       int npagebytes) throws IOException {
+    byte[][] recs = records.toArray(new byte[0][]);
+    os.write(SlottedHeapPage.pageImage(recs, recs.length, npagebytes));
+  }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,13 +16,49 @@ public class HeapPage implements Page {
 
   HeapPageId pid;
   TupleDesc td;
-  byte header[];
+  // slot bitmap in 64-bit words: slot i is bit (i % 64) of header[i / 64].
+  // Bits past numSlots are always clear.
+  long header[];
+  // number of header bytes on disk
+  int headerLen;
+  // number of clear bits in header[], kept up to date by markSlotUsed
+  int numEmpty;
   Tuple tuples[];
   int numSlots;
   boolean dirty;
   TransactionId lastTid;
   byte[] oldData;
 
+  // page image this page was constructed from; never modified.  Tuples are
+  // decoded from it on first access and cached in tuples[], so a used slot
+  // whose tuples[] entry is null still holds its original on-disk value.
+  //
+  // If inFrame, data is instead a BufferPool frame that the page is kept
+  // in, and is brought up to date in place by writeFrame().  Decoded
+  // tuples are then not cached, tuples[] is null until a tuple is
+  // inserted, and oldData is null while the frame still holds the before
+  // image.
+  //
+  // If borrowed, data is instead a read-only view of a slice of a
+  // memory-mapped HeapFile that the page is read from in place; own() copies it onto the Java heap
+  // before the page is first modified or its before image is taken, as
+  // the mapping changes once the modified page is written back.
+  //
+  // leaveFrame and own replace data while other threads may be reading
+  // the page, so it is volatile, and read once into a local by readers
+  // that use it more than once.
+  volatile ByteBuffer data;
+  boolean inFrame;
+  boolean borrowed;
+  // byte offset of each field within a tuple
+  int[] fieldOffsets;
+
+  // number of slot changes since construction; serialize() reuses image
+  // while imageVersion still matches
+  int version;
+  byte[] image;
+  int imageVersion;
+
   /**
    * Create a HeapPage from a set of bytes of data read from disk.
    * The format of a HeapPage is a set of header bytes indicating
@@ -39,30 +76,111 @@ public class HeapPage implements Page {
    * @see BufferPool#PAGE_SIZE
    */
   public HeapPage(HeapPageId id, byte[] data) throws IOException {
+    this(id, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Create a HeapPage from a buffer holding the page's bytes, e.g. a slice
+   * of a memory-mapped HeapFile.  Reads BufferPool.PAGE_SIZE bytes from the
+   * buffer's current position.  A read-only direct buffer, such as the
+   * view of a mapped slice HeapFile passes, is retained and read in place
+   * until the page is first modified or its before image is needed, when
+   * the page copies it; any other buffer, e.g. the frame of another page
+   * whose before image is being taken, is copied here.
+   * <p>
+   * Only the header is parsed here.  Tuples are decoded from the page
+   * bytes when {@link #iterator} or {@link #getField} first asks for them.
+   *
+   * @see #HeapPage(HeapPageId, byte[])
+   */
+  public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+    this(id, data, false);
+  }
+
+  /**
+   * Create a HeapPage from a buffer holding the page's bytes.  If inFrame,
+   * the page is kept in the buffer itself, a BufferPool frame of exactly
+   * BufferPool.PAGE_SIZE bytes, instead of in a copy on the Java heap.
+   *
+   * @see FrameArena
+   */
+  HeapPage(HeapPageId id, ByteBuffer data, boolean inFrame) throws IOException {
     this.pid = id;
     this.td = Database.getCatalog().getTupleDesc(id.getTableId());
     this.numSlots = getNumTuples();
     this.dirty = false;
-    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+    this.inFrame = inFrame;
+
+    byte[] copy = null;
+    if (inFrame) {
+      this.data = data;
+    } else if (data.isDirect() && data.isReadOnly()
+	&& data.remaining() >= BufferPool.PAGE_SIZE) {
+      ByteBuffer slice = data.slice();
+      slice.limit(BufferPool.PAGE_SIZE);
+      this.data = slice;
+      borrowed = true;
+    } else {
+      copy = new byte[BufferPool.PAGE_SIZE];
+      data.get(copy, 0, Math.min(data.remaining(), copy.length));
+      this.data = ByteBuffer.wrap(copy);
+    }
 
     // allocate and read the header slots of this page
-    header = new byte[getHeaderSize()];
-    for (int i=0; i<header.length; i++) {
-      header[i] = dis.readByte();
+    headerLen = getHeaderSize();
+    byte[] headerBytes = new byte[headerLen];
+    readBytes(0, headerBytes, 0, headerLen);
+    header = headerWords(headerBytes, numSlots);
+    numEmpty = numSlots;
+    for (long w : header) {
+      numEmpty -= Long.bitCount(w);
     }
 
-    try {
-      // allocate and read the actual records of this page
+    if (!inFrame) {
       tuples = new Tuple[numSlots];
-      for (int i=0; i<tuples.length; i++) {
-        tuples[i] = readNextTuple(dis,i);
-      }
-    } catch(NoSuchElementException e){
-      e.printStackTrace();
     }
-    dis.close();
+    fieldOffsets = new int[td.numFields()];
+    for (int j = 1; j < fieldOffsets.length; j++) {
+      fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+    }
+
+    // an unmodified page is its own before image
+    oldData = copy;
+  }
+
+  /**
+   * Copies the page bytes onto the Java heap if they are still borrowed
+   * from a mapped file, making them the before image.
+   */
+  private synchronized void own() {
+    if (!borrowed) {
+      return;
+    }
+    byte[] copy = new byte[BufferPool.PAGE_SIZE];
+    readBytes(0, copy, 0, copy.length);
+    oldData = copy;
+    borrowed = false;
+    data = ByteBuffer.wrap(copy);
+  }
 
-    setBeforeImage();
+  /**
+   * Copies len bytes of the page image this page was constructed from,
+   * starting at offset off, into out at outOff.
+   */
+  void readBytes(int off, byte[] out, int outOff, int len) {
+    ByteBuffer buf = data;
+    if (buf.hasArray()) {
+      System.arraycopy(buf.array(), buf.arrayOffset() + off, out, outOff, len);
+    } else {
+      ByteBuffer d = buf.duplicate();
+      d.position(off);
+      d.get(out, outOff, len);
+    }
+  }
+
+  /** Returns the tuple cached for slot i, or null. */
+  private Tuple cached(int i) {
+    return tuples == null ? null : tuples[i];
   }
 
   /** Retrieve the number of tuples on this page.
@@ -70,26 +188,139 @@ public class HeapPage implements Page {
    */
   private int getNumTuples() {        
     // some code goes here
-    
+    return slotsPerPage(td);
+  }
+
+  /**
+   * Returns the number of tuple slots on a HeapPage holding tuples of td.
+   */
+  static int slotsPerPage(TupleDesc td) {
     // java automatically floors when dealing with ints
     return (BufferPool.PAGE_SIZE*8) / (td.getSize() * 8 + 1);
   }
 
+  /**
+   * Returns the number of header bytes on a HeapPage holding tuples of td.
+   */
+  static int headerBytes(TupleDesc td) {
+    return (slotsPerPage(td) + 7) / 8;
+  }
+
+  /**
+   * Reads the slot bitmap at the start of a page image into 64-bit words,
+   * slot i being bit (i % 64) of word i / 64.  On disk, slot i is bit
+   * (i % 8) of header byte i / 8, so header bytes map onto the words in
+   * little-endian order.  Bits past numSlots are cleared.
+   */
+  static long[] headerWords(byte[] data, int numSlots) {
+    long[] words = new long[(numSlots + 63) / 64];
+    int nbytes = (numSlots + 7) / 8;
+    for (int b = 0; b < nbytes; b++) {
+      words[b >>> 3] |= (data[b] & 0xFFL) << ((b & 7) * 8);
+    }
+    int tail = numSlots & 63;
+    if (tail != 0) {
+      words[words.length - 1] &= (1L << tail) - 1;
+    }
+    return words;
+  }
+
+  /**
+   * Returns true if one of the first numSlots slots described by a page
+   * header is empty.  Lets callers check a page for room without
+   * constructing it.
+   */
+  static boolean hasEmptySlot(byte[] header, int numSlots) {
+    int used = 0;
+    for (long w : headerWords(header, numSlots)) {
+      used += Long.bitCount(w);
+    }
+    return used < numSlots;
+  }
+
+  /**
+   * Returns true if slot i is used in the page image data.
+   */
+  static boolean isSlotUsed(byte[] data, int i) {
+    return ((data[i >>> 3] >>> (i & 7)) & 1) != 0;
+  }
+
+  /**
+   * Returns the offset of slot i in the image of a page holding tuples of
+   * td.
+   */
+  static int slotOffset(TupleDesc td, int i) {
+    return headerBytes(td) + i * td.getSize();
+  }
+
+  /**
+   * Returns the slots that differ between two images of a page holding
+   * tuples of td, in increasing order: slots filled or emptied, and used
+   * slots whose tuple bytes changed.  The bytes of empty slots don't
+   * matter.  Used to log a page's changes slot by slot.
+   */
+  static int[] changedSlots(TupleDesc td, byte[] before, byte[] after) {
+    int numSlots = slotsPerPage(td);
+    int size = td.getSize();
+    int[] changed = new int[numSlots];
+    int n = 0;
+    for (int b = 0; b < (numSlots + 7) / 8; b++) {
+      if ((before[b] | after[b]) == 0) {
+	// eight empty slots
+	continue;
+      }
+      for (int i = b * 8; i < Math.min(b * 8 + 8, numSlots); i++) {
+	boolean used = isSlotUsed(before, i);
+	if (used != isSlotUsed(after, i)) {
+	  changed[n++] = i;
+	} else if (used) {
+	  int off = slotOffset(td, i);
+	  for (int j = off; j < off + size; j++) {
+	    if (before[j] != after[j]) {
+	      changed[n++] = i;
+	      break;
+	    }
+	  }
+	}
+      }
+    }
+    int[] slots = new int[n];
+    System.arraycopy(changed, 0, slots, 0, n);
+    return slots;
+  }
+
+  /**
+   * Stores the tuple bytes tuple in slot i of the page image data, of a
+   * page holding tuples of td, and marks the slot used, or empties the
+   * slot if tuple is null.  Used by recovery to redo and undo slot
+   * changes.
+   */
+  static void writeSlot(TupleDesc td, byte[] data, int i, byte[] tuple) {
+    int off = slotOffset(td, i);
+    if (tuple != null) {
+      data[i >>> 3] |= (byte) (1 << (i & 7));
+      System.arraycopy(tuple, 0, data, off, td.getSize());
+    } else {
+      data[i >>> 3] &= (byte) ~(1 << (i & 7));
+      // as serialized, empty slots are zero
+      Arrays.fill(data, off, off + td.getSize(), (byte) 0);
+    }
+  }
+
   /**
    * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
    * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
    */
   private int getHeaderSize() {        
     // some code goes here
-
-    return (int)Math.ceil((double)getNumTuples() / (double)8);
+    return headerBytes(td);
   }
 
   /** Return a view of this page before it was modified
     -- used by recovery */
   public HeapPage getBeforeImage(){
     try {
-      return new HeapPage(pid,oldData);
+      return new HeapPage(pid, beforeImage());
     } catch (IOException e) {
       e.printStackTrace();
       //should never happen -- we parsed it OK before!
@@ -98,8 +329,23 @@ public class HeapPage implements Page {
     return null;
   }
 
+  /** Returns the image of this page before it was modified. */
+  synchronized ByteBuffer beforeImage() {
+    own();
+    return oldData != null ? ByteBuffer.wrap(oldData) : data.duplicate();
+  }
+
   public void setBeforeImage() {
-    oldData = getPageData().clone();
+    if (inFrame) {
+      synchronized (this) {
+	writeFrame();
+	oldData = null;
+      }
+      return;
+    }
+    // the before image is never modified, so it can share serialize()'s
+    // result instead of taking a copy
+    oldData = serialize();
   }
 
   /**
@@ -110,30 +356,40 @@ public class HeapPage implements Page {
     return pid;
   }
 
+  /** Returns the offset within the page of the first byte of slot i. */
+  private int slotOffset(int i) {
+    return headerLen + i * td.getSize();
+  }
+
   /**
-   * Suck up tuples from the source file.
+   * Returns the offset within the page of the specified field of the
+   * tuple in slot slot.  Tuples are stored row by row, so all the fields
+   * of a slot are contiguous; PaxHeapPage overrides this to store pages
+   * column by column.
    */
-  private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-    // if associated bit is not set, read forward to the next tuple, and
-    // return null.
-    if (!isSlotUsed(slotId)) {
-      for (int i=0; i<td.getSize(); i++) {
-        try {
-          dis.readByte();
-        } catch (IOException e) {
-	    throw new NoSuchElementException("error reading empty tuple");
-        }
-      }
-      return null;
-    }
+  int fieldOffset(int slot, int field) {
+    return slotOffset(slot) + fieldOffsets[field];
+  }
 
-    // read fields in the tuple
+  /**
+   * Copy the original bytes of slot i into the page image out.
+   */
+  void copySlot(byte[] out, int i) {
+    readBytes(slotOffset(i), out, slotOffset(i), td.getSize());
+  }
+
+  /**
+   * Decode the tuple stored in slot slotId of the original page image.
+   */
+  private Tuple decodeTuple(int slotId) throws NoSuchElementException {
+    ByteBuffer buf = data.duplicate();
     Tuple t = new Tuple(td);
     RecordId rid = new RecordId(pid, slotId);
     t.setRecordId(rid);
     try {
 	for (int j=0; j<td.numFields(); j++) {
-	    Field f = td.getFieldType(j).parse(dis);
+	    buf.position(fieldOffset(slotId, j));
+	    Field f = td.getFieldType(j).parse(buf);
 	    t.setField(j, f);
       }
     } catch (java.text.ParseException e) {
@@ -144,6 +400,56 @@ public class HeapPage implements Page {
     return t;
   }
 
+  /**
+   * Returns the tuple in used slot i, decoding and caching it on first
+   * access.  Pages kept in a frame decode it on every access instead.
+   */
+  private Tuple getTuple(int i) {
+    Tuple t = cached(i);
+    if (t == null) {
+      t = decodeTuple(i);
+      if (!inFrame) {
+	tuples[i] = t;
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Returns one field of the tuple in the specified slot.  If that tuple has
+   * not been decoded yet, only the requested field is decoded and nothing is
+   * cached, which makes single-column access cheap.
+   *
+   * @param slot the slot holding the tuple
+   * @param field the index of the field within the tuple
+   * @throws NoSuchElementException if the slot is empty
+   */
+  public Field getField(int slot, int field) throws NoSuchElementException {
+    if (!isSlotUsed(slot)) {
+      throw new NoSuchElementException("slot " + slot + " is empty");
+    }
+    Tuple t = cached(slot);
+    if (t != null) {
+      return t.getField(field);
+    }
+    return parseField(slot, field);
+  }
+
+  /**
+   * Decode one field of slot slot from the original page image.
+   */
+  private Field parseField(int slot, int field) throws NoSuchElementException {
+    Type type = td.getFieldType(field);
+    ByteBuffer buf = data.duplicate();
+    buf.position(fieldOffset(slot, field));
+    try {
+      return type.parse(buf);
+    } catch (java.text.ParseException e) {
+      e.printStackTrace();
+      throw new NoSuchElementException("parsing error!");
+    }
+  }
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -156,64 +462,115 @@ public class HeapPage implements Page {
    * @return A byte array correspond to the bytes of this page.
    */
   public byte[] getPageData() {
-    int len = BufferPool.PAGE_SIZE;
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-    DataOutputStream dos = new DataOutputStream(baos);
-
-    // create the header of the page
-    for (int i=0; i<header.length; i++) {
-      try {
-        dos.writeByte(header[i]);
-      } catch (IOException e) {
-        // this really shouldn't happen
-        e.printStackTrace();
+    if (inFrame) {
+      synchronized (this) {
+	writeFrame();
+	byte[] out = new byte[BufferPool.PAGE_SIZE];
+	readBytes(0, out, 0, out.length);
+	return out;
       }
     }
+    return serialize().clone();
+  }
 
-    // create the tuples
-    for (int i=0; i<tuples.length; i++) {
-
-      // empty slot
-      if (!isSlotUsed(i)) {
-        for (int j=0; j<td.getSize(); j++) {
-          try {
-            dos.writeByte(0);
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-
-        }
-        continue;
-      }
-
-      // non-empty slot
-        for (int j=0; j<td.numFields(); j++) {
-	  Field f = tuples[i].getField(j);
-	  try {
-	    f.serialize(dos);
-	  } catch (IOException e) {
-	    e.printStackTrace();
+  /**
+   * Brings the frame this page is kept in up to date with the changes made
+   * to the page since it was last written, first saving the frame's
+   * contents as the before image if it still holds it.  Inserted tuples
+   * are written to their slots and then dropped from the Java heap;
+   * deleted slots only have their header bits cleared.
+   */
+  private synchronized void writeFrame() {
+    if (imageVersion == version) {
+      return;
+    }
+    if (oldData == null) {
+      oldData = new byte[BufferPool.PAGE_SIZE];
+      readBytes(0, oldData, 0, oldData.length);
+    }
+    for (int b=0; b<headerLen; b++) {
+      data.put(b, (byte) (header[b >>> 3] >>> ((b & 7) * 8)));
+    }
+    if (tuples != null) {
+      ByteBuffer buf = data.duplicate();
+      for (int i=0; i<numSlots; i++) {
+	if (tuples[i] != null && isSlotUsed(i)) {
+	  for (int j=0; j<td.numFields(); j++) {
+	    buf.position(fieldOffset(i, j));
+	    tuples[i].getField(j).serialize(buf);
 	  }
 	}
+      }
+      tuples = null;
     }
+    imageVersion = version;
+  }
 
-    // padding
-    int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); 
-    //- numSlots * td.getSize();
-    byte[] zeroes = new byte[zerolen];
-    try {
-      dos.write(zeroes, 0, zerolen);
-    } catch (IOException e) {
-      e.printStackTrace();
+  /**
+   * Moves this page out of its frame onto the Java heap, so that the frame
+   * can be reused while the page object may still be referenced, and
+   * returns the frame, or null if the page is not kept in one.
+   */
+  synchronized ByteBuffer leaveFrame() {
+    if (!inFrame) {
+      return null;
+    }
+    writeFrame();
+    byte[] copy = new byte[BufferPool.PAGE_SIZE];
+    readBytes(0, copy, 0, copy.length);
+    ByteBuffer frame = data;
+    if (oldData == null) {
+      oldData = copy;
     }
+    tuples = new Tuple[numSlots];
+    inFrame = false;
+    // data now matches the page, as when a page is read from disk
+    version = 0;
+    imageVersion = 0;
+    image = null;
+    // written last, so that a reader seeing the copy sees the rest too
+    data = ByteBuffer.wrap(copy);
+    return frame;
+  }
 
-    try {
-      dos.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
+  /**
+   * Returns the current page image.  The result is shared -- it may be the
+   * original page bytes or the image cached by the last call -- and must not
+   * be modified; getPageData hands out copies.
+   */
+  private synchronized byte[] serialize() {
+    own();
+    if (version == 0) {
+      return data.array();
+    }
+    if (image != null && imageVersion == version) {
+      return image;
     }
 
-    return baos.toByteArray();
+    // a fresh page-sized array is already zero in empty slots and padding
+    byte[] out = new byte[BufferPool.PAGE_SIZE];
+    for (int b=0; b<headerLen; b++) {
+      out[b] = (byte) (header[b >>> 3] >>> ((b & 7) * 8));
+    }
+    ByteBuffer buf = ByteBuffer.wrap(out);
+    for (int w=0; w<header.length; w++) {
+      for (long bits = header[w]; bits != 0; bits &= bits - 1) {
+        int i = w * 64 + Long.numberOfTrailingZeros(bits);
+        // non-empty slot that was never decoded: copy its original bytes
+        if (tuples[i] == null) {
+          copySlot(out, i);
+          continue;
+        }
+        for (int j=0; j<td.numFields(); j++) {
+          buf.position(fieldOffset(i, j));
+          tuples[i].getField(j).serialize(buf);
+        }
+      }
+    }
+
+    image = out;
+    imageVersion = version;
+    return out;
   }
 
   /**
@@ -244,7 +601,8 @@ public class HeapPage implements Page {
     if (!(r != null && (r.getPageId() == pid))) throw new DbException("Tuple not in page!");
     int slotId = r.tupleno();
     markSlotUsed(slotId, false);
-    tuples[slotId] = null;
+    // tuples[slotId] is left alone so that iterators created before this
+    // delete still return the tuple; the slot's cleared bit is what matters
     t.setRecordId(null);
   }
 
@@ -263,13 +621,11 @@ public class HeapPage implements Page {
       } else if (!t.getTupleDesc().equals(td)) {
 	  throw new DbException("TupleDesc mismatch!");
       } else {
-	  int i = 0;
-	  for(i = 0; i < numSlots; i++) {
-	      if (!isSlotUsed(i)) {
-		  break;
-	      }
-	  }
+	  int i = firstEmptySlot();
 	  RecordId r = new RecordId(pid, i);
+	  if (tuples == null) {
+	      tuples = new Tuple[numSlots];
+	  }
 	  tuples[i] = t;
 	  t.setRecordId(r);
 	  markSlotUsed(i, true);
@@ -301,14 +657,22 @@ public class HeapPage implements Page {
    */
   public int getNumEmptySlots() {
     // some code goes here
-    int total = 0;
-    int max = header.length * 8;
-    for (int i = 0; i < max; i++) {
-      if (total < numSlots && !isSlotUsed(i)) {
-        total++;
+    return numEmpty;
+  }
+
+  /**
+   * Returns the lowest-numbered empty slot, or -1 if the page is full.
+   */
+  private int firstEmptySlot() {
+    for (int w = 0; w < header.length; w++) {
+      long free = ~header[w];
+      if (free != 0) {
+        // bits past numSlots are clear in header, hence set in free
+        int i = w * 64 + Long.numberOfTrailingZeros(free);
+        return i < numSlots ? i : -1;
       }
     }
-    return total;
+    return -1;
   }
 
   /**
@@ -317,14 +681,10 @@ public class HeapPage implements Page {
   public boolean isSlotUsed(int i) {
     // some code goes here
 
-    // big endian, so the leftmost bit of a byte
-    // is the most significant
-    if (i < 0 || i > this.numSlots) {
+    if (i < 0 || i >= this.numSlots) {
 	throw new IllegalArgumentException("Invalid slot number.");
     }
-    int byteNum = (int) Math.floor(i / 8); // automatically floors it
-    int offset = i % 8;
-    return ((header[byteNum] & (1 << offset)) != 0);
+    return ((header[i >>> 6] >>> (i & 63)) & 1L) != 0;
   }
 
   /**
@@ -333,12 +693,16 @@ public class HeapPage implements Page {
   private void markSlotUsed(int i, boolean value) {
     // some code goes here
     // not necessary for lab1
-      int byteNum = i / 8;
-    int offset = i % 8;
-    if(value) {
-	header[byteNum] |= (1 << offset);
-    } else {
-	header[byteNum] &= ~(1 << offset);
+    own();
+    version++;
+    long bit = 1L << (i & 63);
+    boolean used = (header[i >>> 6] & bit) != 0;
+    if (value && !used) {
+	header[i >>> 6] |= bit;
+	numEmpty--;
+    } else if (!value && used) {
+	header[i >>> 6] &= ~bit;
+	numEmpty++;
     }
   }
 
@@ -348,29 +712,66 @@ public class HeapPage implements Page {
    */
   public Iterator<Tuple> iterator() {
     // some code goes here
+    return new SlotIterator();
+  }
+
+  /**
+   * Returns an iterator over some of the fields of the tuples on this page.
+   * Each returned tuple has TupleDesc projected, whose field i is field
+   * fields[i] of this page's tuples, and the RecordId of the tuple it was
+   * taken from.  Only the requested fields of tuples that have not been
+   * decoded yet are decoded, and nothing is cached.
+   *
+   * @param fields indexes of the fields to return, in order
+   * @param projected the TupleDesc of the returned tuples
+   */
+  public Iterator<Tuple> iterator(final int[] fields, final TupleDesc projected) {
+    return new SlotIterator() {
+	Tuple tupleAt(int slot) {
+	    Tuple t = new Tuple(projected);
+	    t.setRecordId(new RecordId(pid, slot));
+	    Tuple full = cached(slot);
+	    for (int i = 0; i < fields.length; i++) {
+		t.setField(i, full != null ? full.getField(fields[i])
+		                           : parseField(slot, fields[i]));
+	    }
+	    return t;
+	}
+    };
+  }
 
-    // create an ArrayList or other that has a .iterator() method
-    ArrayList<Tuple> tupleList = new ArrayList<Tuple>();
-    for (int i = 0; i < tuples.length; i++) {
-      if (isSlotUsed(i)) {
-        tupleList.add(tuples[i]);
+  /**
+   * Iterates over the slots that were used when the iterator was created,
+   * jumping between set bits of the slot bitmap a word at a time and
+   * decoding each tuple only when it is returned.
+   */
+  private class SlotIterator implements Iterator<Tuple> {
+
+      private final long[] used = header.clone();
+      private int word = 0;
+      // bits of used[word] not yet returned
+      private long bits = used.length > 0 ? used[0] : 0;
+
+      public boolean hasNext() {
+	  while (bits == 0 && word + 1 < used.length) {
+	      bits = used[++word];
+	  }
+	  return bits != 0;
       }
-    }
 
-    // return it
-    return (Iterator<Tuple>) new noRemove(tupleList.iterator());
-  }
+      public Tuple next() {
+	  if (!hasNext()) {
+	      throw new NoSuchElementException();
+	  }
+	  int slot = word * 64 + Long.numberOfTrailingZeros(bits);
+	  bits &= bits - 1;
+	  return tupleAt(slot);
+      }
 
-  private class noRemove implements Iterator<Tuple> {
-  
-      private Iterator<Tuple> iter;
-      public noRemove(Iterator<Tuple> wrapped)  {
-	  iter = wrapped;
+      Tuple tupleAt(int slot) {
+	  return getTuple(slot);
       }
 
-      public boolean hasNext() { return iter.hasNext(); }
-      public Tuple next() { return iter.next(); }
       public void remove() { throw new UnsupportedOperationException("does not support remove!"); }
   }
 }
-
@@ -0,0 +1,392 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager keeps the page-level locks with which the BufferPool
+ * enforces strict two-phase locking.  A transaction asking for a page
+ * READ_ONLY gets a shared lock on it and one asking READ_WRITE an
+ * exclusive lock; a transaction that holds the only shared lock on a page
+ * may upgrade it to an exclusive lock.  Locks are held until the
+ * transaction completes, or until released with {@link #release}.
+ * <p>
+ * The lock table is split into stripes by PageId, each guarded by its own
+ * monitor, so that transactions locking different pages rarely contend
+ * with one another.  A transaction that cannot be granted a lock waits on
+ * its stripe's monitor and is woken when a lock in the stripe is
+ * released.
+ * <p>
+ * Deadlocks are found with a wait-for graph, which has an edge from each
+ * waiting transaction to each transaction holding a lock that conflicts
+ * with the one it waits for.  A waiter's edges are updated whenever the
+ * lock it waits for changes hands.  Only a transaction starting to wait
+ * adds edges that can close a cycle, so that is when the graph is searched
+ * for a cycle through it.  When there is one, the VictimPolicy picks a
+ * transaction on the cycle to abort: if that is the transaction starting
+ * to wait, it gets a TransactionAbortedException at once, otherwise the
+ * victim is woken to get one from its own wait.  Short of a deadlock, a
+ * transaction waits for a lock for as long as it takes.
+ */
+public class LockManager {
+
+  /** Default number of stripes of the lock table. */
+  public static final int DEFAULT_STRIPES = 64;
+
+  /** Which transaction on a wait-for cycle to abort. */
+  public enum VictimPolicy {
+    /** The one that began last, i.e. with the highest TransactionId. */
+    YOUNGEST,
+    /**
+     * The one holding the fewest locks, as an estimate of the work lost
+     * by aborting it; the youngest of those if there is a tie.
+     */
+    FEWEST_LOCKS
+  }
+
+  private static class LockState {
+    // holder of the exclusive lock, or null
+    TransactionId exclusive;
+    // holders of shared locks
+    final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+    // transactions waiting for a lock on the page, and whether they want
+    // it exclusive
+    final HashMap<TransactionId, Boolean> waiting = new HashMap<TransactionId, Boolean>();
+
+    boolean unused() {
+      return exclusive == null && shared.isEmpty() && waiting.isEmpty();
+    }
+  }
+
+  private static class Stripe {
+    final HashMap<PageId, LockState> locks = new HashMap<PageId, LockState>();
+  }
+
+  private final Stripe[] stripes;
+  private final VictimPolicy policy;
+
+  // pages locked by each transaction
+  private final ConcurrentHashMap<TransactionId, Set<PageId>> held =
+    new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+  // the wait-for graph: for each waiting transaction, the transactions it
+  // waits for and the page it waits on.  Guarded by the monitor of
+  // waitsFor, which may be taken while holding a stripe's but not the
+  // other way around
+  private final HashMap<TransactionId, Set<TransactionId>> waitsFor =
+    new HashMap<TransactionId, Set<TransactionId>>();
+  private final HashMap<TransactionId, PageId> waitingOn = new HashMap<TransactionId, PageId>();
+  // transactions chosen to break a deadlock that have not yet noticed
+  private final Set<TransactionId> victims =
+    Collections.synchronizedSet(new HashSet<TransactionId>());
+
+  private final AtomicLong deadlocks = new AtomicLong();
+  private final AtomicLong victimAborts = new AtomicLong();
+
+  /**
+   * Creates a LockManager with DEFAULT_STRIPES stripes that aborts the
+   * youngest transaction of a deadlock.
+   */
+  public LockManager() {
+    this(DEFAULT_STRIPES, VictimPolicy.YOUNGEST);
+  }
+
+  /**
+   * Creates a LockManager.
+   *
+   * @param numStripes number of monitors to split the lock table over
+   * @param policy which transaction of a deadlock to abort
+   */
+  public LockManager(int numStripes, VictimPolicy policy) {
+    if (numStripes <= 0 || policy == null) {
+      throw new IllegalArgumentException();
+    }
+    stripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.policy = policy;
+  }
+
+  private Stripe stripe(PageId pid) {
+    int h = pid.hashCode();
+    h ^= (h >>> 16);
+    return stripes[(h & 0x7fffffff) % stripes.length];
+  }
+
+  /**
+   * Acquires a lock on the specified page for the specified transaction,
+   * shared for Permissions.READ_ONLY and exclusive for
+   * Permissions.READ_WRITE, waiting as long as another transaction holds a
+   * conflicting lock.  Returns at once if the transaction already holds a
+   * strong enough lock.
+   *
+   * @throws TransactionAbortedException if the transaction was chosen to
+   *           abort to break a deadlock, or was interrupted while waiting
+   */
+  public void acquire(TransactionId tid, PageId pid, Permissions perm)
+    throws TransactionAbortedException {
+    boolean exclusive = (perm == Permissions.READ_WRITE);
+    Stripe s = stripe(pid);
+    while (true) {
+      TransactionId victim;
+      synchronized (s) {
+	LockState l = s.locks.get(pid);
+	if (l == null) {
+	  l = new LockState();
+	  s.locks.put(pid, l);
+	}
+	if (grant(l, tid, exclusive)) {
+	  if (l.waiting.remove(tid) != null) {
+	    stopWaiting(tid);
+	  }
+	  heldBy(tid).add(pid);
+	  updateWaiters(pid, l);
+	  return;
+	}
+	if (victims.remove(tid)) {
+	  abandon(tid, pid, l, s);
+	  victimAborts.incrementAndGet();
+	  throw new TransactionAbortedException();
+	}
+	l.waiting.put(tid, exclusive);
+	updateWaiters(pid, l);
+	victim = findVictim(tid);
+	if (victim == null) {
+	  try {
+	    s.wait();
+	  } catch (InterruptedException e) {
+	    abandon(tid, pid, l, s);
+	    Thread.currentThread().interrupt();
+	    throw new TransactionAbortedException();
+	  } catch (Error e) {
+	    // ThreadDeath, from stopping a blocked thread
+	    abandon(tid, pid, l, s);
+	    throw e;
+	  }
+	  continue;
+	}
+	if (victim.equals(tid)) {
+	  victims.remove(tid);
+	  abandon(tid, pid, l, s);
+	  victimAborts.incrementAndGet();
+	  throw new TransactionAbortedException();
+	}
+      }
+      // wake the victim to abort, and wait again
+      PageId victimPage;
+      synchronized (waitsFor) {
+	victimPage = waitingOn.get(victim);
+      }
+      if (victimPage != null) {
+	Stripe vs = stripe(victimPage);
+	synchronized (vs) {
+	  vs.notifyAll();
+	}
+      }
+    }
+  }
+
+  /**
+   * Grants tid the lock on l if that does not conflict with other
+   * holders.  Returns true if tid now holds the lock.
+   */
+  private static boolean grant(LockState l, TransactionId tid, boolean exclusive) {
+    if (l.exclusive != null) {
+      // an exclusive lock also covers reads
+      return l.exclusive.equals(tid);
+    }
+    if (!exclusive) {
+      l.shared.add(tid);
+      return true;
+    }
+    if (l.shared.isEmpty() || (l.shared.size() == 1 && l.shared.contains(tid))) {
+      // new lock, or upgrade of tid's own shared lock
+      l.shared.remove(tid);
+      l.exclusive = tid;
+      return true;
+    }
+    return false;
+  }
+
+  /** Stops tid waiting for the lock on pid.  Called holding s. */
+  private void abandon(TransactionId tid, PageId pid, LockState l, Stripe s) {
+    l.waiting.remove(tid);
+    stopWaiting(tid);
+    if (l.unused()) {
+      s.locks.remove(pid);
+    }
+  }
+
+  private void stopWaiting(TransactionId tid) {
+    synchronized (waitsFor) {
+      waitsFor.remove(tid);
+      waitingOn.remove(tid);
+    }
+  }
+
+  /**
+   * Sets the wait-for edges of the transactions waiting for the lock on
+   * pid, whose state is l.  Called holding the page's stripe.
+   */
+  private void updateWaiters(PageId pid, LockState l) {
+    if (l.waiting.isEmpty()) {
+      return;
+    }
+    synchronized (waitsFor) {
+      for (Map.Entry<TransactionId, Boolean> w : l.waiting.entrySet()) {
+	TransactionId tid = w.getKey();
+	HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+	if (l.exclusive != null) {
+	  blockers.add(l.exclusive);
+	} else if (w.getValue()) {
+	  blockers.addAll(l.shared);
+	}
+	blockers.remove(tid);
+	waitsFor.put(tid, blockers);
+	waitingOn.put(tid, pid);
+      }
+    }
+  }
+
+  /**
+   * Looks for a cycle through tid in the wait-for graph, and if there is
+   * one, marks and returns the transaction on it to abort.
+   *
+   * @return the victim, or null if tid is not deadlocked
+   */
+  private TransactionId findVictim(TransactionId tid) {
+    synchronized (waitsFor) {
+      ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+      if (!findPath(tid, tid, cycle, new HashSet<TransactionId>())) {
+	return null;
+      }
+      deadlocks.incrementAndGet();
+      TransactionId victim = chooseVictim(cycle);
+      victims.add(victim);
+      return victim;
+    }
+  }
+
+  /**
+   * Looks for a path in the wait-for graph from from to to, appending it
+   * to path.  Victims that have not yet aborted are skipped, since the
+   * cycles through them are already being broken.  Called holding
+   * waitsFor.
+   */
+  private boolean findPath(TransactionId from, TransactionId to,
+      List<TransactionId> path, Set<TransactionId> visited) {
+    path.add(from);
+    Set<TransactionId> next = waitsFor.get(from);
+    if (next != null) {
+      for (TransactionId t : next) {
+	if (victims.contains(t)) {
+	  continue;
+	}
+	if (t.equals(to)) {
+	  return true;
+	}
+	if (visited.add(t) && findPath(t, to, path, visited)) {
+	  return true;
+	}
+      }
+    }
+    path.remove(path.size() - 1);
+    return false;
+  }
+
+  private TransactionId chooseVictim(List<TransactionId> cycle) {
+    TransactionId victim = null;
+    int victimLocks = 0;
+    for (TransactionId t : cycle) {
+      int locks = 0;
+      if (policy == VictimPolicy.FEWEST_LOCKS) {
+	Set<PageId> pages = held.get(t);
+	locks = (pages == null) ? 0 : pages.size();
+      }
+      if (victim == null || locks < victimLocks
+	  || (locks == victimLocks && t.getId() > victim.getId())) {
+	victim = t;
+	victimLocks = locks;
+      }
+    }
+    return victim;
+  }
+
+  private Set<PageId> heldBy(TransactionId tid) {
+    Set<PageId> pages = held.get(tid);
+    if (pages == null) {
+      Set<PageId> created = Collections.synchronizedSet(new HashSet<PageId>());
+      pages = held.putIfAbsent(tid, created);
+      if (pages == null) {
+	pages = created;
+      }
+    }
+    return pages;
+  }
+
+  /**
+   * Releases the lock of the specified transaction on the specified page,
+   * if it holds one.
+   */
+  public void release(TransactionId tid, PageId pid) {
+    Set<PageId> pages = held.get(tid);
+    if (pages != null) {
+      pages.remove(pid);
+    }
+    unlock(tid, pid);
+  }
+
+  private void unlock(TransactionId tid, PageId pid) {
+    Stripe s = stripe(pid);
+    synchronized (s) {
+      LockState l = s.locks.get(pid);
+      if (l == null) {
+	return;
+      }
+      if (l.exclusive != null && l.exclusive.equals(tid)) {
+	l.exclusive = null;
+      }
+      l.shared.remove(tid);
+      if (l.unused()) {
+	s.locks.remove(pid);
+      } else if (!l.waiting.isEmpty()) {
+	updateWaiters(pid, l);
+	s.notifyAll();
+      }
+    }
+  }
+
+  /** Releases all locks held by the specified transaction. */
+  public void releaseAll(TransactionId tid) {
+    victims.remove(tid);
+    Set<PageId> pages = held.remove(tid);
+    if (pages == null) {
+      return;
+    }
+    PageId[] pids;
+    synchronized (pages) {
+      pids = pages.toArray(new PageId[pages.size()]);
+    }
+    for (PageId pid : pids) {
+      unlock(tid, pid);
+    }
+  }
+
+  /** Returns true if the specified transaction has a lock on the specified page. */
+  public boolean holdsLock(TransactionId tid, PageId pid) {
+    Set<PageId> pages = held.get(tid);
+    return pages != null && pages.contains(pid);
+  }
+
+  /** Returns the number of deadlocks found so far. */
+  public long getDeadlocks() {
+    return deadlocks.get();
+  }
+
+  /** Returns the number of transactions aborted to break deadlocks so far. */
+  public long getVictimAborts() {
+    return victimAborts.get();
+  }
+}
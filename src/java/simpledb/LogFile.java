@@ -2,7 +2,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.reflect.*;
 
 /**
@@ -17,8 +22,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -51,24 +56,103 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+read with the LogFile.readPageData() method.  See LogFile.print() for
+an example.
+
+<li> SLOT_UPDATE records log the change to a HeapPage slot by slot,
+instead of as two page images: an integer table id and page number, an
+integer tuple size, and an integer count of changed slots, each as an
+integer slot number followed by the slot before and after the change.
+A slot is a byte, 1 if it is used and 0 if it is empty, followed by the
+tuple's bytes if it is used.  logWrite writes a SLOT_UPDATE record rather
+than an UPDATE record when both images are HeapPages, so that inserting
+one tuple logs its bytes rather than two pages.  Recovery redoes a slot
+change by storing the after slot in the page on disk, and undoes it by
+storing the before slot.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
+the checkpoint was taken and their first log record on disk, the dirty
+page table, and the offset recovery starts redoing from.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction, then an integer count of dirty pages, with
+an integer table id, an integer page number and a long integer recovery
+offset (the offset of the oldest record of a change to the page that may
+not be on disk yet) for each, and last the long integer redo offset:
+the smallest of these offsets and of the checkpoint's own.
 
 </ul>
 
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are not written to the file one field at a time as they are
+appended: they are encoded into an in-memory log buffer, which is
+written out in one large sequential write when it fills up or the log
+is forced.  Its size is the system property simpledb.LogFile.bufferSize
+(bytes, default 1 MB); a record larger than the buffer grows it.  Every
+record has a log sequence number (LSN), its offset in the log as if the
+log had never been truncated, so that LSNs only grow and stay the same
+when logTruncate moves records.  logWrite returns the LSN of its record,
+and force(lsn) returns at once if that record is already on disk, and
+otherwise forces the log, sharing the force with concurrent callers as
+logCommit does.  Readers of the log file must write out the buffer
+first (see writeBuffer).
+<p>
+
+<u> Group commit: </u>
+<p>
+
+logCommit appends the COMMIT record under the LogFile's monitor, but
+waits for it to be forced to disk outside it, so that other
+transactions can append their records meanwhile.  The first committer
+to wait becomes the leader: if other transactions are active, it waits
+up to the maximum group commit delay for more committers, or until the
+batch reaches its maximum size, then forces the log once for everyone
+that has appended so far.
+Committers arriving while it forces wait for the next leader.  The
+delay and batch size default to the system properties
+simpledb.LogFile.groupCommitDelay (microseconds, default 0: don't wait,
+only batch the commits that arrive during a force) and
+simpledb.LogFile.groupCommitBatch (default 64), and can be changed with
+setGroupCommit.  A batch size of 1 turns group commit off: each
+logCommit forces the log itself, holding the monitor.
+<p>
+
+<u> Checkpoints: </u>
+<p>
+
+Pages reach their table files some time after their transaction
+commits, when the BufferPool's PageWriter writes them (or when
+flushAllPages does), after the records of their changes, and the files
+are forced to disk only now and then, so the log keeps a dirty page
+table: the pages committed or written since their file was last forced,
+each with the LSN of its oldest change that may not be on disk (its
+recLSN).  syncPages forces the files of the pages written and removes
+them from the table; committed pages stay until they are written.
+Checkpoints are fuzzy: logCheckpoint writes out the committed pages
+waiting in the BufferPool and forces the files written so far, but
+writes no uncommitted page nor takes the BufferPool's monitor, and holds
+the LogFile's monitor only to append its record, with the active
+transactions and the dirty page table, and to drop the log before the
+record's redo offset.  Recovery redoes committed changes
+from the redo offset of the last checkpoint on.
+<p>
+
+A background writer (see Checkpointer) forces the files written every
+tick, so that pages trickle out to disk instead of waiting for a
+checkpoint, and takes a checkpoint every
+simpledb.LogFile.checkpointInterval milliseconds, or whenever the log
+grows by simpledb.LogFile.checkpointBytes bytes, whichever comes first.
+Both default to 0, which turns that trigger off; the policy can be
+changed with setCheckpointPolicy.
 */
 
 public class LogFile {
@@ -82,6 +166,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_UPDATE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     static int INT_SIZE = 4;
@@ -93,6 +178,84 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Default size of the log buffer, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    // records appended since the last write to the file, which ends at
+    // writtenOffset; guarded by the LogFile's monitor, as are the counters
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(
+        Integer.getInteger("simpledb.LogFile.bufferSize", DEFAULT_BUFFER_SIZE));
+    private long writtenOffset;
+    // LSN of file offset 0: the number of bytes truncated from the log
+    private long lsnBase;
+    private long fileWrites;
+    private long bytesWritten;
+
+    // constructors of the page and page id classes named in the log
+    private static final Map<String,Constructor<?>> constructors =
+        new ConcurrentHashMap<String,Constructor<?>>();
+
+    /** Default maximum number of commits forced together. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+
+    // group commit policy; see setGroupCommit
+    private volatile long groupCommitDelayNanos =
+        Long.getLong("simpledb.LogFile.groupCommitDelay", 0L) * 1000L;
+    private volatile int groupCommitBatch =
+        Integer.getInteger("simpledb.LogFile.groupCommitBatch",
+                           DEFAULT_GROUP_COMMIT_BATCH);
+
+    // group commit state, guarded by groupLock, which may be taken while
+    // holding the LogFile's monitor but not the other way around.  Records
+    // with LSNs below durableLsn are known to be on disk.  A lock rather
+    // than a monitor for awaitNanos: Object.wait rounds sub-millisecond
+    // delays up to a millisecond
+    private final ReentrantLock groupLock = new ReentrantLock();
+    private final Condition groupChanged = groupLock.newCondition();
+    private long durableLsn;
+    private boolean forcing;
+    // committers waiting for their COMMIT record to be forced
+    private int waiting;
+    private long forces;
+    private long groupedCommits;
+
+    // dirty page table: pages written to their files since the files were
+    // last forced, with the LSN of their oldest unforced change, the pages
+    // of the files being forced by syncPages, and the pages committed but
+    // not yet written, with the LSN of their oldest unwritten change;
+    // guarded by
+    // dirtyPagesLock, which may be taken while holding the LogFile's
+    // monitor.  syncLock lets one syncPages run at a time
+    private final Object dirtyPagesLock = new Object();
+    private HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+    private HashMap<PageId,Long> syncingPages = new HashMap<PageId,Long>();
+    private final HashMap<PageId,Long> committedPages = new HashMap<PageId,Long>();
+    private final Object syncLock = new Object();
+
+    // serializes checkpoints and truncations; taken before the monitor
+    private final Object checkpointLock = new Object();
+    private volatile long checkpoints;
+
+    // checkpoint policy and the background writer applying it, guarded by
+    // policyLock, which may be taken while holding the LogFile's monitor.
+    // The writer is started once the log is in use (see preAppend)
+    private final Object policyLock = new Object();
+    private long checkpointInterval =
+        Long.getLong("simpledb.LogFile.checkpointInterval", 0L);
+    private long checkpointBytes =
+        Long.getLong("simpledb.LogFile.checkpointBytes", 0L);
+    private Checkpointer checkpointer;
+    private boolean inUse;
+    private boolean shutDown;
+
+    /** Default number of threads recover() recovers pages with. */
+    public static final int DEFAULT_RECOVERY_THREADS = 4;
+
+    // what the last recovery did
+    private volatile int redoneRecords;
+    private volatile int skippedRecords;
+    private volatile int recoveredPages;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -130,9 +293,89 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.clear();
+            writtenOffset = raf.length();
+            currentOffset = writtenOffset;
+            startCheckpointer(getCurrentLsn());
+        }
+    }
+
+    /** Starts a record of the specified type and transaction in the log
+        buffer, making room for bodySize bytes of data after its header.
+
+        @return the offset of the record
+    */
+    private long startRecord(int type, long tid, int bodySize)
+        throws IOException {
+        int size = INT_SIZE + LONG_SIZE + bodySize + LONG_SIZE;
+        if (buffer.remaining() < size) {
+            writeBuffer();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+        }
+        long start = currentOffset;
+        buffer.putInt(type);
+        buffer.putLong(tid);
+        return start;
+    }
+
+    /** Ends the record started at offset start in the log buffer.
+
+        @return the LSN of the record
+    */
+    private long endRecord(long start) {
+        buffer.putLong(start);
+        currentOffset = writtenOffset + buffer.position();
+        return start + lsnBase;
+    }
+
+    /** Writes the records in the log buffer to the log file, without
+        forcing them to disk.  Must be called before reading the file. */
+    synchronized void writeBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
         }
+        buffer.flip();
+        FileChannel channel = raf.getChannel();
+        while (buffer.hasRemaining()) {
+            int n = channel.write(buffer, writtenOffset);
+            writtenOffset += n;
+            bytesWritten += n;
+            fileWrites++;
+        }
+        buffer.clear();
+    }
+
+    /** Returns the number of writes to the log file so far. */
+    public synchronized long getFileWrites() {
+        return fileWrites;
+    }
+
+    /** Returns the number of bytes of log records written so far. */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the LSN the next record appended to the log will get. */
+    public synchronized long getCurrentLsn() {
+        return currentOffset + lsnBase;
+    }
+
+    /** Returns the LSN up to which records are known to be on disk. */
+    public long getDurableLsn() {
+        groupLock.lock();
+        try {
+            return durableLsn;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** Returns true if tid has written a BEGIN record and no COMMIT or
+        ABORT record since. */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
     public int getTotalRecords() {
@@ -158,10 +401,7 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                endRecord(startRecord(ABORT_RECORD, tid.getId(), 0));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,35 +409,200 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with other
+        transactions committing at the same time (see the class
+        comment on group commit).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        boolean others;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT %d", tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = endRecord(startRecord(COMMIT_RECORD, tid.getId(), 0));
+            tidToFirstLogRecord.remove(tid.getId());
+            if (groupCommitBatch <= 1) {
+                force();
+                return;
+            }
+            others = !tidToFirstLogRecord.isEmpty();
+        }
+        awaitForce(lsn, others);
+    }
+
+    /** Forces the log to disk up to and including the record with the
+        specified LSN, unless it is already there.  The force is shared
+        with transactions committing at the same time (see the class
+        comment on group commit).
+
+        @param lsn The LSN of a record, e.g. as returned by logWrite
+    */
+    public void force(long lsn) throws IOException {
+        if (groupCommitBatch <= 1) {
+            synchronized (this) {
+                if (!isForced(lsn)) {
+                    force();
+                }
+            }
+            return;
+        }
+        awaitForce(lsn, false);
+    }
+
+    /** Returns once the log up to the record with the specified LSN is on
+        disk, forcing it if no other committer is doing so.  If others,
+        other transactions were active when the record was appended, and
+        are worth waiting for before forcing. */
+    private void awaitForce(long lsn, boolean others)
+        throws IOException {
+        groupLock.lock();
+        try {
+            waiting++;
+            groupChanged.signalAll();
+            try {
+                while (forcing && !isForced(lsn)) {
+                    groupChanged.awaitUninterruptibly();
+                }
+                if (isForced(lsn)) {
+                    groupedCommits++;
+                    return;
+                }
+                // lead the next force, giving others a moment to
+                // append their records first
+                forcing = true;
+                long left = others ? groupCommitDelayNanos : 0;
+                while (waiting < groupCommitBatch && left > 0) {
+                    try {
+                        left = groupChanged.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        // the commit must still be forced; stop waiting
+                        // for company and keep the interrupt
+                        Thread.currentThread().interrupt();
+                        left = 0;
+                    }
+                }
+            } finally {
+                waiting--;
+            }
+        } finally {
+            groupLock.unlock();
+        }
+        // the force covers everything appended so far, lsn included
+        leadForce();
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    private boolean isForced(long lsn) {
+        groupLock.lock();
+        try {
+            return durableLsn > lsn;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** Records that the log is on disk up to LSN lsn. */
+    private void markDurable(long lsn) {
+        groupLock.lock();
+        try {
+            durableLsn = Math.max(durableLsn, lsn);
+            groupChanged.signalAll();
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** Forces everything appended so far, as the leader of a group of
+        committers, without holding the LogFile's monitor. */
+    private void leadForce() throws IOException {
+        long target;
+        FileChannel channel;
+        synchronized (this) {
+            writeBuffer();
+            target = currentOffset + lsnBase;
+            channel = raf.getChannel();
+        }
+        IOException error = null;
+        boolean forced = false;
+        try {
+            channel.force(true);
+            forced = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                // a truncation closes the channel, but forces the new log,
+                // target included, before it lets go of the monitor
+                if (raf.getChannel() == channel) {
+                    error = e;
+                }
+            }
+        }
+        groupLock.lock();
+        try {
+            forcing = false;
+            if (forced) {
+                durableLsn = Math.max(durableLsn, target);
+                forces++;
+            }
+            groupChanged.signalAll();
+        } finally {
+            groupLock.unlock();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /** Sets the group commit policy: a committer leading a force waits
+        up to maxDelayMicros for up to maxBatch committers, itself
+        included, to join it.  maxBatch 1 turns group commit off. */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        if (maxDelayMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("bad group commit policy");
+        }
+        groupCommitDelayNanos = maxDelayMicros * 1000L;
+        groupCommitBatch = maxBatch;
+    }
+
+    /** Returns the number of log forces done by group commit leaders. */
+    public long getGroupForces() {
+        groupLock.lock();
+        try {
+            return forces;
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /** Returns the number of commits that found their record already
+        forced by another committer's force. */
+    public long getGroupedCommits() {
+        groupLock.lock();
+        try {
+            return groupedCommits;
+        } finally {
+            groupLock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The record is
+        only appended to the log buffer; force it before writing the
+        page.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the record
 
         @see simpledb.Page#getBeforeImage
+        @see #force(long)
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = %d", currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,21 +612,85 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        int[] beforeId = before.getId().serialize();
+        byte[] beforeData = before.getPageData();
+        int[] afterId = after.getId().serialize();
+        byte[] afterData = after.getPageData();
+        if (isSlotPage(before) && isSlotPage(after) &&
+            before.getId().equals(after.getId())) {
+            long lsn = logSlotUpdate(tid, (HeapPage) after, beforeData,
+                                     afterData);
+            Debug.log("WRITE OFFSET = %d", currentOffset);
+            return lsn;
+        }
+        long start = startRecord(UPDATE_RECORD, tid.getId(),
+                                 pageDataSize(before, beforeId, beforeData) +
+                                 pageDataSize(after, afterId, afterData));
+        writePageData(before, beforeId, beforeData);
+        writePageData(after, afterId, afterData);
+        long lsn = endRecord(start);
+
+        Debug.log("WRITE OFFSET = %d", currentOffset);
+        return lsn;
+    }
+
+    /** Returns true if changes to p can be logged slot by slot: p is a
+        HeapPage, whose tuples are stored row by row. */
+    private static boolean isSlotPage(Page p) {
+        return p.getClass() == HeapPage.class &&
+            p.getId().getClass() == HeapPageId.class;
+    }
+
+    /** Appends a SLOT_UPDATE record of the slots that differ between the
+        page images before and after of page p. */
+    private long logSlotUpdate(TransactionId tid, HeapPage p, byte[] before,
+                               byte[] after) throws IOException {
+        TupleDesc td = p.td;
+        int size = td.getSize();
+        int[] slots = HeapPage.changedSlots(td, before, after);
+        int bodySize = 4 * INT_SIZE;
+        for (int slot : slots) {
+            bodySize += INT_SIZE + slotSize(before, slot, size) +
+                slotSize(after, slot, size);
+        }
+        long start = startRecord(SLOT_UPDATE_RECORD, tid.getId(), bodySize);
+        buffer.putInt(p.getId().getTableId());
+        buffer.putInt(p.getId().pageNumber());
+        buffer.putInt(size);
+        buffer.putInt(slots.length);
+        for (int slot : slots) {
+            buffer.putInt(slot);
+            putSlot(td, before, slot);
+            putSlot(td, after, slot);
+        }
+        return endRecord(start);
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    private static int slotSize(byte[] data, int slot, int tupleSize) {
+        return 1 + (HeapPage.isSlotUsed(data, slot) ? tupleSize : 0);
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Appends slot slot of the page image data to the log buffer. */
+    private void putSlot(TupleDesc td, byte[] data, int slot) {
+        if (HeapPage.isSlotUsed(data, slot)) {
+            buffer.put((byte) 1);
+            buffer.put(data, HeapPage.slotOffset(td, slot), td.getSize());
+        } else {
+            buffer.put((byte) 0);
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Returns the size of page p, with id data pageInfo and page data
+        pageData, in the log (see writePageData). */
+    static int pageDataSize(Page p, int[] pageInfo, byte[] pageData) {
+        return utfSize(p.getClass().getName()) +
+            utfSize(p.getId().getClass().getName()) +
+            INT_SIZE + pageInfo.length * INT_SIZE + INT_SIZE + pageData.length;
+    }
 
+    /** Appends page p, with id data pageInfo and page data pageData, to
+        the log buffer, which has room for it. */
+    private void writePageData(Page p, int[] pageInfo, byte[] pageData) {
         //page data is:
         // page class name
         // id class name
@@ -230,23 +699,47 @@ public class LogFile {
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        putUTF(p.getClass().getName());
+        putUTF(p.getId().getClass().getName());
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        buffer.putInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            buffer.putInt(pageInfo[i]);
+        }
+        buffer.putInt(pageData.length);
+        buffer.put(pageData);
+    }
+
+    /** Returns the size of s in the modified UTF-8 of
+        DataOutput.writeUTF, length included. */
+    private static int utfSize(String s) {
+        int size = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            size += (c >= 0x0001 && c <= 0x007f) ? 1 : (c <= 0x07ff ? 2 : 3);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        return size;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    /** Appends s to the log buffer as DataOutput.writeUTF would. */
+    private void putUTF(String s) {
+        buffer.putShort((short) (utfSize(s) - 2));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07ff) {
+                buffer.put((byte) (0xc0 | ((c >> 6) & 0x1f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                buffer.put((byte) (0xe0 | ((c >> 12) & 0x0f)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -254,28 +747,23 @@ public class LogFile {
         String idClassName = raf.readUTF();
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+                idArgs[i] = Integer.valueOf(raf.readInt());
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            pid = (PageId)constructor(idClassName, false).newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)constructor(pageClassName, true).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +783,72 @@ public class LogFile {
 
     }
 
+    /** Copies page data from in to out without decoding it. */
+    static void copyPageData(DataInput in, DataOutput out)
+        throws IOException {
+        out.writeUTF(in.readUTF());
+        out.writeUTF(in.readUTF());
+        int numIdArgs = in.readInt();
+        out.writeInt(numIdArgs);
+        for (int i = 0; i < numIdArgs; i++) {
+            out.writeInt(in.readInt());
+        }
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
+
+    /** Copies the body of a SLOT_UPDATE record from in to out. */
+    static void copySlotData(DataInput in, DataOutput out) throws IOException {
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+        int size = in.readInt();
+        out.writeInt(size);
+        int count = in.readInt();
+        out.writeInt(count);
+        byte[] tuple = new byte[size];
+        for (int i = 0; i < count; i++) {
+            out.writeInt(in.readInt());
+            for (int side = 0; side < 2; side++) {
+                byte used = in.readByte();
+                out.writeByte(used);
+                if (used != 0) {
+                    in.readFully(tuple);
+                    out.write(tuple);
+                }
+            }
+        }
+    }
+
+    /** Returns the constructor of the named page class, or of the named
+        page id class if not page, looking it up only once. */
+    private static Constructor<?> constructor(String className, boolean page)
+        throws ClassNotFoundException, IOException {
+        Constructor<?> c = constructors.get(className);
+        if (c == null) {
+            Class<?> cls = Class.forName(className);
+            c = page ? pageConstructor(cls) : cls.getDeclaredConstructors()[0];
+            constructors.put(className, c);
+        }
+        return c;
+    }
+
+    /** Find the Page(PageId, byte[]) constructor that every page class
+        must provide; page classes may declare other constructors too. */
+    static Constructor<?> pageConstructor(Class<?> pageClass)
+        throws IOException {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0])
+                && params[1] == byte[].class) {
+                return c;
+            }
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " +
+                              pageClass.getName());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +861,399 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = startRecord(BEGIN_RECORD, tid.getId(), 0);
+        tidToFirstLogRecord.put(tid.getId(), start);
+        endRecord(start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy (see the class comment): it writes out committed pages
+        and forces the table files written so far, but writes no
+        uncommitted pages, so that queries and commits go on while it
+        runs. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            // the fewer pages left to write and force, the later recovery
+            // can start redoing
+            if (Database.getLogFile() == this) {
+                Database.getBufferPool().writeCommittedPages();
+            }
+            syncPages();
+            WarmStart.save();
+            long startCpOffset;
+            long lsn;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                HashMap<Long,Long> active = new HashMap<Long,Long>(tidToFirstLogRecord);
+                Map<PageId,Long> dirty = getDirtyPageTable();
+                long redoOffset = currentOffset;
+                for (Long first : active.values()) {
+                    redoOffset = Math.min(redoOffset, first);
+                }
+                for (Long recLsn : dirty.values()) {
+                    redoOffset = Math.min(redoOffset, recLsn - lsnBase);
+                }
+                //no tid , but leave space for convenience
+                startCpOffset = startRecord(CHECKPOINT_RECORD, -1,
+                                            INT_SIZE + active.size() * 2 * LONG_SIZE +
+                                            INT_SIZE + dirty.size() * (2 * INT_SIZE + LONG_SIZE) +
+                                            LONG_SIZE);
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                buffer.putInt(active.size());
+                for (Map.Entry<Long,Long> e : active.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: %d", e.getKey());
+                    buffer.putLong(e.getKey());
+                    buffer.putLong(e.getValue());
+                }
+                //and the dirty page table, by offset rather than LSN
+                buffer.putInt(dirty.size());
+                for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                    buffer.putInt(e.getKey().getTableId());
+                    buffer.putInt(e.getKey().pageNumber());
+                    buffer.putLong(e.getValue() - lsnBase);
                 }
+                buffer.putLong(redoOffset);
+                lsn = endRecord(startCpOffset);
+            }
+            force(lsn);
 
-                //once the CP is written, make sure the CP location at the
+            synchronized (this) {
+                //once the CP is on disk, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
+                truncate();
             }
+            checkpoints++;
         }
+    }
 
-        logTruncate();
+    /** Returns the number of checkpoints taken so far. */
+    public long getCheckpoints() {
+        return checkpoints;
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
-    public synchronized void logTruncate() throws IOException {
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            truncate();
+        }
+    }
+
+    /** Drops the log before the redo offset of the last checkpoint.
+        Callers hold checkpointLock, so that the checkpoint doesn't move
+        meanwhile. */
+    private synchronized void truncate() throws IOException {
         preAppend();
+        writeBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // nothing before a checkpoint to drop
+            return;
+        }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        raf.seek(cpLoc);
+        int cpType = raf.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = raf.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+
+        // the redo offset is no later than the first record of any
+        // transaction outstanding at the checkpoint
+        int numOutstanding = raf.readInt();
+        raf.seek(raf.getFilePointer() + numOutstanding * 2 * LONG_SIZE);
+        int numDirty = raf.readInt();
+        raf.seek(raf.getFilePointer() + numDirty * (2 * INT_SIZE + LONG_SIZE));
+        long minLogRecord = raf.readLong();
+
+        if (minLogRecord <= LONG_SIZE) {
+            // a transaction or an unforced page change still needs the
+            // whole log; copying it would drop nothing
+            return;
+        }
+
+        // we can truncate everything before minLogRecord; copy the rest
+        // through buffered streams, record by record, without decoding
+        // page images
+        File newFile = File.createTempFile("logtmp", null,
+                                           logFile.getAbsoluteFile().getParentFile());
+        DataOutputStream logNew = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(newFile), 1 << 16));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(logFile), 1 << 16));
+        try {
+            logNew.writeLong(moved(cpLoc, minLogRecord));
+
+            long skip = minLogRecord;
+            while (skip > 0) {
+                long n = in.skip(skip);
+                if (n <= 0) {
+                    throw new EOFException("log shorter than its records");
+                }
+                skip -= n;
             }
 
-            int numOutstanding = raf.readInt();
+            //have to rewrite log records since offsets are different after truncation
+            while (true) {
+                try {
+                    int type = in.readInt();
+                    long record_tid = in.readLong();
+                    long newStart = logNew.size();
+
+                    Debug.log("NEW START = %d", newStart);
+                    logNew.writeInt(type);
+                    logNew.writeLong(record_tid);
+
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        copyPageData(in, logNew);
+                        copyPageData(in, logNew);
+                        break;
+                    case SLOT_UPDATE_RECORD:
+                        copySlotData(in, logNew);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = in.readInt();
+                        logNew.writeInt(numXactions);
+                        while (numXactions-- > 0) {
+                            long xid = in.readLong();
+                            long xoffset = in.readLong();
+                            logNew.writeLong(xid);
+                            logNew.writeLong(moved(xoffset, minLogRecord));
+                        }
+                        int numPages = in.readInt();
+                        logNew.writeInt(numPages);
+                        while (numPages-- > 0) {
+                            logNew.writeInt(in.readInt());
+                            logNew.writeInt(in.readInt());
+                            logNew.writeLong(moved(in.readLong(), minLogRecord));
+                        }
+                        logNew.writeLong(moved(in.readLong(), minLogRecord));
+                        break;
+                    case BEGIN_RECORD:
+                        // transactions that finished since keep out
+                        if (tidToFirstLogRecord.containsKey(record_tid)) {
+                            tidToFirstLogRecord.put(record_tid,newStart);
+                        }
+                        break;
+                    }
+
+                    //all xactions finish with a pointer
+                    logNew.writeLong(newStart);
+                    in.readLong();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+                } catch (EOFException e) {
+                    break;
                 }
             }
+        } finally {
+            in.close();
+            logNew.close();
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        Debug.log("TRUNCATING LOG;  WAS %d BYTES ; NEW START : %d NEW LENGTH: %d",
+                  writtenOffset, minLogRecord, writtenOffset - minLogRecord);
+
+        raf.close();
+        logFile.delete();
+        newFile.renameTo(logFile);
+        raf = new RandomAccessFile(logFile, "rw");
+        newFile.delete();
+
+        // records keep their LSNs at their new offsets
+        lsnBase += minLogRecord - LONG_SIZE;
+        writtenOffset = raf.length();
+        currentOffset = writtenOffset;
+        // make sure the new log is on disk, so that committers waiting on
+        // the old one can go
+        raf.getChannel().force(true);
+        markDurable(currentOffset + lsnBase);
+        //print();
+    }
 
-        raf.seek(minLogRecord);
+    /** Returns the offset that the record at offset moves to when the
+        log before minLogRecord is dropped; offsets of records dropped,
+        which older checkpoints may refer to, move to the start. */
+    private static long moved(long offset, long minLogRecord) {
+        return Math.max(offset - minLogRecord, 0) + LONG_SIZE;
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    /** Records that page pid has been written to its table file, which
+        has yet to be forced to disk, after the log record with LSN lsn
+        of its latest change.  BufferPool calls this after writing a page
+        whose change it logged, so that the record stays in the log until
+        the page is forced (see syncPages). */
+    public void pageWritten(PageId pid, long lsn) {
+        synchronized (dirtyPagesLock) {
+            putOldest(dirtyPages, pid, lsn);
+        }
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** Records that page pid has been committed, with the log record
+        with LSN lsn the oldest of its changes not yet written to its
+        table file.  BufferPool calls this when it keeps a committed page
+        to be written later, so that the record stays in the log until the
+        page is written and forced. */
+    public void pageCommitted(PageId pid, long lsn) {
+        synchronized (dirtyPagesLock) {
+            putOldest(committedPages, pid, lsn);
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Records that page pid, committed after the log record with LSN
+        lsn, has been written to its table file, as in pageWritten(pid,
+        lsn).  pendingLsn is the LSN of the oldest change of a later commit
+        of the page still to be written, or -1 if there is none. */
+    public void pageWritten(PageId pid, long lsn, long pendingLsn) {
+        synchronized (dirtyPagesLock) {
+            putOldest(dirtyPages, pid, lsn);
+            if (pendingLsn < 0) {
+                committedPages.remove(pid);
+            } else {
+                committedPages.put(pid, pendingLsn);
+            }
+        }
+    }
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+    private static void putOldest(Map<PageId,Long> pages, PageId pid,
+                                  long lsn) {
+        Long old = pages.get(pid);
+        if (old == null || lsn < old) {
+            pages.put(pid, lsn);
+        }
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+    /** Returns the dirty page table: the pages committed or written to
+        their table files but maybe not yet on disk, with the LSN of the
+        oldest log record of a change to each that may not be on disk (its
+        recLSN). */
+    public Map<PageId,Long> getDirtyPageTable() {
+        synchronized (dirtyPagesLock) {
+            HashMap<PageId,Long> table = new HashMap<PageId,Long>(syncingPages);
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                putOldest(table, e.getKey(), e.getValue());
+            }
+            for (Map.Entry<PageId,Long> e : committedPages.entrySet()) {
+                putOldest(table, e.getKey(), e.getValue());
+            }
+            return table;
+        }
+    }
+
+    /** Forces the table files of the pages in the dirty page table to
+        disk, and removes the pages from it.  Holds no BufferPool or
+        LogFile lock while forcing, so queries, commits and pages being
+        written go on meanwhile; pages written meanwhile stay in the table
+        for the next call. */
+    public void syncPages() throws IOException {
+        synchronized (syncLock) {
+            HashMap<PageId,Long> syncing;
+            synchronized (dirtyPagesLock) {
+                syncing = dirtyPages;
+                syncingPages = syncing;
+                dirtyPages = new HashMap<PageId,Long>();
+            }
+            boolean synced = false;
+            try {
+                HashSet<Integer> tables = new HashSet<Integer>();
+                for (PageId pid : syncing.keySet()) {
+                    tables.add(pid.getTableId());
+                }
+                syncTables(tables);
+                synced = true;
+            } finally {
+                synchronized (dirtyPagesLock) {
+                    if (!synced) {
+                        for (Map.Entry<PageId,Long> e : syncing.entrySet()) {
+                            putOldest(dirtyPages, e.getKey(), e.getValue());
+                        }
                     }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                    syncingPages = new HashMap<PageId,Long>();
                 }
+            }
+        }
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+    /** Forces the files of the specified tables to disk, skipping tables
+        no longer in the catalog. */
+    private static void syncTables(Set<Integer> tableIds) throws IOException {
+        for (Integer id : tableIds) {
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDbFile(id);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).sync();
             }
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Sets the checkpoint policy of the background writer: take a
+        checkpoint every intervalMillis milliseconds, and whenever the log
+        has grown by logBytes bytes since the last one, where 0 turns that
+        trigger off.  While either is on, the writer also forces the
+        files written every tick (see Checkpointer); with both off there
+        is no background writer. */
+    public void setCheckpointPolicy(long intervalMillis, long logBytes) {
+        if (intervalMillis < 0 || logBytes < 0) {
+            throw new IllegalArgumentException("bad checkpoint policy");
+        }
+        // read before policyLock, which is taken after the monitor
+        long lsn = getCurrentLsn();
+        Checkpointer old;
+        synchronized (policyLock) {
+            checkpointInterval = intervalMillis;
+            checkpointBytes = logBytes;
+            old = checkpointer;
+            checkpointer = null;
+            if (inUse) {
+                startCheckpointer(lsn);
+            }
+        }
+        if (old != null) {
+            old.stop();
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Notes that the log is in use, and starts the background writer if
+        the checkpoint policy asks for one and it isn't running, counting
+        the log's growth from LSN lsn. */
+    private void startCheckpointer(long lsn) {
+        synchronized (policyLock) {
+            inUse = true;
+            if (checkpointer == null && !shutDown &&
+                (checkpointInterval > 0 || checkpointBytes > 0)) {
+                checkpointer = new Checkpointer(this, checkpointInterval,
+                                                checkpointBytes, lsn);
+                checkpointer.start();
+            }
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Stops the background writer for good, waiting for it to finish. */
+    private void stopCheckpointer() {
+        Checkpointer old;
+        synchronized (policyLock) {
+            shutDown = true;
+            old = checkpointer;
+            checkpointer = null;
+        }
+        if (old != null) {
+            old.stop();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,6 +1270,27 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("no BEGIN record for transaction " +
+                                                     tid.getId());
+                }
+                // the pages on disk hold the logged changes, and the
+                // BufferPool may hold later ones that were never written:
+                // undo the former, newest first, and drop the latter
+                List<Record> records = readRecords(first, tid.getId());
+                HashSet<Integer> tables = new HashSet<Integer>();
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    Record r = records.get(i);
+                    if (r.tid == tid.getId() && r.isUpdate()) {
+                        r.apply(false);
+                        Database.getBufferPool().discardPage(r.pageId());
+                        tables.add(r.pageId().getTableId());
+                    }
+                }
+                // the undo isn't logged: it must be on disk before the
+                // ABORT record, after which recovery won't undo again
+                syncTables(tables);
             }
         }
     }
@@ -475,10 +1299,13 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            stopCheckpointer();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -487,24 +1314,528 @@ public class LogFile {
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
-        updates of uncommitted transactions are not installed.
+        updates of uncommitted transactions are not installed.  Pages
+        are recovered by the number of threads given by the system
+        property simpledb.LogFile.recoveryThreads, by default
+        DEFAULT_RECOVERY_THREADS.
+
+        @see #recover(int)
     */
     public void recover() throws IOException {
+        recover(Integer.getInteger("simpledb.LogFile.recoveryThreads",
+                                   DEFAULT_RECOVERY_THREADS));
+    }
+
+    /** Recover the database system, as recover() does, in three passes.
+        Analysis reads the log from the redo offset of the last
+        checkpoint on.  It finds the transactions that committed and
+        those that never finished, and builds the dirty page table: the
+        pages in the checkpoint's table and those changed after it, each
+        with the offset of its oldest change that may not be on disk (its
+        recLSN).  A committed change to a page not in the table, or below
+        the page's recLSN, is already on disk and is skipped; HeapPages
+        have no room for a page LSN, so the recLSN stands in for it.
+        Redo and undo then go page by page, the pages split by id among
+        threads worker threads: each page is read once, its committed
+        changes are redone, oldest first, the changes of transactions
+        that never finished are undone, newest first, and it is written
+        once.
+
+        @param threads The number of threads recovering pages
+    */
+    public void recover(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+                writtenOffset = raf.length();
+                currentOffset = writtenOffset;
+
+                // analysis: changes before the redo offset of the last
+                // checkpoint are on disk, and so are the first records of
+                // transactions running at the checkpoint
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                Record cp = null;
+                if (cpLoc >= LONG_SIZE && cpLoc < writtenOffset) {
+                    List<Record> found = readRecords(cpLoc, null, 1);
+                    if (!found.isEmpty() && found.get(0).type == CHECKPOINT_RECORD) {
+                        cp = found.get(0);
+                    }
+                }
+                long redoStart = cp == null ? LONG_SIZE : cp.redoOffset;
+                List<Record> records = readRecords(redoStart, null, Integer.MAX_VALUE);
+                // drop a record cut short by the crash
+                long end = records.isEmpty() ? redoStart :
+                    records.get(records.size() - 1).end;
+                if (end < writtenOffset) {
+                    raf.setLength(end);
+                    writtenOffset = end;
+                    currentOffset = end;
+                }
+
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> finished = new HashSet<Long>();
+                LinkedHashSet<Long> losers = new LinkedHashSet<Long>();
+                HashMap<PageId,Long> dirty = cp == null ?
+                    new HashMap<PageId,Long>() : cp.dirtyPages;
+                for (Record r : records) {
+                    if (r.type == COMMIT_RECORD) {
+                        committed.add(r.tid);
+                        finished.add(r.tid);
+                    } else if (r.type == ABORT_RECORD) {
+                        finished.add(r.tid);
+                    } else if (r.type == BEGIN_RECORD || r.isUpdate()) {
+                        losers.add(r.tid);
+                    }
+                    if (r.isUpdate() && (cp == null || r.offset > cpLoc) &&
+                        !dirty.containsKey(r.pageId())) {
+                        dirty.put(r.pageId(), r.offset);
+                    }
+                }
+                losers.removeAll(finished);
+
+                // a change logged before the checkpoint to a page not in
+                // its table may have been written after the table was
+                // taken, if its transaction was still running
+                Set<Long> running = cp == null ?
+                    Collections.<Long>emptySet() : cp.activeTids;
+                LinkedHashMap<PageId,PageRecovery> pages =
+                    new LinkedHashMap<PageId,PageRecovery>();
+                int redone = 0;
+                int skipped = 0;
+                for (Record r : records) {
+                    if (!r.isUpdate()) {
+                        continue;
+                    }
+                    PageId pid = r.pageId();
+                    boolean undo = losers.contains(r.tid);
+                    boolean redo = false;
+                    if (committed.contains(r.tid)) {
+                        Long recOffset = dirty.get(pid);
+                        redo = running.contains(r.tid) ||
+                            (recOffset != null && r.offset >= recOffset);
+                        if (redo) {
+                            redone++;
+                        } else {
+                            skipped++;
+                        }
+                    }
+                    if (redo || undo) {
+                        PageRecovery page = pages.get(pid);
+                        if (page == null) {
+                            page = new PageRecovery(pid);
+                            pages.put(pid, page);
+                        }
+                        (redo ? page.redo : page.undo).add(r);
+                    }
+                }
+                recoverPages(pages.values(), threads);
+                redoneRecords = redone;
+                skippedRecords = skipped;
+                recoveredPages = pages.size();
+
+                HashSet<Integer> tables = new HashSet<Integer>();
+                for (PageId pid : pages.keySet()) {
+                    tables.add(pid.getTableId());
+                }
+                syncTables(tables);
+                synchronized (dirtyPagesLock) {
+                    dirtyPages.clear();
+                    committedPages.clear();
+                }
+
+                // so that they are not undone again by a later recovery
+                for (Long tid : losers) {
+                    endRecord(startRecord(ABORT_RECORD, tid, 0));
+                }
+                tidToFirstLogRecord.clear();
+                force();
+                startCheckpointer(getCurrentLsn());
             }
          }
     }
 
+    /** Recovers the specified pages, split among up to threads threads
+        by page id, and throws the first error any of them hit. */
+    private static void recoverPages(Collection<PageRecovery> pages,
+                                     int threads) throws IOException {
+        threads = Math.min(threads, pages.size());
+        if (threads <= 1) {
+            for (PageRecovery page : pages) {
+                page.recover();
+            }
+            return;
+        }
+        final List<List<PageRecovery>> partitions = new ArrayList<List<PageRecovery>>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<PageRecovery>());
+        }
+        for (PageRecovery page : pages) {
+            partitions.get((page.pid.hashCode() & Integer.MAX_VALUE) % threads).add(page);
+        }
+        final Throwable[] errors = new Throwable[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int partition = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (PageRecovery page : partitions.get(partition)) {
+                            page.recover();
+                        }
+                    } catch (Throwable t) {
+                        errors[partition] = t;
+                    }
+                }
+            }, "simpledb-recovery-" + i);
+            workers[i].start();
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // the pages must be recovered before the log goes on
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Throwable t : errors) {
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+    }
+
+    /** Returns the number of committed changes the last recovery redid. */
+    public int getRedoneRecords() {
+        return redoneRecords;
+    }
+
+    /** Returns the number of committed changes the last recovery found
+        already on disk, and skipped. */
+    public int getSkippedRecords() {
+        return skippedRecords;
+    }
+
+    /** Returns the number of pages the last recovery redid or undid
+        changes to. */
+    public int getRecoveredPages() {
+        return recoveredPages;
+    }
+
+    /** The changes to one page to redo and undo in recovery, in log
+        order. */
+    private static class PageRecovery {
+        final PageId pid;
+        final ArrayList<Record> redo = new ArrayList<Record>();
+        final ArrayList<Record> undo = new ArrayList<Record>();
+
+        PageRecovery(PageId pid) {
+            this.pid = pid;
+        }
+
+        /** Reads the page, redoes its changes, oldest first, and undoes
+            its changes to undo, newest first, and writes it back. */
+        void recover() throws IOException {
+            DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+            // the page as changed so far: a logged page image, or the
+            // data of a HeapPage changed slot by slot
+            Page page = null;
+            byte[] data = null;
+            int n = redo.size() + undo.size();
+            for (int i = 0; i < n; i++) {
+                boolean isRedo = i < redo.size();
+                Record r = isRedo ? redo.get(i) : undo.get(n - 1 - i);
+                if (r.type == UPDATE_RECORD) {
+                    page = isRedo ? r.after : r.before;
+                    data = null;
+                } else {
+                    if (data == null) {
+                        data = (page != null ? page : file.readPage(pid)).getPageData();
+                        page = null;
+                    }
+                    r.applySlots(file.getTupleDesc(), data, isRedo);
+                }
+            }
+            if (data != null) {
+                page = new HeapPage((HeapPageId) pid, data);
+            }
+            Record.write(file, page);
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    /** A record read back from the log file; see readRecords. */
+    static class Record {
+        int type;
+        long tid;
+        // offset of the record and of the next one
+        long offset;
+        long end;
+        // page images of an UPDATE record
+        Page before;
+        Page after;
+        // changed slots of a SLOT_UPDATE record, null where empty
+        HeapPageId pid;
+        int[] slots;
+        byte[][] beforeSlots;
+        byte[][] afterSlots;
+        // redo offset, running transactions and dirty page table (by
+        // offset) of a CHECKPOINT record
+        long redoOffset;
+        HashSet<Long> activeTids;
+        HashMap<PageId,Long> dirtyPages;
+
+        /** Returns true if this record changed a page. */
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == SLOT_UPDATE_RECORD;
+        }
+
+        /** Returns the page this record changed. */
+        PageId pageId() {
+            return type == UPDATE_RECORD ? after.getId() : pid;
+        }
+
+        /** Writes the page this record changed to disk with the change
+            redone, or undone if not redo, and returns it.  Records read
+            without decoding them can't be applied. */
+        Page apply(boolean redo) throws IOException {
+            if (type == UPDATE_RECORD) {
+                Page p = redo ? after : before;
+                write(Database.getCatalog().getDbFile(p.getId().getTableId()), p);
+                return p;
+            }
+            DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+            byte[] data = file.readPage(pid).getPageData();
+            applySlots(file.getTupleDesc(), data, redo);
+            Page p = new HeapPage(pid, data);
+            write(file, p);
+            return p;
+        }
+
+        /** Redoes, or undoes if not redo, the slot changes of this
+            SLOT_UPDATE record in data, the data of its page. */
+        void applySlots(TupleDesc td, byte[] data, boolean redo) {
+            if (redo) {
+                for (int i = 0; i < slots.length; i++) {
+                    HeapPage.writeSlot(td, data, slots[i], afterSlots[i]);
+                }
+            } else {
+                for (int i = slots.length - 1; i >= 0; i--) {
+                    HeapPage.writeSlot(td, data, slots[i], beforeSlots[i]);
+                }
+            }
+        }
+
+        static void write(DbFile file, Page p) throws IOException {
+            file.writePage(p);
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).noteFreeSpace(p);
+            }
+        }
+    }
+
+    /** A buffered input stream over a file that knows its position in
+        the file.  Unlike BufferedInputStream, its reads take no lock,
+        which matters as DataInputStream reads numbers a byte at a time. */
+    private static class LogInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] buf = new byte[1 << 16];
+        private int pos;
+        private int limit;
+        // position in the file of buf[0]
+        private long base;
+
+        LogInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        long position() {
+            return base + pos;
+        }
+
+        private boolean fill() throws IOException {
+            base += limit;
+            pos = 0;
+            limit = 0;
+            int n = in.read(buf);
+            if (n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            if (n <= limit - pos) {
+                pos += (int) Math.max(n, 0);
+                return Math.max(n, 0);
+            }
+            long skipped = limit - pos;
+            base += limit;
+            pos = 0;
+            limit = 0;
+            long k = in.skip(n - skipped);
+            base += k;
+            return skipped + k;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Reads the records in the log file from offset start to the end,
+        after writing out the log buffer, stopping at a record cut short.
+        Page changes of transactions other than tid are skipped rather
+        than decoded, unless tid is null. */
+    synchronized List<Record> readRecords(long start, Long tid)
+        throws IOException {
+        return readRecords(start, tid, Integer.MAX_VALUE);
+    }
+
+    /** Reads up to max records of the log file from offset start, as
+        readRecords(start, tid) does. */
+    private synchronized List<Record> readRecords(long start, Long tid,
+                                                  int max)
+        throws IOException {
+        writeBuffer();
+        ArrayList<Record> records = new ArrayList<Record>();
+        LogInputStream stream = new LogInputStream(new FileInputStream(logFile));
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            while (stream.position() < start) {
+                if (in.skip(start - stream.position()) <= 0) {
+                    return records;
+                }
+            }
+            while (records.size() < max) {
+                Record r = new Record();
+                r.offset = stream.position();
+                try {
+                    r.type = in.readInt();
+                    r.tid = in.readLong();
+                    readBody(in, r, tid == null || tid == r.tid);
+                    in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                r.end = stream.position();
+                records.add(r);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /** Reads the body of record r, decoding any page change if decode. */
+    private void readBody(DataInputStream in, Record r, boolean decode)
+        throws IOException {
+        switch (r.type) {
+        case UPDATE_RECORD:
+            if (decode) {
+                r.before = readPageData(in);
+                r.after = readPageData(in);
+            } else {
+                copyPageData(in, new DataOutputStream(NULL_OUTPUT));
+                copyPageData(in, new DataOutputStream(NULL_OUTPUT));
+            }
+            break;
+        case SLOT_UPDATE_RECORD:
+            r.pid = new HeapPageId(in.readInt(), in.readInt());
+            int size = in.readInt();
+            int count = in.readInt();
+            r.slots = new int[count];
+            r.beforeSlots = new byte[count][];
+            r.afterSlots = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                r.slots[i] = in.readInt();
+                r.beforeSlots[i] = readSlot(in, size);
+                r.afterSlots[i] = readSlot(in, size);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            r.activeTids = new HashSet<Long>();
+            for (int i = 0; i < numXactions; i++) {
+                r.activeTids.add(in.readLong());
+                in.readLong();
+            }
+            int numPages = in.readInt();
+            r.dirtyPages = new HashMap<PageId,Long>();
+            for (int i = 0; i < numPages; i++) {
+                PageId pid = new HeapPageId(in.readInt(), in.readInt());
+                r.dirtyPages.put(pid, in.readLong());
+            }
+            r.redoOffset = in.readLong();
+            break;
+        }
+    }
+
+    private static byte[] readSlot(DataInput in, int size) throws IOException {
+        if (in.readByte() == 0) {
+            return null;
+        }
+        byte[] tuple = new byte[size];
+        in.readFully(tuple);
+        return tuple;
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
+    /** Force everything appended to the log so far to disk. */
     public  synchronized void force() throws IOException {
+        writeBuffer();
         raf.getChannel().force(true);
+        markDurable(currentOffset + lsnBase);
     }
 
 }
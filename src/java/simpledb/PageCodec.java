@@ -0,0 +1,224 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PageCodec compresses and decompresses HeapPage images for
+ * CompressedHeapFile.
+ * <ul>
+ * <li> DEFLATE deflates the page image as it is.  It knows nothing about
+ *      the page layout and serves as a baseline.
+ * <li> COLUMN first rearranges the used slots of the page by column:
+ *      int columns are stored as runs of equal values, each run being a
+ *      varint-encoded delta from the previous run's value and a run
+ *      length, and string columns as a varint length followed by the
+ *      string's characters, without padding.  The result is then deflated,
+ *      which lets the LZ77 stage find repeats within each string column.
+ *      Empty slots are not stored, and come back zeroed.
+ * </ul>
+ * A compressed page always decompresses to exactly BufferPool.PAGE_SIZE
+ * bytes.
+ *
+ * @see CompressedHeapFile
+ */
+public enum PageCodec {
+    DEFLATE {
+        byte[] compress(byte[] page, TupleDesc td) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(page.length / 4);
+            deflate(page, 0, page.length, out);
+            return out.toByteArray();
+        }
+
+        void decompress(byte[] in, int len, byte[] page, TupleDesc td) throws IOException {
+            inflate(in, 0, len, page, page.length);
+        }
+    },
+
+    COLUMN {
+        byte[] compress(byte[] page, TupleDesc td) {
+            int numSlots = HeapPage.slotsPerPage(td);
+            int headerLen = HeapPage.headerBytes(td);
+            int size = td.getSize();
+            ByteBuffer in = ByteBuffer.wrap(page);
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(page.length);
+            body.write(page, 0, headerLen);
+            int fieldOff = 0;
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                if (type == Type.STRING_TYPE) {
+                    for (int i = 0; i < numSlots; i++) {
+                        if (!isUsed(page, i))
+                            continue;
+                        int off = headerLen + i * size + fieldOff;
+                        int len = Math.max(0, Math.min(in.getInt(off), Type.STRING_LEN));
+                        writeVarint(body, len);
+                        body.write(page, off + 4, len);
+                    }
+                } else {
+                    int prev = 0, runValue = 0, run = 0;
+                    for (int i = 0; i < numSlots; i++) {
+                        if (!isUsed(page, i))
+                            continue;
+                        int v = in.getInt(headerLen + i * size + fieldOff);
+                        if (run > 0 && v == runValue) {
+                            run++;
+                            continue;
+                        }
+                        if (run > 0) {
+                            writeVarint(body, zigzag(runValue - prev));
+                            writeVarint(body, run);
+                            prev = runValue;
+                        }
+                        runValue = v;
+                        run = 1;
+                    }
+                    if (run > 0) {
+                        writeVarint(body, zigzag(runValue - prev));
+                        writeVarint(body, run);
+                    }
+                }
+                fieldOff += type.getLen();
+            }
+
+            // the column form can be a little larger than a page, so its
+            // length goes in front of the deflated data
+            ByteArrayOutputStream out = new ByteArrayOutputStream(page.length / 4);
+            writeVarint(out, body.size());
+            deflate(body.toByteArray(), 0, body.size(), out);
+            return out.toByteArray();
+        }
+
+        void decompress(byte[] in, int len, byte[] page, TupleDesc td) throws IOException {
+            int numSlots = HeapPage.slotsPerPage(td);
+            int headerLen = HeapPage.headerBytes(td);
+            int size = td.getSize();
+
+            try {
+                ByteBuffer src = ByteBuffer.wrap(in, 0, len);
+                byte[] body = new byte[readVarint(src)];
+                inflate(in, src.position(), len - src.position(), body, body.length);
+
+                ByteBuffer b = ByteBuffer.wrap(body);
+                ByteBuffer out = ByteBuffer.wrap(page);
+                java.util.Arrays.fill(page, (byte) 0);
+                b.get(page, 0, headerLen);
+                int fieldOff = 0;
+                for (int j = 0; j < td.numFields(); j++) {
+                    Type type = td.getFieldType(j);
+                    int value = 0, run = 0;
+                    for (int i = 0; i < numSlots; i++) {
+                        if (!isUsed(page, i))
+                            continue;
+                        int off = headerLen + i * size + fieldOff;
+                        if (type == Type.STRING_TYPE) {
+                            int slen = readVarint(b);
+                            if (slen > Type.STRING_LEN)
+                                throw new IOException("Corrupt compressed page: string length " + slen);
+                            out.putInt(off, slen);
+                            b.get(page, off + 4, slen);
+                        } else {
+                            if (run == 0) {
+                                value += unzigzag(readVarint(b));
+                                run = readVarint(b);
+                            }
+                            out.putInt(off, value);
+                            run--;
+                        }
+                    }
+                    fieldOff += type.getLen();
+                }
+            } catch (RuntimeException e) {
+                // BufferUnderflowException, NegativeArraySizeException, ...
+                throw new IOException("Corrupt compressed page: " + e);
+            }
+        }
+    };
+
+    /** Returns the compressed form of page, a page image of a table of td. */
+    abstract byte[] compress(byte[] page, TupleDesc td);
+
+    /**
+     * Decompresses the first len bytes of in, produced by compress, into
+     * page.
+     *
+     * @throws IOException if the compressed data is corrupt
+     */
+    abstract void decompress(byte[] in, int len, byte[] page, TupleDesc td) throws IOException;
+
+    // zlib streams allocate sizeable native buffers, so each thread keeps
+    // one of each and resets it between pages
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    static void deflate(byte[] in, int off, int len, ByteArrayOutputStream out) {
+        Deflater d = deflaters.get();
+        d.reset();
+        d.setInput(in, off, len);
+        d.finish();
+        byte[] buf = new byte[1024];
+        while (!d.finished()) {
+            int n = d.deflate(buf);
+            out.write(buf, 0, n);
+        }
+    }
+
+    static void inflate(byte[] in, int off, int len, byte[] out, int outLen) throws IOException {
+        Inflater inf = inflaters.get();
+        inf.reset();
+        inf.setInput(in, off, len);
+        try {
+            int n = 0;
+            while (n < outLen) {
+                int k = inf.inflate(out, n, outLen - n);
+                if (k == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary()))
+                    throw new IOException("Truncated compressed page");
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed page: " + e.getMessage());
+        }
+    }
+
+    private static boolean isUsed(byte[] page, int slot) {
+        return ((page[slot >>> 3] >>> (slot & 7)) & 1) != 0;
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(ByteBuffer b) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int c = b.get();
+            v |= (c & 0x7F) << shift;
+            if ((c & 0x80) == 0)
+                return v;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageWriter is the background writer of a BufferPool.  A committing
+ * transaction's pages are not written before it commits (NO FORCE): the
+ * log records of their changes are, and the pool keeps each page, with the
+ * image it had at commit, until the PageWriter has written that image out.
+ * Every tick, or as soon as the number of committed pages waiting reaches
+ * the high water mark, the writer takes the waiting images, forces the log
+ * up to their records, sorts them by table and page number and writes each
+ * table's pages with {@link HeapFile#writePages}, which coalesces runs of
+ * adjacent pages into single writes.  Pages of other kinds of DbFile are
+ * written one at a time.
+ * <p>
+ * Pages waiting to be written are not evicted, so the writer works ahead
+ * of eviction: it cleans committed pages before the replacement policy
+ * wants them, and a page is only written on the evicting thread, an
+ * eviction stall, when the pool holds no other clean page.  The writer
+ * writes images rather than the pages themselves, so that a transaction
+ * changing a page meanwhile holds nothing up and none of its uncommitted
+ * changes reach the disk.
+ * <p>
+ * The writer thread is started by the first commit that leaves pages
+ * waiting, and stops at the first tick that finds none, or after the
+ * Database has moved on to another BufferPool, e.g. after Database.reset
+ * simulated a crash; it is never interrupted, as an interrupt closes the
+ * FileChannel it may be writing.  A pool that is not the Database's only
+ * writes its committed pages when evictions or writeCommittedPages need
+ * them to be.
+ *
+ * @see BufferPool#writeCommittedPages
+ * @see #setPolicy
+ */
+public class PageWriter {
+
+  /** Default longest time a committed page waits to be written, in ms. */
+  public static final long DEFAULT_TICK_MILLIS = 50;
+
+  private final BufferPool pool;
+  private final AtomicLong rounds = new AtomicLong();
+  private final AtomicLong pagesWritten = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+
+  // policy and thread state, guarded by this
+  private long tickMillis =
+    Long.getLong("simpledb.PageWriter.tickMillis", DEFAULT_TICK_MILLIS);
+  private int highWater;
+  private boolean running;
+  private boolean urgent;
+
+  private static final Comparator<Pending> BY_PAGE_NUMBER = new Comparator<Pending>() {
+    public int compare(Pending a, Pending b) {
+      int x = a.pid.pageNumber();
+      int y = b.pid.pageNumber();
+      return x < y ? -1 : (x == y ? 0 : 1);
+    }
+  };
+
+  /**
+   * The committed image of a page waiting to be written, the file it goes
+   * to, and the log holding the records of its changes, if they were
+   * logged: recLsn is the LSN of the oldest change not on disk and lastLsn
+   * that of the newest.
+   */
+  static class Pending {
+    final PageId pid;
+    final DbFile file;
+    final Page image;
+    final LogFile log;
+    long recLsn;
+    final long lastLsn;
+    boolean written;
+
+    Pending(DbFile file, Page image, LogFile log, long lsn) {
+      this.pid = image.getId();
+      this.file = file;
+      this.image = image;
+      this.log = log;
+      this.recLsn = lsn;
+      this.lastLsn = lsn;
+    }
+  }
+
+  /**
+   * Creates the writer of pool, with a high water mark of a quarter of
+   * the pool.
+   */
+  PageWriter(BufferPool pool) {
+    this.pool = pool;
+    this.highWater = Math.max(1, pool.capacity() / 4);
+  }
+
+  /**
+   * Sets the writer's policy: committed pages are written at most
+   * tickMillis milliseconds after they were committed, or as soon as
+   * highWater of them are waiting.  0 turns either trigger off; with both
+   * off, committed pages are only written when evictions, checkpoints or
+   * BufferPool.writeCommittedPages need them to be.
+   */
+  public synchronized void setPolicy(long tickMillis, int highWater) {
+    if (tickMillis < 0 || highWater < 0) {
+      throw new IllegalArgumentException("bad page writer policy");
+    }
+    this.tickMillis = tickMillis;
+    this.highWater = highWater;
+    notifyAll();
+  }
+
+  /**
+   * Tells the writer that pending committed pages are waiting, starting
+   * its thread if it is not running and waking it if they reach the high
+   * water mark.
+   */
+  synchronized void committed(int pending) {
+    if (pending == 0 || (tickMillis == 0 && highWater == 0)
+        || Database.getBufferPool() != pool) {
+      return;
+    }
+    if (highWater > 0 && pending >= highWater) {
+      urgent = true;
+      notifyAll();
+    }
+    if (!running) {
+      running = true;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          writeLoop();
+        }
+      }, "simpledb-page-writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Waits for the next tick, or for the high water mark to be reached;
+   * returns false, and marks the thread stopped, if there is nothing left
+   * to write.
+   */
+  private synchronized boolean awaitWork() {
+    long end = System.currentTimeMillis() + tickMillis;
+    while (!urgent) {
+      long left = tickMillis == 0 ? 0 : end - System.currentTimeMillis();
+      if (tickMillis > 0 && left <= 0) {
+        break;
+      }
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        // only a tick or the high water mark ends the wait
+      }
+    }
+    urgent = false;
+    if (pool.pendingWrites() == 0 || (tickMillis == 0 && highWater == 0)
+        || Database.getBufferPool() != pool) {
+      running = false;
+      return false;
+    }
+    return true;
+  }
+
+  private void writeLoop() {
+    boolean stopped = false;
+    try {
+      while (awaitWork()) {
+        try {
+          pool.writeCommitted(false);
+        } catch (IOException e) {
+          // e.g. a table file closed meanwhile; the pages stay waiting
+          e.printStackTrace();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      stopped = true;
+    } finally {
+      if (!stopped) {
+        // died of an Error: let the next commit start another thread
+        synchronized (this) {
+          running = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the images of a round of pending pages, grouped by file and in
+   * page number order, marking those written.  The log must already be
+   * on disk up to their records.  Every file is attempted; the last
+   * failure is rethrown once all have been.
+   */
+  void write(List<Pending> round) throws IOException {
+    Map<DbFile, ArrayList<Pending>> byFile = new IdentityHashMap<DbFile, ArrayList<Pending>>();
+    for (Pending p : round) {
+      ArrayList<Pending> pages = byFile.get(p.file);
+      if (pages == null) {
+        pages = new ArrayList<Pending>();
+        byFile.put(p.file, pages);
+      }
+      pages.add(p);
+    }
+    IOException error = null;
+    for (Map.Entry<DbFile, ArrayList<Pending>> e : byFile.entrySet()) {
+      DbFile file = e.getKey();
+      ArrayList<Pending> pending = e.getValue();
+      try {
+        if (file instanceof HeapFile) {
+          Collections.sort(pending, BY_PAGE_NUMBER);
+          ArrayList<Page> images = new ArrayList<Page>(pending.size());
+          for (Pending p : pending) {
+            images.add(p.image);
+          }
+          writes.addAndGet(((HeapFile) file).writePages(images));
+        } else {
+          for (Pending p : pending) {
+            file.writePage(p.image);
+          }
+          writes.addAndGet(pending.size());
+        }
+        for (Pending p : pending) {
+          p.written = true;
+        }
+        pagesWritten.addAndGet(pending.size());
+      } catch (IOException ex) {
+        error = ex;
+      } catch (RuntimeException ex) {
+        error = new IOException("Could not write pages of " + file + ": " + ex);
+        error.initCause(ex);
+      }
+    }
+    rounds.incrementAndGet();
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Returns the number of rounds of writes so far. */
+  public long getRounds() {
+    return rounds.get();
+  }
+
+  /** Returns the number of committed pages written so far. */
+  public long getPagesWritten() {
+    return pagesWritten.get();
+  }
+
+  /**
+   * Returns the number of write calls made so far; fewer than
+   * getPagesWritten() when adjacent pages were coalesced.
+   */
+  public long getWrites() {
+    return writes.get();
+  }
+}
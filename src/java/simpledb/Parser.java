@@ -601,6 +601,7 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
 
     protected void shutdown() {
+        WarmStart.save();
         System.out.println("Bye");
     }
 
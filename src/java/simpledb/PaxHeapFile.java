@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxHeapFile is a HeapFile whose pages are PaxHeapPages, which store each
+ * field of the page's tuples in a contiguous region.  Pages hold the same
+ * number of tuples as in a plain HeapFile, so plans and statistics are
+ * unaffected, but scans that project a few fields of a wide table (see
+ * {@link HeapFile#iterator(TransactionId, int[])}) touch only those
+ * fields' bytes.
+ *
+ * @see PaxHeapPage
+ * @see HeapFileEncoder.Format#PAX
+ */
+public class PaxHeapFile extends HeapFile {
+
+  /**
+   * Constructs a PAX heap file backed by the specified file.
+   *
+   * @param f
+   *            the file that stores the on-disk backing store for this
+   *            heap file.
+   */
+  public PaxHeapFile(File f, TupleDesc td) {
+    this(f, td, false);
+  }
+
+  /**
+   * Constructs a PAX heap file backed by the specified file, optionally
+   * accessing it through memory mappings.
+   *
+   * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+   */
+  public PaxHeapFile(File f, TupleDesc td, boolean mapped) {
+    super(f, td, mapped);
+  }
+
+  protected Page createPage(HeapPageId pid, ByteBuffer data) throws IOException {
+    return new PaxHeapPage(pid, data);
+  }
+
+  protected Page createFramePage(HeapPageId pid, ByteBuffer frame) throws IOException {
+    return new PaxHeapPage(pid, frame, true);
+  }
+}
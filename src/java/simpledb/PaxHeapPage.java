@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * PaxHeapPage is a HeapPage that stores its tuples column by column (the
+ * PAX layout) rather than row by row.  The header and the number of slots
+ * are exactly as in HeapPage, but the tuple area is divided into one
+ * region per field, each holding that field's value for every slot in
+ * slot order:
+ * <pre>
+ *     header | field 0 of slots 0..n-1 | field 1 of slots 0..n-1 | ...
+ * </pre>
+ * Scans that only need a few fields of a wide table (see
+ * {@link HeapPage#iterator(int[], TupleDesc)}) then read only those
+ * regions of the page, sequentially.
+ *
+ * @see PaxHeapFile
+ */
+public class PaxHeapPage extends HeapPage {
+
+  // offset within the page of the region holding each field
+  int[] columnStarts;
+
+  /**
+   * Create a PaxHeapPage from a set of bytes of data read from disk.
+   *
+   * @see HeapPage#HeapPage(HeapPageId, byte[])
+   */
+  public PaxHeapPage(HeapPageId id, byte[] data) throws IOException {
+    this(id, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Create a PaxHeapPage from a buffer holding the page's bytes.
+   *
+   * @see HeapPage#HeapPage(HeapPageId, ByteBuffer)
+   */
+  public PaxHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+    this(id, data, false);
+  }
+
+  /**
+   * Create a PaxHeapPage from a buffer holding the page's bytes, kept in
+   * the buffer itself if inFrame.
+   *
+   * @see HeapPage#HeapPage(HeapPageId, ByteBuffer, boolean)
+   */
+  PaxHeapPage(HeapPageId id, ByteBuffer data, boolean inFrame) throws IOException {
+    super(id, data, inFrame);
+    columnStarts = columnStarts(td, numSlots, headerLen);
+  }
+
+  /**
+   * Returns the offset of each field's region on a page with the given
+   * number of slots and header bytes.
+   */
+  static int[] columnStarts(TupleDesc td, int numSlots, int headerLen) {
+    int[] starts = new int[td.numFields()];
+    int off = headerLen;
+    for (int j = 0; j < starts.length; j++) {
+      starts[j] = off;
+      off += numSlots * td.getFieldType(j).getLen();
+    }
+    return starts;
+  }
+
+  int fieldOffset(int slot, int field) {
+    return columnStarts[field] + slot * td.getFieldType(field).getLen();
+  }
+
+  void copySlot(byte[] out, int i) {
+    for (int j = 0; j < columnStarts.length; j++) {
+      int off = fieldOffset(i, j);
+      readBytes(off, out, off, td.getFieldType(j).getLen());
+    }
+  }
+
+  /** Return a view of this page before it was modified
+    -- used by recovery */
+  public PaxHeapPage getBeforeImage() {
+    try {
+      return new PaxHeapPage(pid, beforeImage());
+    } catch (IOException e) {
+      e.printStackTrace();
+      //should never happen -- we parsed it OK before!
+      System.exit(1);
+    }
+    return null;
+  }
+
+  /**
+   * Rearranges a HeapPage image of pageSize bytes, holding tuples of the
+   * given types, into the equivalent PaxHeapPage image.  Used by
+   * HeapFileEncoder to load PAX tables.
+   */
+  static byte[] fromRowImage(byte[] row, Type[] types, int pageSize) {
+    TupleDesc td = new TupleDesc(types);
+    int numSlots = (pageSize * 8) / (td.getSize() * 8 + 1);
+    int headerLen = (numSlots + 7) / 8;
+    int[] starts = columnStarts(td, numSlots, headerLen);
+
+    byte[] out = new byte[pageSize];
+    System.arraycopy(row, 0, out, 0, headerLen);
+    int rowOff = headerLen;
+    for (int i = 0; i < numSlots; i++) {
+      for (int j = 0; j < types.length; j++) {
+        int len = types[j].getLen();
+        System.arraycopy(row, rowOff, out, starts[j] + i * len, len);
+        rowOff += len;
+      }
+    }
+    return out;
+  }
+}
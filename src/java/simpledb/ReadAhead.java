@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead prefetches the pages of a sequential scan into the BufferPool
+ * ahead of the scan, so that reading the next pages overlaps with
+ * processing the current one.  Each scan that wants read-ahead uses its own
+ * ReadAhead (see {@link SeqScan#setReadAhead} and
+ * {@link HeapFile#iterator(TransactionId, int[], ReadAhead)}); the reads
+ * themselves are done by a single background I/O thread shared by all
+ * scans, through {@link BufferPool#prefetchPage}.
+ * <p>
+ * The read-ahead depth, the number of pages requested ahead of the page
+ * being scanned, adapts to how fast the scan consumes pages relative to
+ * the I/O thread.  It starts at 2 and doubles whenever the scan catches up
+ * with a prefetch still in progress, i.e. the scan is consuming pages
+ * faster than they are being requested.  It halves whenever a prefetched
+ * page was evicted again before the scan reached it, i.e. the scan is too
+ * slow for the depth and prefetching is just churning the pool.  The
+ * depth never exceeds MAX_DEPTH or a quarter of the BufferPool.
+ * <p>
+ * Hit and miss counts are kept per scan and for all scans together.  A hit
+ * is a page that was already in the BufferPool when the scan reached it; a
+ * miss is one the scan had to read itself.
+ */
+public class ReadAhead {
+
+  /** Upper bound on the read-ahead depth. */
+  public static final int MAX_DEPTH = 64;
+
+  private static final AtomicLong totalHits = new AtomicLong();
+  private static final AtomicLong totalMisses = new AtomicLong();
+
+  private static final ExecutorService io = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "simpledb-readahead");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private int depth = 2;
+  private long hits;
+  private long misses;
+  private long waits;
+  private long wasted;
+
+  // prefetches requested but not yet reached by the scan, by page number
+  private final Map<Integer, Future<?>> pending = new HashMap<Integer, Future<?>>();
+  // highest page number requested so far
+  private int requested = -1;
+
+  /**
+   * Called by a scan of file when it is about to get page pageNo, the
+   * file having numPages pages.  Waits for that page's prefetch if it is
+   * still in progress, updates the counters and the depth, and requests
+   * the following pages.
+   */
+  void reached(DbFile file, int pageNo, int numPages) {
+    BufferPool bp = Database.getBufferPool();
+    HeapPageId pid = new HeapPageId(file.getId(), pageNo);
+
+    Future<?> f = pending.remove(pageNo);
+    if (f != null && !f.isDone()) {
+      waits++;
+      depth = Math.min(depth * 2, maxDepth(bp));
+      try {
+        f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // the scan's own getPage will report the problem
+      }
+    }
+    if (bp.isCached(pid)) {
+      hits++;
+      totalHits.incrementAndGet();
+    } else {
+      misses++;
+      totalMisses.incrementAndGet();
+      if (f != null) {
+        wasted++;
+        depth = Math.max(1, depth / 2);
+      }
+    }
+
+    int last = Math.min(numPages - 1, pageNo + depth);
+    for (int p = Math.max(requested + 1, pageNo + 1); p <= last; p++) {
+      pending.put(p, io.submit(new Prefetch(bp, new HeapPageId(file.getId(), p))));
+    }
+    requested = Math.max(requested, last);
+  }
+
+  /**
+   * Cancels outstanding prefetches, e.g. because the scan was closed or
+   * rewound.  Counters and depth are kept.
+   */
+  void reset() {
+    for (Iterator<Future<?>> it = pending.values().iterator(); it.hasNext(); ) {
+      it.next().cancel(false);
+    }
+    pending.clear();
+    requested = -1;
+  }
+
+  private static int maxDepth(BufferPool bp) {
+    return Math.max(1, Math.min(MAX_DEPTH, bp.capacity() / 4));
+  }
+
+  /** Returns the current read-ahead depth. */
+  public int getDepth() {
+    return depth;
+  }
+
+  /** Returns the number of pages this scan found in the BufferPool. */
+  public long getHits() {
+    return hits;
+  }
+
+  /** Returns the number of pages this scan had to read itself. */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of times this scan caught up with a prefetch and
+   * waited for it.
+   */
+  public long getWaits() {
+    return waits;
+  }
+
+  /**
+   * Returns the number of pages prefetched for this scan that were gone
+   * again when it reached them.
+   */
+  public long getWasted() {
+    return wasted;
+  }
+
+  /** Returns the number of hits of all scans using read-ahead. */
+  public static long getTotalHits() {
+    return totalHits.get();
+  }
+
+  /** Returns the number of misses of all scans using read-ahead. */
+  public static long getTotalMisses() {
+    return totalMisses.get();
+  }
+
+  public String toString() {
+    return "ReadAhead(depth " + depth + ", " + hits + " hits, " + misses
+        + " misses, " + waits + " waits, " + wasted + " wasted)";
+  }
+
+  private static class Prefetch implements Runnable {
+    private final BufferPool bp;
+    private final PageId pid;
+
+    Prefetch(BufferPool bp, PageId pid) {
+      this.bp = bp;
+      this.pid = pid;
+    }
+
+    public void run() {
+      try {
+        bp.prefetchPage(pid);
+      } catch (DbException e) {
+        // the scan's own getPage will report the problem
+      } catch (RuntimeException e) {
+        // e.g. the table was removed from the catalog meanwhile
+      }
+    }
+  }
+}
@@ -0,0 +1,334 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it needs
+ * room for another one.  The BufferPool tells its policy about every page
+ * it adds, hits and removes, and asks it for a victim among the pages it is
+ * allowed to evict, e.g. only the clean ones.  Each shard of a BufferPool's
+ * page table has a policy of its own, which sees only that shard's pages,
+ * is sized for the shard's share of the pool's capacity, and is only called
+ * with that shard's monitor held.
+ * <p>
+ * The policy of a new BufferPool is given to its constructor or to
+ * {@link Database#resetBufferPool(int, ReplacementPolicy.Kind)}, and
+ * otherwise comes from the system property simpledb.ReplacementPolicy, e.g.
+ * -Dsimpledb.ReplacementPolicy=2q.  The default is FIFO, the pool's
+ * original policy; 2Q is the one a large sequential scan cannot flush hot
+ * pages out of.
+ */
+public abstract class ReplacementPolicy {
+
+  /** The available policies. */
+  public enum Kind {
+    /** Evict the page read in longest ago. */
+    FIFO,
+    /** Evict the page used longest ago. */
+    LRU,
+    /**
+     * CLOCK sweep: a hand goes around the pages, clearing their reference
+     * bits, and evicts the first one whose bit is already clear.  A page's
+     * bit is set when it is hit, not when it is read in, so pages read once
+     * by a scan go before pages hit since the hand last passed them.
+     */
+    CLOCK,
+    /**
+     * 2Q (Johnson and Shasha): pages read in go to a FIFO queue holding a
+     * quarter of the pool.  Only a page read in again soon after being
+     * evicted from there, which a ghost queue of recently evicted page ids
+     * tells, is promoted to the LRU queue for the rest of the pool.  A scan
+     * therefore only ever replaces pages in the FIFO queue.
+     */
+    TWO_Q
+  }
+
+  /** Tells a policy which pages the BufferPool can evict. */
+  public interface Evictable {
+    boolean canEvict(PageId pid);
+  }
+
+  /**
+   * Returns a new policy of the given kind for a pool of capacity pages.
+   */
+  public static ReplacementPolicy create(Kind kind, int capacity) {
+    switch (kind) {
+    case FIFO:
+      return new Fifo(false);
+    case LRU:
+      return new Fifo(true);
+    case CLOCK:
+      return new Clock();
+    case TWO_Q:
+      return new TwoQ(capacity);
+    }
+    throw new IllegalArgumentException("unknown replacement policy " + kind);
+  }
+
+  /**
+   * Returns the policy named by the simpledb.ReplacementPolicy system
+   * property (fifo, lru, clock or 2q), or FIFO if it is not set.
+   *
+   * @throws IllegalArgumentException if the property names no policy
+   */
+  public static Kind defaultKind() {
+    String name = System.getProperty("simpledb.ReplacementPolicy");
+    if (name == null || name.length() == 0) {
+      return Kind.FIFO;
+    }
+    return parse(name);
+  }
+
+  /**
+   * Returns the policy with the given name: fifo, lru, clock or 2q, in any
+   * case, or the name of a Kind.
+   *
+   * @throws IllegalArgumentException if the name names no policy
+   */
+  public static Kind parse(String name) {
+    String n = name.trim().toUpperCase();
+    if (n.equals("2Q")) {
+      return Kind.TWO_Q;
+    }
+    return Kind.valueOf(n);
+  }
+
+  /** A page was read into the pool. */
+  abstract void added(PageId pid);
+
+  /**
+   * A page that was hot when the pool's contents were saved was read back
+   * into the pool by a warm start.  By default the same as added.
+   */
+  void restored(PageId pid) {
+    added(pid);
+  }
+
+  /** A page already in the pool was asked for again. */
+  abstract void accessed(PageId pid);
+
+  /** A page was removed from the pool other than by being evicted. */
+  abstract void removed(PageId pid);
+
+  /**
+   * Chooses a page to evict among those e accepts, forgets it, and returns
+   * it.  The caller removes it from the pool.
+   *
+   * @return the page to evict, or null if e accepts none of the pages
+   */
+  abstract PageId evict(Evictable e);
+
+  /**
+   * Appends the pages this policy tracks to out, the one it would evict
+   * last first.
+   */
+  abstract void hottestFirst(List<PageId> out);
+
+  /** Appends the elements of queue to out in reverse order. */
+  static void appendReversed(LinkedHashSet<PageId> queue, List<PageId> out) {
+    int start = out.size();
+    out.addAll(queue);
+    Collections.reverse(out.subList(start, out.size()));
+  }
+
+  /**
+   * FIFO, or LRU if pages move to the back of the queue when accessed.
+   */
+  private static class Fifo extends ReplacementPolicy {
+    private final boolean lru;
+    // front of the queue is evicted first
+    private final LinkedHashSet<PageId> queue = new LinkedHashSet<PageId>();
+
+    Fifo(boolean lru) {
+      this.lru = lru;
+    }
+
+    void added(PageId pid) {
+      queue.add(pid);
+    }
+
+    void accessed(PageId pid) {
+      if (lru && queue.remove(pid)) {
+	queue.add(pid);
+      }
+    }
+
+    void removed(PageId pid) {
+      queue.remove(pid);
+    }
+
+    PageId evict(Evictable e) {
+      return evictFirst(queue, e);
+    }
+
+    void hottestFirst(List<PageId> out) {
+      appendReversed(queue, out);
+    }
+  }
+
+  /**
+   * Removes and returns the first page of queue that e accepts, or returns
+   * null.
+   */
+  static PageId evictFirst(LinkedHashSet<PageId> queue, Evictable e) {
+    for (Iterator<PageId> it = queue.iterator(); it.hasNext(); ) {
+      PageId pid = it.next();
+      if (e.canEvict(pid)) {
+	it.remove();
+	return pid;
+      }
+    }
+    return null;
+  }
+
+  private static class Clock extends ReplacementPolicy {
+    // the clock face; slots of removed pages are null until reused
+    private final ArrayList<PageId> slots = new ArrayList<PageId>();
+    private final ArrayList<Boolean> referenced = new ArrayList<Boolean>();
+    private final HashMap<PageId, Integer> slotOf = new HashMap<PageId, Integer>();
+    private final ArrayList<Integer> free = new ArrayList<Integer>();
+    private int hand;
+
+    void added(PageId pid) {
+      int slot;
+      if (free.isEmpty()) {
+	slot = slots.size();
+	slots.add(pid);
+	referenced.add(Boolean.FALSE);
+      } else {
+	slot = free.remove(free.size() - 1);
+	slots.set(slot, pid);
+	referenced.set(slot, Boolean.FALSE);
+      }
+      slotOf.put(pid, slot);
+    }
+
+    void accessed(PageId pid) {
+      Integer slot = slotOf.get(pid);
+      if (slot != null) {
+	referenced.set(slot, Boolean.TRUE);
+      }
+    }
+
+    void removed(PageId pid) {
+      Integer slot = slotOf.remove(pid);
+      if (slot != null) {
+	slots.set(slot, null);
+	free.add(slot);
+      }
+    }
+
+    PageId evict(Evictable e) {
+      // two turns: the first may only clear reference bits
+      for (int i = 0; i < 2 * slots.size(); i++) {
+	int slot = hand;
+	hand = (hand + 1) % slots.size();
+	PageId pid = slots.get(slot);
+	if (pid == null || !e.canEvict(pid)) {
+	  continue;
+	}
+	if (referenced.get(slot)) {
+	  referenced.set(slot, Boolean.FALSE);
+	} else {
+	  removed(pid);
+	  return pid;
+	}
+      }
+      return null;
+    }
+
+    void hottestFirst(List<PageId> out) {
+      // referenced pages, then the rest, each in the reverse of the order
+      // the hand will reach them
+      int n = slots.size();
+      for (boolean ref : new boolean[] { true, false }) {
+	for (int i = 1; i <= n; i++) {
+	  int slot = (hand - i + 2 * n) % n;
+	  PageId pid = slots.get(slot);
+	  if (pid != null && referenced.get(slot) == ref) {
+	    out.add(pid);
+	  }
+	}
+      }
+    }
+  }
+
+  private static class TwoQ extends ReplacementPolicy {
+    private final int maxIn;
+    private final int maxOut;
+    // pages read in once, evicted first in, first out
+    private final LinkedHashSet<PageId> in = new LinkedHashSet<PageId>();
+    // ids of pages recently evicted from in
+    private final LinkedHashSet<PageId> out = new LinkedHashSet<PageId>();
+    // pages used again after leaving in, least recently used first
+    private final LinkedHashSet<PageId> main = new LinkedHashSet<PageId>();
+
+    TwoQ(int capacity) {
+      maxIn = Math.max(1, capacity / 4);
+      maxOut = Math.max(1, capacity / 2);
+    }
+
+    void added(PageId pid) {
+      if (out.remove(pid)) {
+	main.add(pid);
+      } else {
+	in.add(pid);
+      }
+    }
+
+    void restored(PageId pid) {
+      // it was hot before; don't make it earn its place again
+      out.remove(pid);
+      main.add(pid);
+    }
+
+    void accessed(PageId pid) {
+      // hits while still in "in" are taken to be correlated, e.g. one scan
+      // reading the page several times, and don't promote it
+      if (main.remove(pid)) {
+	main.add(pid);
+      }
+    }
+
+    void removed(PageId pid) {
+      if (!in.remove(pid)) {
+	main.remove(pid);
+      }
+    }
+
+    PageId evict(Evictable e) {
+      PageId pid = null;
+      if (in.size() > maxIn || main.isEmpty()) {
+	pid = evictIn(e);
+      }
+      if (pid == null) {
+	pid = evictFirst(main, e);
+      }
+      if (pid == null) {
+	pid = evictIn(e);
+      }
+      return pid;
+    }
+
+    private PageId evictIn(Evictable e) {
+      PageId pid = evictFirst(in, e);
+      if (pid != null) {
+	out.add(pid);
+	if (out.size() > maxOut) {
+	  out.remove(out.iterator().next());
+	}
+      }
+      return pid;
+    }
+
+    void hottestFirst(List<PageId> out) {
+      appendReversed(main, out);
+      appendReversed(in, out);
+    }
+  }
+}
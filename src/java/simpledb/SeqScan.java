@@ -16,6 +16,11 @@ public class SeqScan implements DbIterator {
   private String tableAlias;
   private DbFile file;
   private DbFileIterator tupleIter;
+  // fields of the table to return, or null for all of them
+  private int[] fields;
+  // read-ahead state of the current scan, or null if not reading ahead
+  private boolean readAheadEnabled;
+  private ReadAhead readAhead;
 
   /**
    * Creates a sequential scan over the specified table as a part of the
@@ -41,6 +46,22 @@ public class SeqScan implements DbIterator {
     this.file = Database.getCatalog().getDbFile(tableid);
   }
 
+  /**
+   * Creates a sequential scan that returns only some of the fields of the
+   * specified table.  Field i of each returned tuple is field fields[i] of
+   * the table.  For HeapFiles, including PaxHeapFiles, the other fields are
+   * never decoded, which makes this much cheaper than a Project over a
+   * full scan when few fields of a wide table are needed.
+   *
+   * @param fields
+   *            indexes of the table's fields to return, in order
+   * @see HeapFile#iterator(TransactionId, int[])
+   */
+  public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+    this(tid, tableid, tableAlias);
+    this.fields = fields.clone();
+  }
+
   /**
    * @return
    *       return the table name of the table the operator scans. This should
@@ -82,9 +103,37 @@ public class SeqScan implements DbIterator {
     this(tid, tableid, null);
   }
 
+  /**
+   * Turns prefetching of the pages ahead of the scan on or off, for scans
+   * opened after the call.  Off by default.  Only HeapFiles read ahead;
+   * it pays off for long scans of tables that are not in the BufferPool,
+   * and costs a little for short or cached ones.
+   *
+   * @see ReadAhead
+   */
+  public void setReadAhead(boolean enabled) {
+    this.readAheadEnabled = enabled;
+  }
+
+  /**
+   * Returns the read-ahead state and hit/miss counts of the current scan,
+   * or null if it does not read ahead.
+   */
+  public ReadAhead getReadAhead() {
+    return readAhead;
+  }
+
   public void open() throws DbException, TransactionAbortedException {
     // some code goes here
-    tupleIter = file.iterator(tid);
+    readAhead = null;
+    if (readAheadEnabled && file instanceof HeapFile) {
+      readAhead = new ReadAhead();
+      tupleIter = ((HeapFile) file).iterator(tid, fields, readAhead);
+    } else if (fields != null && file instanceof HeapFile) {
+      tupleIter = ((HeapFile) file).iterator(tid, fields);
+    } else {
+      tupleIter = file.iterator(tid);
+    }
     tupleIter.open();
   }
 
@@ -102,12 +151,14 @@ public class SeqScan implements DbIterator {
     String prefix = (tableAlias == null) ? "null" : tableAlias;
     TupleDesc underlyingTD = file.getTupleDesc();
 
-    Type[] typeAr = new Type[underlyingTD.numFields()];
-    String[] fieldAr = new String[underlyingTD.numFields()];
+    int n = (fields == null) ? underlyingTD.numFields() : fields.length;
+    Type[] typeAr = new Type[n];
+    String[] fieldAr = new String[n];
 
-    for (int i = 0; i < underlyingTD.numFields(); i++) {
-      typeAr[i] = underlyingTD.getFieldType(i);
-      fieldAr[i] = prefix + "." + underlyingTD.getFieldName(i);
+    for (int i = 0; i < n; i++) {
+      int f = (fields == null) ? i : fields[i];
+      typeAr[i] = underlyingTD.getFieldType(f);
+      fieldAr[i] = prefix + "." + underlyingTD.getFieldName(f);
     }
 
     return (new TupleDesc(typeAr, fieldAr));
@@ -121,7 +172,17 @@ public class SeqScan implements DbIterator {
   public Tuple next() throws NoSuchElementException,
          TransactionAbortedException, DbException {
     // some code goes here
-    return tupleIter.next();
+    Tuple t = tupleIter.next();
+    if (fields == null || file instanceof HeapFile) {
+      return t;
+    }
+    // other DbFiles return whole tuples
+    Tuple p = new Tuple(getTupleDesc());
+    p.setRecordId(t.getRecordId());
+    for (int i = 0; i < fields.length; i++) {
+      p.setField(i, t.getField(fields[i]));
+    }
+    return p;
   }
 
   public void close() {
@@ -8,7 +8,7 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
-            if (args.length<3 || args.length>5){
+            if (args.length<3 || args.length>6){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
             }
@@ -17,6 +17,7 @@ public class SimpleDb {
             int numOfAttributes=Integer.parseInt(args[2]);
             Type[] ts = new Type[numOfAttributes];
             char fieldSeparator=',';
+            HeapFileEncoder.Format format=HeapFileEncoder.Format.HEAP;
 
             if (args.length == 3) 
                 for (int i=0;i<numOfAttributes;i++)
@@ -40,12 +41,19 @@ public class SimpleDb {
                                 return;
                             }
                 }
-                if (args.length==5)
+                if (args.length>=5)
                     fieldSeparator=args[4].charAt(0);
+                if (args.length==6) {
+                    format=HeapFileEncoder.Format.parse(args[5]);
+                    if (format == null) {
+                        System.err.println("Unknown page format " + args[5]);
+                        return;
+                    }
+                }
             }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator,format);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
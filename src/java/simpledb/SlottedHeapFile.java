@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages, which
+ * store tuples as variable-length records instead of fixed-size slots.
+ * Tables with string columns whose values are mostly much shorter than
+ * Type.STRING_LEN take correspondingly fewer pages, so scans read fewer
+ * pages and the BufferPool holds more of the table.
+ * <p>
+ * Page I/O, memory-mapped mode, free space tracking and iteration are
+ * inherited from HeapFile; only the page format differs.
+ *
+ * @see SlottedHeapPage
+ * @see HeapFileEncoder.Format#SLOTTED
+ */
+public class SlottedHeapFile extends HeapFile {
+
+  /**
+   * Constructs a slotted heap file backed by the specified file.
+   *
+   * @param f
+   *            the file that stores the on-disk backing store for this
+   *            heap file.
+   */
+  public SlottedHeapFile(File f, TupleDesc td) {
+    this(f, td, false);
+  }
+
+  /**
+   * Constructs a slotted heap file backed by the specified file, optionally
+   * accessing it through memory mappings.
+   *
+   * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+   */
+  public SlottedHeapFile(File f, TupleDesc td, boolean mapped) {
+    super(f, td, mapped);
+  }
+
+  protected Page createPage(HeapPageId pid, ByteBuffer data) throws IOException {
+    return new SlottedHeapPage(pid, data);
+  }
+
+  /**
+   * Slotted pages decode their records into their own arrays, so they are
+   * never kept in a frame.
+   */
+  public Page readPage(PageId pid, ByteBuffer frame) {
+    return null;
+  }
+
+  protected byte[] createEmptyPageData() {
+    return SlottedHeapPage.createEmptyPageData();
+  }
+
+  protected int pageHeaderBytes() {
+    return SlottedHeapPage.HEADER_SIZE;
+  }
+
+  protected boolean hasRoom(byte[] pageHeader) {
+    return SlottedHeapPage.hasRoom(pageHeader, getTupleDesc());
+  }
+
+  protected boolean hasRoom(Page p) {
+    return ((SlottedHeapPage) p).hasRoom();
+  }
+
+  protected boolean insertInto(Page p, Tuple t) throws DbException {
+    SlottedHeapPage sp = (SlottedHeapPage) p;
+    if (!sp.fits(t)) {
+      return false;
+    }
+    sp.insertTuple(t);
+    return true;
+  }
+
+  protected void deleteFrom(Page p, Tuple t) throws DbException {
+    ((SlottedHeapPage) p).deleteTuple(t);
+  }
+
+  protected Iterator<Tuple> pageIterator(Page p) {
+    return ((SlottedHeapPage) p).iterator();
+  }
+
+  protected Iterator<Tuple> pageIterator(Page p, final int[] fields,
+                                         final TupleDesc projected) {
+    // records are variable-length, so every field before the last one
+    // wanted has to be decoded anyway; project whole tuples
+    final Iterator<Tuple> it = pageIterator(p);
+    return new Iterator<Tuple>() {
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      public Tuple next() {
+        Tuple full = it.next();
+        Tuple t = new Tuple(projected);
+        t.setRecordId(full.getRecordId());
+        for (int i = 0; i < fields.length; i++) {
+          t.setField(i, full.getField(fields[i]));
+        }
+        return t;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("does not support remove!");
+      }
+    };
+  }
+}
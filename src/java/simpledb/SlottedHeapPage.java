@@ -0,0 +1,449 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Each instance of SlottedHeapPage stores data for one page of a
+ * SlottedHeapFile.  Where HeapPage gives every tuple a fixed-size slot, in
+ * which string fields are padded out to Type.STRING_LEN bytes,
+ * SlottedHeapPage stores each tuple as a variable-length record, so a
+ * string takes only as many bytes as it has characters.
+ * <p>
+ * The page image is laid out as:
+ * <pre>
+ *     int   numEntries                  slot directory size
+ *     int   dataStart                   offset of the first record byte
+ *     numEntries * (short offset, short length)
+ *     ... free space ...
+ *     records, packed against the end of the page
+ * </pre>
+ * Slot i of the directory describes the record with tuple number i; an
+ * offset of 0 marks an empty slot.  Offsets and lengths are unsigned.
+ * Within a record, an int field takes 4 bytes and a string field a 2 byte
+ * length followed by its characters.
+ * <p>
+ * Records are kept separately in memory and packed when the page is
+ * serialized, so deleting a tuple never leaves a hole on disk and a
+ * tuple's slot number, and hence its RecordId, does not change when other
+ * records move.
+ *
+ * @see SlottedHeapFile
+ * @see BufferPool
+ */
+public class SlottedHeapPage implements Page {
+
+  /** Number of bytes in the fixed page header. */
+  static final int HEADER_SIZE = 8;
+  /** Number of bytes in each slot directory entry. */
+  static final int ENTRY_SIZE = 4;
+
+  HeapPageId pid;
+  TupleDesc td;
+  // encoded record in each slot, or null if the slot is empty.  Only the
+  // first numEntries slots are in use; the last of them is never empty.
+  byte[][] records;
+  // tuples decoded from records[], filled in on first access
+  Tuple[] tuples;
+  int numEntries;
+  // total length of the records on this page
+  int usedBytes;
+  boolean dirty;
+  TransactionId lastTid;
+  byte[] oldData;
+
+  /**
+   * Create a SlottedHeapPage from a set of bytes of data read from disk, in
+   * the format described in the class comment.
+   *
+   * @throws IOException if the slot directory is malformed
+   */
+  public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+    this(id, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Create a SlottedHeapPage from a buffer holding the page's bytes, e.g. a
+   * slice of a memory-mapped file.  Reads BufferPool.PAGE_SIZE bytes from
+   * the buffer's current position; the buffer itself is not retained.
+   *
+   * @see #SlottedHeapPage(HeapPageId, byte[])
+   */
+  public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+    this.pid = id;
+    this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+    this.dirty = false;
+
+    byte[] page = new byte[BufferPool.PAGE_SIZE];
+    data.get(page, 0, Math.min(data.remaining(), page.length));
+    ByteBuffer buf = ByteBuffer.wrap(page);
+
+    numEntries = buf.getInt(0);
+    if (numEntries < 0 || HEADER_SIZE + numEntries * ENTRY_SIZE > page.length) {
+      throw new IOException("Bad slot directory size " + numEntries + " on page " + id.pageNumber());
+    }
+    records = new byte[Math.max(numEntries, 16)][];
+    tuples = new Tuple[records.length];
+    for (int i = 0; i < numEntries; i++) {
+      int off = buf.getShort(HEADER_SIZE + i * ENTRY_SIZE) & 0xFFFF;
+      int len = buf.getShort(HEADER_SIZE + i * ENTRY_SIZE + 2) & 0xFFFF;
+      if (off == 0) {
+        continue;
+      }
+      if (off + len > page.length) {
+        throw new IOException("Bad record offset in slot " + i + " on page " + id.pageNumber());
+      }
+      records[i] = new byte[len];
+      System.arraycopy(page, off, records[i], 0, len);
+      usedBytes += len;
+    }
+
+    // an unmodified page is its own before image
+    oldData = page;
+  }
+
+  /**
+   * Returns the number of bytes in the record of the smallest possible
+   * tuple of td, i.e. one whose strings are all empty.
+   */
+  static int minRecordSize(TupleDesc td) {
+    int size = 0;
+    for (int i = 0; i < td.numFields(); i++) {
+      size += td.getFieldType(i) == Type.STRING_TYPE ? 2 : td.getFieldType(i).getLen();
+    }
+    return size;
+  }
+
+  /**
+   * Returns true if the page whose first HEADER_SIZE bytes are given has
+   * room for the smallest possible tuple of td.  Lets callers check a page
+   * for room without constructing it.
+   */
+  static boolean hasRoom(byte[] header, TupleDesc td) {
+    ByteBuffer buf = ByteBuffer.wrap(header);
+    int entries = buf.getInt(0);
+    if (entries == 0) {
+      // an all-zero page image is empty
+      return true;
+    }
+    int free = buf.getInt(4) - HEADER_SIZE - entries * ENTRY_SIZE;
+    return free >= minRecordSize(td) + ENTRY_SIZE;
+  }
+
+  /**
+   * Encodes t as a record in the format described in the class comment.
+   * Strings longer than Type.STRING_LEN are truncated, as in HeapPage.
+   */
+  static byte[] encodeRecord(Tuple t) {
+    TupleDesc td = t.getTupleDesc();
+    String[] strings = new String[td.numFields()];
+    int size = 0;
+    for (int j = 0; j < td.numFields(); j++) {
+      if (td.getFieldType(j) == Type.STRING_TYPE) {
+        String s = ((StringField) t.getField(j)).getValue();
+        if (s.length() > Type.STRING_LEN) {
+          s = s.substring(0, Type.STRING_LEN);
+        }
+        strings[j] = s;
+        size += 2 + s.length();
+      } else {
+        size += td.getFieldType(j).getLen();
+      }
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    for (int j = 0; j < td.numFields(); j++) {
+      if (strings[j] != null) {
+        buf.putShort((short) strings[j].length());
+        for (int k = 0; k < strings[j].length(); k++) {
+          buf.put((byte) strings[j].charAt(k));
+        }
+      } else {
+        t.getField(j).serialize(buf);
+      }
+    }
+    return buf.array();
+  }
+
+  /**
+   * Packs the first numEntries records into a page image of pageSize
+   * bytes.  Null records become empty slots.
+   *
+   * @throws IllegalArgumentException if the records do not fit
+   */
+  static byte[] pageImage(byte[][] records, int numEntries, int pageSize) {
+    byte[] out = new byte[pageSize];
+    ByteBuffer buf = ByteBuffer.wrap(out);
+    int end = pageSize;
+    buf.putInt(0, numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      byte[] rec = records[i];
+      if (rec == null) {
+        continue;
+      }
+      end -= rec.length;
+      if (end < HEADER_SIZE + numEntries * ENTRY_SIZE) {
+        throw new IllegalArgumentException("records do not fit on a page");
+      }
+      System.arraycopy(rec, 0, out, end, rec.length);
+      buf.putShort(HEADER_SIZE + i * ENTRY_SIZE, (short) end);
+      buf.putShort(HEADER_SIZE + i * ENTRY_SIZE + 2, (short) rec.length);
+    }
+    buf.putInt(4, end);
+    return out;
+  }
+
+  /** Return a view of this page before it was modified
+    -- used by recovery */
+  public SlottedHeapPage getBeforeImage(){
+    try {
+      return new SlottedHeapPage(pid,oldData);
+    } catch (IOException e) {
+      e.printStackTrace();
+      //should never happen -- we parsed it OK before!
+      System.exit(1);
+    }
+    return null;
+  }
+
+  public void setBeforeImage() {
+    oldData = getPageData();
+  }
+
+  /**
+   * @return the PageId associated with this page.
+   */
+  public HeapPageId getId() {
+    return pid;
+  }
+
+  /**
+   * Decode the tuple stored in record rec, which is in slot slotId.
+   */
+  private Tuple decodeTuple(int slotId, byte[] rec) {
+    ByteBuffer buf = ByteBuffer.wrap(rec);
+    Tuple t = new Tuple(td);
+    t.setRecordId(new RecordId(pid, slotId));
+    for (int j=0; j<td.numFields(); j++) {
+      if (td.getFieldType(j) == Type.STRING_TYPE) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] bs = new byte[len];
+        buf.get(bs);
+        t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+      } else {
+        t.setField(j, new IntField(buf.getInt()));
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Returns the tuple in used slot i, decoding and caching it on first
+   * access.
+   */
+  private Tuple getTuple(int i) {
+    Tuple t = tuples[i];
+    if (t == null) {
+      t = decodeTuple(i, records[i]);
+      tuples[i] = t;
+    }
+    return t;
+  }
+
+  /**
+   * Generates a byte array representing the contents of this page.
+   * Used to serialize this page to disk.
+   * <p>
+   * The invariant here is that it should be possible to pass the byte
+   * array generated by getPageData to the SlottedHeapPage constructor and
+   * have it produce an identical SlottedHeapPage object.
+   *
+   * @return A byte array correspond to the bytes of this page.
+   */
+  public synchronized byte[] getPageData() {
+    return pageImage(records, numEntries, BufferPool.PAGE_SIZE);
+  }
+
+  /**
+   * Static method to generate a byte array corresponding to an empty
+   * SlottedHeapPage.
+   *
+   * @return The returned ByteArray.
+   */
+  public static byte[] createEmptyPageData() {
+    return new byte[BufferPool.PAGE_SIZE]; //all 0
+  }
+
+  /**
+   * Returns the number of bytes on this page not taken up by the header,
+   * the slot directory or records.
+   */
+  public int getFreeSpace() {
+    return BufferPool.PAGE_SIZE - HEADER_SIZE - numEntries * ENTRY_SIZE - usedBytes;
+  }
+
+  /**
+   * Returns true if this page has room for the smallest possible tuple.
+   */
+  public boolean hasRoom() {
+    return getFreeSpace() >= minRecordSize(td) + ENTRY_SIZE;
+  }
+
+  /** Returns the slot an inserted tuple would go in. */
+  private int firstEmptySlot() {
+    for (int i = 0; i < numEntries; i++) {
+      if (records[i] == null) {
+        return i;
+      }
+    }
+    return numEntries;
+  }
+
+  /**
+   * Returns true if t's record fits in the free space on this page.
+   */
+  public boolean fits(Tuple t) {
+    return fits(encodeRecord(t).length);
+  }
+
+  private boolean fits(int recordLen) {
+    int need = recordLen + (firstEmptySlot() == numEntries ? ENTRY_SIZE : 0);
+    return need <= getFreeSpace();
+  }
+
+  /**
+   * Delete the specified tuple from the page;  the tuple should be updated to reflect
+   *   that it is no longer stored on any page.
+   * @throws DbException if this tuple is not on this page, or tuple slot is
+   *         already empty.
+   * @param t The tuple to delete
+   */
+  public void deleteTuple(Tuple t) throws DbException {
+    RecordId r = t.getRecordId();
+    if (r == null || !pid.equals(r.getPageId())) throw new DbException("Tuple not in page!");
+    int slotId = r.tupleno();
+    if (!isSlotUsed(slotId)) throw new DbException("Tuple slot is already empty!");
+    usedBytes -= records[slotId].length;
+    // iterators created before this delete hold on to the old records[]
+    // entries, so dropping them here doesn't affect those iterators
+    records[slotId] = null;
+    tuples[slotId] = null;
+    while (numEntries > 0 && records[numEntries - 1] == null) {
+      numEntries--;
+    }
+    t.setRecordId(null);
+  }
+
+  /**
+   * Adds the specified tuple to the page;  the tuple should be updated to reflect
+   *  that it is now stored on this page.
+   * @throws DbException if the page does not have room for the tuple or
+   *         tupledesc is mismatch.
+   * @param t The tuple to add.
+   */
+  public void insertTuple(Tuple t) throws DbException {
+    if (!t.getTupleDesc().equals(td)) {
+      throw new DbException("TupleDesc mismatch!");
+    }
+    byte[] rec = encodeRecord(t);
+    if (!fits(rec.length)) {
+      throw new DbException("Not enough free space on page!");
+    }
+    int i = firstEmptySlot();
+    if (i == records.length) {
+      byte[][] grownRecords = new byte[records.length * 2][];
+      System.arraycopy(records, 0, grownRecords, 0, records.length);
+      records = grownRecords;
+      Tuple[] grownTuples = new Tuple[tuples.length * 2];
+      System.arraycopy(tuples, 0, grownTuples, 0, tuples.length);
+      tuples = grownTuples;
+    }
+    if (i == numEntries) {
+      numEntries++;
+    }
+    records[i] = rec;
+    usedBytes += rec.length;
+    tuples[i] = t;
+    t.setRecordId(new RecordId(pid, i));
+  }
+
+  /**
+   * Marks this page as dirty/not dirty and record that transaction
+   * that did the dirtying
+   */
+  public void markDirty(boolean dirty, TransactionId tid) {
+      this.dirty = dirty;
+      lastTid = tid;
+  }
+
+  /**
+   * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+   */
+  public TransactionId isDirty() {
+      if (dirty) {
+	  return lastTid;
+      } else {
+	  return null;
+      }
+  }
+
+  /**
+   * Returns the number of tuples on this page.
+   */
+  public int getNumTuples() {
+    int n = 0;
+    for (int i = 0; i < numEntries; i++) {
+      if (records[i] != null) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Returns true if associated slot on this page is filled.
+   */
+  public boolean isSlotUsed(int i) {
+    return i >= 0 && i < numEntries && records[i] != null;
+  }
+
+  /**
+   * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+   */
+  public Iterator<Tuple> iterator() {
+    return new SlotIterator();
+  }
+
+  /**
+   * Iterates over the records on the page when the iterator was created,
+   * decoding each tuple only when it is returned.
+   */
+  private class SlotIterator implements Iterator<Tuple> {
+
+      private final byte[][] recs = records.clone();
+      private final int n = numEntries;
+      private int slot = 0;
+
+      public boolean hasNext() {
+	  while (slot < n && recs[slot] == null) {
+	      slot++;
+	  }
+	  return slot < n;
+      }
+
+      public Tuple next() {
+	  if (!hasNext()) {
+	      throw new NoSuchElementException();
+	  }
+	  int i = slot++;
+	  // the slot may have been emptied or refilled since the snapshot
+	  if (records[i] == recs[i]) {
+	      return getTuple(i);
+	  }
+	  return decodeTuple(i, recs[i]);
+      }
+
+      public void remove() { throw new UnsupportedOperationException("does not support remove!"); }
+  }
+}
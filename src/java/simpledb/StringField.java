@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -9,6 +10,8 @@ public class StringField implements Field {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final byte[] PADDING = new byte[Type.STRING_LEN];
+
 	private String value;
 	private int maxSize;
 
@@ -66,6 +69,26 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to buf in the format of
+	 * {@link #serialize(DataOutputStream)}.
+	 * 
+	 * @param buf
+	 *            Where the string is written
+	 */
+	public void serialize(ByteBuffer buf) {
+		int len = Math.min(value.length(), maxSize);
+		buf.putInt(len);
+		for (int i = 0; i < len; i++)
+			buf.put((byte) value.charAt(i));
+		int overflow = maxSize - len;
+		while (overflow > 0) {
+			int n = Math.min(overflow, PADDING.length);
+			buf.put(PADDING, 0, n);
+			overflow -= n;
+		}
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -160,6 +160,10 @@ public class Tuple implements Serializable {
 
   @Override
   public int hashCode() {
+      // must agree with equals
+      if (joinIndex == -1) {
+	  return toString().hashCode();
+      }
       return joinField().hashCode();
   }
 }
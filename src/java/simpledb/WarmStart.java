@@ -0,0 +1,288 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WarmStart saves the ids of the pages in the BufferPool, hottest first,
+ * to a sidecar file, and after a restart reads those pages back into the
+ * pool on a background thread, so that the first queries don't all start
+ * from a cold pool.
+ * <p>
+ * Warm start is off unless the system property
+ * simpledb.BufferPool.warmStart is true.  When it is on,
+ * {@link Catalog#loadSchema} calls {@link #start} with the sidecar of the
+ * catalog file, <i>catalogFile</i>.hot, and the pool is saved there at
+ * every checkpoint ({@link LogFile#logCheckpoint}) and when the Parser
+ * shuts down.  The file lists each table by name, as tables ids need not
+ * survive a restart, followed by the pages as (table, page number) pairs.
+ * <p>
+ * At most as many pages as the pool holds are restored, the hottest ones,
+ * read in file order, table by table and by page number.  Pages of tables
+ * no longer in the catalog, or past the end of their table, are skipped.
+ * The replacement policy is told restored pages are hot (see
+ * {@link ReplacementPolicy#restored}), so that under 2Q they don't go
+ * through the queue for pages read once.  When the restore is done it
+ * prints how many pages it read and how long that took.
+ */
+public class WarmStart {
+
+  /** The system property that turns warm start on. */
+  public static final String ENABLED_PROPERTY = "simpledb.BufferPool.warmStart";
+
+  private static final int MAGIC = 0x53444248;
+  private static final int VERSION = 1;
+
+  // sidecar of the loaded catalog if warm start is on
+  private static volatile File sidecar;
+
+  private final File file;
+  private final BufferPool bp;
+  private final List<PageId> pages;
+  private final AtomicInteger restored = new AtomicInteger();
+  private final long startNanos = System.nanoTime();
+  private volatile long nanos = -1;
+  private final Thread thread;
+
+  private WarmStart(File file, BufferPool bp, List<PageId> pages) {
+    this.file = file;
+    this.bp = bp;
+    this.pages = pages;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        restore();
+      }
+    }, "simpledb-warmstart");
+    thread.setDaemon(true);
+  }
+
+  /** Returns true if warm start is turned on by its system property. */
+  public static boolean isEnabled() {
+    return Boolean.getBoolean(ENABLED_PROPERTY);
+  }
+
+  /** Returns the sidecar file of the specified catalog file. */
+  public static File sidecarOf(String catalogFile) {
+    return new File(catalogFile + ".hot");
+  }
+
+  /**
+   * Makes f the file the pool is saved to by {@link #save()}, and starts
+   * restoring the pages it lists into the current BufferPool if it exists.
+   *
+   * @return the restore in progress, or null if there is no such file or
+   *   it could not be read
+   */
+  public static WarmStart start(File f) {
+    sidecar = f;
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      WarmStart ws = load(Database.getBufferPool(), f);
+      ws.thread.start();
+      return ws;
+    } catch (IOException e) {
+      // only a hint; start cold
+      System.err.println("Warm start: could not read " + f + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Saves the pages of the current BufferPool to the file given to the
+   * last call to start, if warm start is on and there was one.
+   */
+  public static void save() {
+    File f = sidecar;
+    if (f == null || !isEnabled()) {
+      return;
+    }
+    try {
+      save(Database.getBufferPool(), f);
+    } catch (IOException e) {
+      System.err.println("Warm start: could not save " + f + ": " + e);
+    }
+  }
+
+  /**
+   * Writes the ids of the pages in bp, hottest first, to f, replacing it
+   * only once the new list is complete.
+   *
+   * @return the number of pages saved
+   */
+  public static int save(BufferPool bp, File f) throws IOException {
+    Catalog c = Database.getCatalog();
+    HashMap<Integer, Integer> tableIndex = new HashMap<Integer, Integer>();
+    ArrayList<String> names = new ArrayList<String>();
+    ArrayList<PageId> saved = new ArrayList<PageId>();
+    for (PageId pid : bp.hotPages()) {
+      Integer index = tableIndex.get(pid.getTableId());
+      if (index == null) {
+        String name = c.getTableName(pid.getTableId());
+        if (name == null) {
+          continue;
+        }
+        index = names.size();
+        names.add(name);
+        tableIndex.put(pid.getTableId(), index);
+      }
+      saved.add(pid);
+    }
+
+    File tmp = new File(f.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(names.size());
+      for (String name : names) {
+        out.writeUTF(name);
+      }
+      out.writeInt(saved.size());
+      for (PageId pid : saved) {
+        out.writeInt(tableIndex.get(pid.getTableId()));
+        out.writeInt(pid.pageNumber());
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(f)) {
+      // renameTo does not replace an existing file on every platform
+      f.delete();
+      if (!tmp.renameTo(f)) {
+        throw new IOException("could not replace " + f);
+      }
+    }
+    return saved.size();
+  }
+
+  /**
+   * Reads the page list in f and returns a restore of the hottest pages
+   * that fit in bp, not yet started.
+   */
+  static WarmStart load(BufferPool bp, File f) throws IOException {
+    Catalog c = Database.getCatalog();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(f)));
+    ArrayList<PageId> pages = new ArrayList<PageId>();
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("not a page list");
+      }
+      int numTables = in.readInt();
+      DbFile[] files = new DbFile[numTables];
+      for (int i = 0; i < numTables; i++) {
+        try {
+          files[i] = c.getDbFile(c.getTableId(in.readUTF()));
+        } catch (NoSuchElementException e) {
+          // dropped since; skip its pages
+        }
+      }
+      int numPages = in.readInt();
+      HashSet<PageId> seen = new HashSet<PageId>();
+      HashMap<DbFile, Integer> sizes = new HashMap<DbFile, Integer>();
+      for (int i = 0; i < numPages && pages.size() < bp.capacity(); i++) {
+        int table = in.readInt();
+        int pageNo = in.readInt();
+        if (table < 0 || table >= numTables) {
+          throw new IOException("bad table index " + table);
+        }
+        DbFile file = files[table];
+        if (file == null) {
+          continue;
+        }
+        Integer size = sizes.get(file);
+        if (size == null) {
+          size = file instanceof HeapFile ? ((HeapFile) file).numPages() : Integer.MAX_VALUE;
+          sizes.put(file, size);
+        }
+        PageId pid = new HeapPageId(file.getId(), pageNo);
+        if (pageNo >= 0 && pageNo < size && seen.add(pid)) {
+          pages.add(pid);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    // read in file order
+    Collections.sort(pages, new Comparator<PageId>() {
+      public int compare(PageId a, PageId b) {
+        if (a.getTableId() != b.getTableId()) {
+          return a.getTableId() < b.getTableId() ? -1 : 1;
+        }
+        return a.pageNumber() < b.pageNumber() ? -1
+            : (a.pageNumber() == b.pageNumber() ? 0 : 1);
+      }
+    });
+    return new WarmStart(f, bp, pages);
+  }
+
+  /** Reads the pages into the pool on the calling thread. */
+  void restore() {
+    for (PageId pid : pages) {
+      try {
+        if (!bp.isCached(pid)) {
+          bp.restorePage(pid);
+          if (bp.isCached(pid)) {
+            restored.incrementAndGet();
+          }
+        }
+      } catch (DbException e) {
+        // e.g. the pool filled up with dirty pages; the rest is just a hint
+      } catch (RuntimeException e) {
+        // e.g. the table was removed from the catalog meanwhile
+      }
+    }
+    nanos = System.nanoTime() - startNanos;
+    System.out.println(this);
+  }
+
+  /** Waits for the restore to finish. */
+  public void await() throws InterruptedException {
+    thread.join();
+  }
+
+  /** Returns true if the restore has finished. */
+  public boolean isDone() {
+    return nanos >= 0;
+  }
+
+  /** Returns the number of pages the restore tries to read. */
+  public int getRequested() {
+    return pages.size();
+  }
+
+  /** Returns the number of pages read into the pool so far. */
+  public int getRestored() {
+    return restored.get();
+  }
+
+  /**
+   * Returns how long the restore took, in milliseconds, or -1 if it has
+   * not finished.
+   */
+  public long getMillis() {
+    return nanos < 0 ? -1 : nanos / 1000000;
+  }
+
+  public String toString() {
+    return "Warm start: restored " + restored.get() + " of " + pages.size()
+        + " pages from " + file + (isDone() ? " in " + getMillis() + " ms" : "");
+  }
+}
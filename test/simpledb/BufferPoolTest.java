@@ -0,0 +1,425 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        assertEquals(4, hf.numPages());
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int i) {
+        return new HeapPageId(hf.getId(), i);
+    }
+
+    /**
+     * A pinned page stays in the pool, and a pool of pinned pages cannot
+     * make room for another one.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        for (int i = 1; i < 4; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertTrue(bp.isCached(pid(0)));
+        assertEquals(1, bp.pinCount(pid(0)));
+
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.pinCount(pid(1)));
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("should not evict a pinned page");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(pid(1));
+        bp.unpinPage(pid(1));
+        assertEquals(0, bp.pinCount(pid(1)));
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertTrue(bp.isCached(pid(0)));
+        assertFalse(bp.isCached(pid(1)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unpinUnpinned() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.unpinPage(pid(0));
+    }
+
+    /**
+     * Dirty pages are never evicted, and inserting or deleting a tuple
+     * leaves no page pinned.
+     */
+    @Test public void dirtyPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        for (int i = 0; i < 2; i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, p.iterator().next());
+            assertEquals(0, bp.pinCount(pid(i)));
+        }
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("should not evict a dirty page");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid, false);
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A HeapFile iterator pins the page it is reading, and unpins it when
+     * it moves on, runs out of tuples or is closed.
+     */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        assertEquals(1, bp.pinCount(pid(0)));
+        for (int i = 0; i < 504; i++) {
+            it.next();
+        }
+        assertTrue(it.hasNext());
+        assertEquals(0, bp.pinCount(pid(0)));
+        assertEquals(1, bp.pinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.pinCount(pid(1)));
+
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        assertEquals(0, bp.pinCount(pid(3)));
+        it.close();
+    }
+
+    /**
+     * An off-heap pool reads pages into frames, writes changes back through
+     * them, and moves evicted pages back onto the heap so that a page object
+     * still referenced keeps its contents after its frame is reused.
+     */
+    @Test public void offHeapFrames() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, ReplacementPolicy.Kind.FIFO, true);
+        assertTrue(bp.isOffHeap());
+        byte[] expected = hf.readPage(pid(0)).getPageData();
+        HeapPage p0 = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_WRITE);
+        assertArrayEquals(expected, p0.getPageData());
+        assertEquals(1, bp.framesInUse());
+
+        Tuple t = p0.iterator().next();
+        bp.deleteTuple(tid, t);
+        Tuple added = new Tuple(hf.getTupleDesc());
+        added.setField(0, new IntField(-1));
+        added.setField(1, new IntField(-2));
+        bp.insertTuple(tid, hf.getId(), added);
+        bp.transactionComplete(tid);
+        bp.writeCommittedPages();
+        byte[] written = hf.readPage(pid(0)).getPageData();
+        assertArrayEquals(written, p0.getPageData());
+        // committed contents are the before image of the next transaction
+        assertArrayEquals(written, p0.getBeforeImage().getPageData());
+
+        TransactionId tid2 = new TransactionId();
+        for (int i = 1; i < 4; i++) {
+            bp.getPage(tid2, pid(i), Permissions.READ_ONLY);
+        }
+        assertFalse(bp.isCached(pid(0)));
+        assertEquals(2, bp.framesInUse());
+        assertArrayEquals(written, p0.getPageData());
+        bp.transactionComplete(tid2);
+    }
+
+    /**
+     * Pages are routed to shards by PageId hash, and a page added to a full
+     * pool evicts a page of its own shard, by that shard's policy.
+     */
+    @Test public void shardRouting() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 16, null, null);
+        BufferPool bp = new BufferPool(8, ReplacementPolicy.Kind.FIFO, 2);
+        assertEquals(2, bp.numShards());
+        HeapPageId[] pids = new HeapPageId[9];
+        boolean[] shardUsed = new boolean[2];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new HeapPageId(big.getId(), i);
+            assertEquals((pids[i].hashCode() & 0x7fffffff) % 2, bp.shardIndex(pids[i]));
+            shardUsed[bp.shardIndex(pids[i])] = true;
+        }
+        assertTrue(shardUsed[0] && shardUsed[1]);
+
+        for (int i = 0; i < 8; i++) {
+            bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, pids[8], Permissions.READ_ONLY);
+        // the first page read into page 8's shard goes, whatever the others
+        int first = 0;
+        while (bp.shardIndex(pids[first]) != bp.shardIndex(pids[8])) {
+            first++;
+        }
+        for (int i = 0; i < pids.length; i++) {
+            assertEquals(pids[i].toString(), i != first, bp.isCached(pids[i]));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Shards have no capacity of their own: one shard can take every page
+     * of the pool, and a page added to an empty shard of a full pool
+     * evicts a page of the next shard that has one.
+     */
+    @Test public void shardsShareCapacity() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 24, null, null);
+        BufferPool bp = new BufferPool(4, ReplacementPolicy.Kind.FIFO, 4);
+        // five pages of one shard, and one of another
+        HeapPageId[] same = new HeapPageId[5];
+        HeapPageId other = null;
+        int n = 0;
+        for (int i = 0; i < big.numPages() && (n < same.length || other == null); i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i);
+            if (n == 0 || bp.shardIndex(pid) == bp.shardIndex(same[0])) {
+                if (n < same.length) {
+                    same[n++] = pid;
+                }
+            } else if (other == null) {
+                other = pid;
+            }
+        }
+        assertEquals(same.length, n);
+        assertNotNull(other);
+
+        for (int i = 0; i < 4; i++) {
+            bp.getPage(tid, same[i], Permissions.READ_ONLY);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(bp.isCached(same[i]));
+        }
+        bp.getPage(tid, same[4], Permissions.READ_ONLY);
+        assertFalse(bp.isCached(same[0]));
+        bp.getPage(tid, other, Permissions.READ_ONLY);
+        assertFalse(bp.isCached(same[1]));
+        assertTrue(bp.isCached(other));
+        for (int i = 2; i < 5; i++) {
+            assertTrue(bp.isCached(same[i]));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Commit leaves the transaction's pages clean but unwritten, waiting
+     * for the PageWriter, which writes adjacent pages with one write.
+     */
+    @Test public void commitCoalescesAdjacentPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageWriter writer = bp.getPageWriter();
+        writer.setPolicy(0, 0);
+        HeapPage[] pages = new HeapPage[4];
+        byte[][] original = new byte[4][];
+        // dirty pages 2, 0, 3 and 1, in that order
+        for (int i : new int[] { 2, 0, 3, 1 }) {
+            original[i] = hf.readPage(pid(i)).getPageData();
+            pages[i] = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, pages[i].iterator().next());
+        }
+        bp.transactionComplete(tid);
+        assertEquals(4, bp.pendingWrites());
+        for (int i = 0; i < 4; i++) {
+            assertNull(pages[i].isDirty());
+            assertArrayEquals(original[i], hf.readPage(pid(i)).getPageData());
+        }
+
+        long writes = writer.getWrites();
+        long written = writer.getPagesWritten();
+        bp.writeCommittedPages();
+        assertEquals(1, writer.getWrites() - writes);
+        assertEquals(4, writer.getPagesWritten() - written);
+        assertEquals(0, bp.pendingWrites());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(pages[i].getPageData(), hf.readPage(pid(i)).getPageData());
+        }
+    }
+
+    /**
+     * Committed pages that fail to be written stay in the pool, waiting:
+     * an eviction that needs them fails, and the next one writes them.
+     */
+    @Test public void failedWriteKeepsPagesWaiting() throws Exception {
+        final boolean[] broken = { true };
+        hf = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            public int writePages(List<Page> pages) throws IOException {
+                if (broken[0]) {
+                    throw new IOException("disk full");
+                }
+                return super.writePages(pages);
+            }
+        };
+        Database.getCatalog().addTable(hf);
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.getPageWriter().setPolicy(0, 0);
+        HeapPage[] pages = new HeapPage[2];
+        for (int i = 0; i < 2; i++) {
+            pages[i] = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, pages[i].iterator().next());
+        }
+        bp.transactionComplete(tid);
+
+        TransactionId reader = new TransactionId();
+        try {
+            bp.getPage(reader, pid(2), Permissions.READ_ONLY);
+            fail("evicted a page whose committed image was not written");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(1, bp.getEvictionStalls());
+        assertEquals(2, bp.pendingWrites());
+        assertTrue(bp.isCached(pid(0)));
+        assertTrue(bp.isCached(pid(1)));
+
+        broken[0] = false;
+        bp.getPage(reader, pid(2), Permissions.READ_ONLY);
+        assertEquals(2, bp.getEvictionStalls());
+        assertEquals(0, bp.pendingWrites());
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(pages[i].getPageData(), hf.readPage(pid(i)).getPageData());
+        }
+        bp.transactionComplete(reader);
+    }
+
+    /** The PageWriter writes committed pages in the background. */
+    @Test(timeout = 10000) public void pageWriterWritesInBackground() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.getPageWriter().setPolicy(10, 0);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+        bp.transactionComplete(tid);
+        while (bp.pendingWrites() > 0) {
+            Thread.sleep(5);
+        }
+        assertArrayEquals(page.getPageData(), hf.readPage(pid(0)).getPageData());
+        assertTrue(bp.getPageWriter().getRounds() > 0);
+        assertEquals(0, bp.getEvictionStalls());
+    }
+
+    /**
+     * Abort puts the before images of the pages the transaction dirtied
+     * back into the pool, and commit makes its changes the before images
+     * of the next transaction.
+     */
+    @Test public void abortRestoresBeforeImages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        byte[] original = hf.readPage(pid(0)).getPageData();
+        HeapPage p = (HeapPage) bp.getPage(tid, pid(0), Permissions.READ_WRITE);
+        bp.deleteTuple(tid, p.iterator().next());
+        bp.transactionComplete(tid, false);
+        assertTrue(bp.isCached(pid(0)));
+        TransactionId tid2 = new TransactionId();
+        HeapPage restored = (HeapPage) bp.getPage(tid2, pid(0), Permissions.READ_WRITE);
+        assertNotSame(p, restored);
+        assertNull(restored.isDirty());
+        assertArrayEquals(original, restored.getPageData());
+
+        bp.deleteTuple(tid2, restored.iterator().next());
+        byte[] committed = restored.getPageData();
+        bp.transactionComplete(tid2, true);
+        TransactionId tid3 = new TransactionId();
+        HeapPage p3 = (HeapPage) bp.getPage(tid3, pid(0), Permissions.READ_WRITE);
+        bp.deleteTuple(tid3, p3.iterator().next());
+        bp.transactionComplete(tid3, false);
+        assertArrayEquals(committed,
+                bp.getPage(tid, pid(0), Permissions.READ_ONLY).getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A prefetch that read a page before an abort undid the page's change
+     * on disk does not put the uncommitted image into the pool afterwards.
+     */
+    @Test(timeout = 10000) public void abortDuringPrefetch() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] prefetcher = new Thread[1];
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile gated = new HeapFile(f, Utility.getTupleDesc(2)) {
+            public Page readPage(PageId pid) {
+                Page p = super.readPage(pid);
+                pause();
+                return p;
+            }
+
+            public Page readPage(PageId pid, ByteBuffer frame) throws IOException {
+                Page p = super.readPage(pid, frame);
+                pause();
+                return p;
+            }
+
+            private void pause() {
+                if (Thread.currentThread() == prefetcher[0]) {
+                    read.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        Database.getCatalog().addTable(gated, SystemTestUtil.getUUID());
+        final HeapPageId pid = new HeapPageId(gated.getId(), 0);
+        byte[] original = gated.readPage(pid).getPageData();
+
+        // the uncommitted change reaches the disk, and leaves the pool
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+        bp.deleteTuple(t.getId(), p.iterator().next());
+        bp.flushAllPages();
+        bp.discardPage(pid);
+
+        prefetcher[0] = new Thread() {
+            public void run() {
+                try {
+                    bp.prefetchPage(pid);
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        prefetcher[0].start();
+        read.await();
+        t.abort();
+        release.countDown();
+        prefetcher[0].join();
+
+        assertArrayEquals(original, gated.readPage(pid).getPageData());
+        assertArrayEquals(original, bp.getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -115,6 +115,26 @@ public class CatalogTest extends SimpleDbTestBase {
         } catch (NoSuchElementException e){}
     }
 
+    /**
+     * Unit test for Catalog.findDbFile(), including tables replaced by name
+     * and by id.
+     */
+    @Test public void findDbFile() throws Exception {
+        assertEquals(-1, Database.getCatalog().findDbFile(-1).getId());
+        assertNull(Database.getCatalog().findDbFile(100));
+
+        Database.getCatalog().addTable(new SkeletonFile(-5, Utility.getTupleDesc(2)), name);
+        assertNull(Database.getCatalog().findDbFile(-2));
+        assertEquals(-5, Database.getCatalog().findDbFile(-5).getId());
+
+        DbFile replacement = new SkeletonFile(-1, Utility.getTupleDesc(3));
+        Database.getCatalog().addTable(replacement, "other");
+        assertSame(replacement, Database.getCatalog().findDbFile(-1));
+
+        Database.getCatalog().clear();
+        assertNull(Database.getCatalog().findDbFile(-1));
+    }
+
     @Test public void new_tableIteratorTest() {
         Iterator<Integer> i = Database.getCatalog().tableIdIterator();
 
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest {
+    private TransactionId tid;
+    private TupleDesc td;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "id", "name", "year" });
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Tuple tuple(int id, String name, int year) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        t.setField(2, new IntField(year));
+        return t;
+    }
+
+    /** Fills a HeapPage image, with a few empty slots. */
+    private byte[] samplePage(int tableid) throws Exception {
+        HeapPage p = new HeapPage(new HeapPageId(tableid, 0), HeapPage.createEmptyPageData());
+        ArrayList<Tuple> ts = new ArrayList<Tuple>();
+        while (p.getNumEmptySlots() > 0) {
+            Tuple t = tuple(ts.size() * 3 - 40, "venue " + (ts.size() % 7), 1990 + ts.size() / 5);
+            p.insertTuple(t);
+            ts.add(t);
+        }
+        p.deleteTuple(ts.get(2));
+        p.deleteTuple(ts.get(ts.size() - 1));
+        return p.getPageData();
+    }
+
+    /**
+     * Both codecs decompress a page to an image that decodes to the same
+     * tuples as the original.
+     */
+    @Test public void codecRoundTrip() throws Exception {
+        File f = File.createTempFile("codec", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, "codec");
+        byte[] page = samplePage(hf.getId());
+
+        for (PageCodec c : PageCodec.values()) {
+            byte[] compressed = c.compress(page, td);
+            assertTrue(c + " compressed to " + compressed.length,
+                    compressed.length < page.length / 4);
+            byte[] out = new byte[BufferPool.PAGE_SIZE];
+            c.decompress(compressed, compressed.length, out, td);
+            HeapPageId pid = new HeapPageId(hf.getId(), 0);
+            assertArrayEquals(new HeapPage(pid, page).getPageData(),
+                    new HeapPage(pid, out).getPageData());
+        }
+    }
+
+    /**
+     * Inserted tuples survive flushing, closing and reopening the file, and
+     * compact() keeps only the current frames.
+     */
+    @Test public void insertFlushReopen() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile cf = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(cf, "compressed");
+        for (int i = 0; i < 100; i++) {
+            Database.getBufferPool().insertTuple(tid, cf.getId(), tuple(i, "name" + i, 2000));
+        }
+        assertEquals(4, cf.numPages());
+        Database.getBufferPool().flushAllPages();
+        assertTrue(f.length() > cf.compressedBytes());
+
+        cf.compact();
+        assertEquals(cf.compressedBytes(), f.length());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CompressedHeapFile reopened = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(reopened, "compressed");
+        assertEquals(4, reopened.numPages());
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new StringField("name" + ((IntField) t.getField(0)).getValue(),
+                    Type.STRING_LEN), t.getField(1));
+            n++;
+        }
+        it.close();
+        assertEquals(100, n);
+    }
+
+    /**
+     * A frame torn by a crash during a write is ignored on reopen.
+     */
+    @Test public void tornFrame() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File rows = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 1000, null, tuples);
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedHeapFile cf = new CompressedHeapFile(f, Utility.getTupleDesc(2));
+        HeapFile hf = Utility.openHeapFile(2, rows);
+        for (int i = 0; i < hf.numPages(); i++) {
+            cf.writePage(hf.readPage(new HeapPageId(hf.getId(), i)));
+        }
+        cf.close();
+        long good = f.length();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(good + 20);
+        raf.seek(good);
+        raf.writeInt(0);
+        raf.close();
+
+        Database.getCatalog().addTable(cf, "compressed");
+        assertEquals(hf.numPages(), cf.numPages());
+        SystemTestUtil.matchTuples(cf, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +78,104 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() and writePage() in mapped mode, on a
+     * file with one full mapped segment plus a trailing unmapped page.
+     */
+    @Test
+    public void readWriteMappedPage() throws Exception {
+        int perPage = 504;
+        int rows = perPage * HeapFile.MAPPED_SEGMENT_PAGES + 10;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, rows, 1000, null, tuples);
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMapped());
+        assertEquals(HeapFile.MAPPED_SEGMENT_PAGES + 1, mapped.numPages());
+
+        int[] pages = { 0, HeapFile.MAPPED_SEGMENT_PAGES - 1, HeapFile.MAPPED_SEGMENT_PAGES };
+        for (int p : pages) {
+            HeapPage page = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), p));
+            Iterator<Tuple> it = page.iterator();
+            int row = p * perPage;
+            while (it.hasNext()) {
+                assertEquals(tuples.get(row++), SystemTestUtil.tupleToList(it.next()));
+            }
+        }
+
+        // writes through a live mapping are visible to later reads
+        HeapPageId pid = new HeapPageId(mapped.getId(), 1);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        assertEquals(1, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+        mapped.close();
+        assertEquals(1, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Once its segment is mapped, a page is read and written without the
+     * file's monitor, so that scans of a mapped table don't queue on it.
+     */
+    @Test(timeout = 10000)
+    public void mappedPagesWithoutMonitor() throws Exception {
+        int rows = 504 * HeapFile.MAPPED_SEGMENT_PAGES;
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, rows, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        final HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        final HeapPageId pid = new HeapPageId(mapped.getId(), 7);
+        mapped.readPage(new HeapPageId(mapped.getId(), 0));
+
+        final Throwable[] error = new Throwable[1];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    HeapPage page = (HeapPage) mapped.readPage(pid);
+                    page.deleteTuple(page.iterator().next());
+                    mapped.writePage(page);
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        synchronized (mapped) {
+            reader.start();
+            reader.join();
+        }
+        assertNull(error[0]);
+        assertEquals(1, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * A page read from a mapped segment is read in place until it is
+     * modified; its before image must not follow the mapping once the
+     * modified page is written back.
+     */
+    @Test
+    public void mappedPageBeforeImage() throws Exception {
+        int rows = 504 * HeapFile.MAPPED_SEGMENT_PAGES;
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, rows, 1000, null,
+                new ArrayList<ArrayList<Integer>>());
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(mapped.getId(), 1);
+
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        byte[] original = page.getPageData();
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        HeapPage modified = (HeapPage) mapped.readPage(pid);
+        byte[] written = modified.getPageData();
+        page.setBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        mapped.writePage(page);
+        assertArrayEquals(written, page.getBeforeImage().getPageData());
+        assertEquals(0, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +220,45 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * An interrupt during channel I/O closes the file's channel, e.g. in a
+     * transaction aborted while waiting for a lock, whose rollback then
+     * reads its pages on the interrupted thread.  The scan and later reads
+     * of the table must still succeed.
+     */
+    @Test
+    public void readAfterInterrupt() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        // make the scans read every page from disk
+        Database.resetBufferPool(1);
+
+        Thread.currentThread().interrupt();
+        int count = 0;
+        DbFileIterator it = f.iterator(tid);
+        try {
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+        } finally {
+            it.close();
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(2000, count);
+        Database.getBufferPool().transactionComplete(tid);
+
+        count = 0;
+        it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(2000, count);
+    }
+
     /**
      * JUnit suite target
      */
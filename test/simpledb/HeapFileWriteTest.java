@@ -43,6 +43,100 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() reusing space freed by
+     * HeapFile.deleteTuple() instead of appending a page.
+     */
+    @Test public void insertIntoFreedSlot() throws Exception {
+        for (int i = 0; i < 504 * 3; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+
+        HeapPageId pid = new HeapPageId(empty.getId(), 1);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        empty.deleteTuple(tid, p.iterator().next());
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(3, empty.numPages());
+        assertEquals(pid, t.getRecordId().getPageId());
+    }
+
+    /** Fills the first pages pages of empty and commits. */
+    private void fillPages(int pages) throws Exception {
+        for (int i = 0; i < 504 * pages; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(pages, empty.numPages());
+        assertEquals(-1, empty.nextFreePage(0));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+    }
+
+    /** Deletes the first tuple of page pageNo of empty. */
+    private void deleteFrom(int pageNo) throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), pageNo);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        empty.deleteTuple(tid, p.iterator().next());
+    }
+
+    /**
+     * Aborting a delete restores the full page, and the free space map must
+     * no longer send inserts to it.
+     */
+    @Test public void freeSpaceAfterAbort() throws Exception {
+        fillPages(2);
+        deleteFrom(0);
+        deleteFrom(1);
+        assertEquals(0, empty.nextFreePage(0));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(-1, empty.nextFreePage(0));
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * close() drops the free space map, which is rebuilt from the page
+     * headers on disk when the file is next used.
+     */
+    @Test public void freeSpaceAfterClose() throws Exception {
+        fillPages(3);
+        deleteFrom(1);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().writeCommittedPages();
+        tid = new TransactionId();
+
+        empty.close();
+        assertEquals(1, empty.nextFreePage(0));
+        assertEquals(-1, empty.nextFreePage(2));
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().pageNumber());
+        assertEquals(-1, empty.nextFreePage(0));
+    }
+
+    /**
+     * An insert into a file whose pages are all full appends a page, which
+     * the free space map then offers to later inserts.
+     */
+    @Test public void freeSpaceAfterAppend() throws Exception {
+        fillPages(2);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(3, empty.numPages());
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, empty.nextFreePage(0));
+
+        t = Utility.getHeapTuple(8, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(3, empty.numPages());
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+    }
+
     /**
      * JUnit suite target
      */
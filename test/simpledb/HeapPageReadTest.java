@@ -112,6 +112,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         } catch (UnsupportedOperationException e) {}
     }
 
+    /**
+     * Unit test for HeapPage.getField()
+     */
+    @Test public void getField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) page.getField(row, 1)).getValue());
+        }
+        try {
+            page.getField(EXAMPLE_VALUES.length, 0);
+            Assert.fail("Reading an empty slot should throw NoSuchElementException.");
+        } catch (NoSuchElementException e) {}
+    }
+
+    /**
+     * The iterator returns the tuples that were on the page when it was
+     * created, even if they are deleted during iteration.
+     */
+    @Test public void iteratorAfterDelete() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        page.deleteTuple(second);
+
+        int row = 2;
+        while (it.hasNext()) {
+            assertEquals(EXAMPLE_VALUES[row++][0], ((IntField) it.next().getField(0)).getValue());
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+        assertEquals(EXAMPLE_VALUES[0][0], ((IntField) first.getField(0)).getValue());
+        assertEquals(485, page.getNumEmptySlots());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -133,6 +167,89 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Returns the image of a page of three-int tuples, which has 337
+     * slots, not a multiple of 8, and so seven padding bits at the end of
+     * its 43 header bytes.  Its header bytes are all set to headerByte.
+     */
+    static byte[] oddPageData(int headerByte) {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        Arrays.fill(data, 0, HeapPage.headerBytes(Utility.getTupleDesc(3)), (byte) headerByte);
+        return data;
+    }
+
+    /**
+     * A page whose slot count is neither a multiple of 8 nor of 64, with
+     * every header bit set, padding included, is full, and every one of its
+     * slots is returned.
+     */
+    @Test public void fullOddPage() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-2, Utility.getTupleDesc(3)), SystemTestUtil.getUUID());
+        byte[] data = oddPageData(0xFF);
+        HeapPage page = new HeapPage(new HeapPageId(-2, 0), data);
+        assertEquals(0, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(336));
+        assertFalse(HeapPage.hasEmptySlot(data, 337));
+
+        Iterator<Tuple> it = page.iterator();
+        int n = 0;
+        Tuple last = null;
+        while (it.hasNext()) {
+            last = it.next();
+            n++;
+        }
+        assertEquals(337, n);
+        assertEquals(336, last.getRecordId().tupleno());
+    }
+
+    /**
+     * Padding bits set after the last slot of the on-disk header are not
+     * used slots.
+     */
+    @Test public void paddingBitsIgnored() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-2, Utility.getTupleDesc(3)), SystemTestUtil.getUUID());
+        byte[] data = oddPageData(0);
+        // slot 336 is bit 0 of byte 42; bits 1 to 7 are padding
+        data[42] = (byte) 0xFE;
+        long[] words = HeapPage.headerWords(data, 337);
+        assertEquals(6, words.length);
+        assertEquals(0, words[5]);
+        assertTrue(HeapPage.hasEmptySlot(data, 337));
+
+        HeapPage page = new HeapPage(new HeapPageId(-2, 0), data);
+        assertEquals(337, page.getNumEmptySlots());
+        assertFalse(page.isSlotUsed(336));
+        assertFalse(page.iterator().hasNext());
+    }
+
+    /**
+     * The last slot of the last header word, slot 503 of a page of
+     * two-int tuples, is bit 55 of word 7, bit 7 of header byte 62.
+     */
+    @Test public void lastSlotOfLastWord() throws Exception {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        Arrays.fill(data, 0, 63, (byte) 0xFF);
+        data[62] = (byte) 0x7F;
+        assertEquals((1L << 55) - 1, HeapPage.headerWords(data, 504)[7]);
+        assertTrue(HeapPage.hasEmptySlot(data, 504));
+
+        HeapPage page = new HeapPage(pid, data);
+        assertEquals(1, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(502));
+        assertFalse(page.isSlotUsed(503));
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        assertEquals(503, n);
+
+        data[62] = (byte) 0xFF;
+        assertFalse(HeapPage.hasEmptySlot(data, 504));
+        page = new HeapPage(pid, data);
+        assertEquals(0, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(503));
+    }
+
     /**
      * JUnit suite target
      */
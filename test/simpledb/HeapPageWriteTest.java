@@ -2,8 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,48 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Inserts fill the only empty slot of a page, the last slot of its last
+     * header word or of a slot count that is not a multiple of 8, and
+     * then the page is full.
+     */
+    @Test public void insertIntoLastSlot() throws Exception {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        Arrays.fill(data, 0, 63, (byte) 0xFF);
+        data[62] = (byte) 0x7F;
+        HeapPage page = new HeapPage(pid, data);
+        Tuple t = Utility.getHeapTuple(new int[] { 1, 2 });
+        page.insertTuple(t);
+        assertEquals(503, t.getRecordId().tupleno());
+        assertFullPage(page, Utility.getHeapTuple(new int[] { 3, 4 }));
+
+        Database.getCatalog().addTable(new SkeletonFile(-2, Utility.getTupleDesc(3)), SystemTestUtil.getUUID());
+        data = HeapPageReadTest.oddPageData(0xFF);
+        data[42] = 0;
+        page = new HeapPage(new HeapPageId(-2, 0), data);
+        assertEquals(1, page.getNumEmptySlots());
+        t = Utility.getHeapTuple(new int[] { 1, 2, 3 });
+        page.insertTuple(t);
+        assertEquals(336, t.getRecordId().tupleno());
+        assertFullPage(page, Utility.getHeapTuple(new int[] { 4, 5, 6 }));
+
+        // a deleted slot is the next one filled
+        page.deleteTuple(t);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 8, 9 }));
+        assertEquals(0, page.getNumEmptySlots());
+        assertEquals(0, page.getPageData()[42] & 0xFE);
+    }
+
+    private static void assertFullPage(HeapPage page, Tuple t) {
+        assertEquals(0, page.getNumEmptySlots());
+        try {
+            page.insertTuple(t);
+            fail("page should be full");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,245 @@
+package simpledb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+    private final PageId p2 = new HeapPageId(1, 2);
+    private final PageId p3 = new HeapPageId(1, 3);
+
+    /**
+     * Acquires a lock, exclusive unless told otherwise, in a new thread,
+     * and releases all of the transaction's locks if it is aborted.
+     */
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid) {
+            this(lm, tid, pid, Permissions.READ_WRITE);
+        }
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, perm);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+                lm.releaseAll(tid);
+            }
+        }
+    }
+
+    /** Shared locks on a page are compatible with each other. */
+    @Test public void sharedLocksCompatible() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertTrue(lm.holdsLock(t2, p0));
+        // asking again for a lock already held doesn't block
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+    }
+
+    /**
+     * An exclusive lock waits for the shared locks on its page, and a shared
+     * lock for the exclusive one, until they are released.
+     */
+    @Test public void exclusiveConflicts() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p1, Permissions.READ_WRITE);
+        // an exclusive lock is also good for reading
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(lm, t2, p0);
+        writer.start();
+        Thread.sleep(100);
+        assertFalse(writer.acquired);
+        lm.release(t1, p0);
+        writer.join(5000);
+        assertTrue(writer.acquired);
+        assertFalse(lm.holdsLock(t1, p0));
+
+        Acquirer reader = new Acquirer(lm, t2, p1, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(100);
+        assertFalse(reader.acquired);
+        lm.release(t1, p1);
+        reader.join(5000);
+        assertTrue(reader.acquired);
+        assertEquals(0, lm.getDeadlocks());
+    }
+
+    /**
+     * The only holder of a shared lock upgrades it at once; with another
+     * holder, the upgrade waits until that one releases its lock.
+     */
+    @Test public void upgrade() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, p0));
+        Acquirer reader = new Acquirer(lm, t2, p0, Permissions.READ_ONLY);
+        reader.start();
+        Thread.sleep(100);
+        assertFalse(reader.acquired);
+        lm.releaseAll(t1);
+        reader.join(5000);
+        assertTrue(reader.acquired);
+
+        lm.acquire(t1, p0, Permissions.READ_ONLY);
+        Acquirer upgrader = new Acquirer(lm, t1, p0);
+        upgrader.start();
+        Thread.sleep(100);
+        assertFalse(upgrader.acquired);
+        lm.release(t2, p0);
+        upgrader.join(5000);
+        assertTrue(upgrader.acquired);
+        assertFalse(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * releaseAll drops every lock of a transaction and wakes the
+     * transactions waiting for them.
+     */
+    @Test public void releaseAll() throws Exception {
+        LockManager lm = new LockManager(1, LockManager.VictimPolicy.YOUNGEST);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t1, p1, Permissions.READ_ONLY);
+        lm.acquire(t1, p2, Permissions.READ_WRITE);
+
+        Acquirer a2 = new Acquirer(lm, t2, p0, Permissions.READ_ONLY);
+        Acquirer a3 = new Acquirer(lm, t3, p1);
+        a2.start();
+        a3.start();
+        Thread.sleep(100);
+        assertFalse(a2.acquired);
+        assertFalse(a3.acquired);
+
+        lm.releaseAll(t1);
+        a2.join(5000);
+        a3.join(5000);
+        assertTrue(a2.acquired);
+        assertTrue(a3.acquired);
+        for (PageId pid : new PageId[] { p0, p1, p2 }) {
+            assertFalse(lm.holdsLock(t1, pid));
+        }
+        // nothing left to release
+        lm.releaseAll(t1);
+        lm.acquire(t1, p2, Permissions.READ_WRITE);
+    }
+
+    /**
+     * With the YOUNGEST policy, the younger of two deadlocked transactions
+     * is aborted, here the one closing the cycle, and the older gets its
+     * lock once the younger releases its locks.
+     */
+    @Test public void youngestVictim() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_WRITE);
+        lm.acquire(younger, p1, Permissions.READ_WRITE);
+
+        Acquirer a = new Acquirer(lm, older, p1);
+        a.start();
+        Thread.sleep(100);
+        assertFalse(a.acquired);
+        try {
+            lm.acquire(younger, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getDeadlocks());
+        assertEquals(1, lm.getVictimAborts());
+
+        lm.releaseAll(younger);
+        a.join(5000);
+        assertTrue(a.acquired);
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    /**
+     * With the FEWEST_LOCKS policy, the transaction holding fewer locks is
+     * aborted even when it is not the one closing the cycle, and is woken
+     * from its wait to do so.
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        LockManager lm = new LockManager(4, LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId small = new TransactionId();
+        TransactionId big = new TransactionId();
+        lm.acquire(small, p0, Permissions.READ_WRITE);
+        lm.acquire(big, p1, Permissions.READ_WRITE);
+        lm.acquire(big, p2, Permissions.READ_ONLY);
+        lm.acquire(big, p3, Permissions.READ_ONLY);
+
+        Acquirer a = new Acquirer(lm, small, p1);
+        a.start();
+        Thread.sleep(100);
+        // blocks until small is aborted and releases p0
+        lm.acquire(big, p0, Permissions.READ_WRITE);
+        a.join(5000);
+        assertTrue(a.aborted);
+        assertTrue(lm.holdsLock(big, p0));
+        assertFalse(lm.holdsLock(small, p0));
+        assertEquals(1, lm.getDeadlocks());
+        assertEquals(1, lm.getVictimAborts());
+    }
+
+    /**
+     * Two transactions upgrading shared locks on the same page deadlock.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, Permissions.READ_ONLY);
+        lm.acquire(younger, p0, Permissions.READ_ONLY);
+
+        Acquirer a = new Acquirer(lm, older, p0);
+        a.start();
+        Thread.sleep(100);
+        try {
+            lm.acquire(younger, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            lm.releaseAll(younger);
+        }
+        a.join(5000);
+        assertTrue(a.acquired);
+        assertEquals(1, lm.getDeadlocks());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,370 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private File f;
+    private LogFile log;
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        f = File.createTempFile("logfile", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() throws Exception {
+        f.delete();
+    }
+
+    /** Records reach the file in one write, when the log is forced. */
+    @Test public void appendsAreBuffered() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < 10; i++) {
+            log.logWrite(tid, page, page);
+        }
+        assertEquals(0, log.getFileWrites());
+        log.force();
+        assertEquals(1, log.getFileWrites());
+        assertEquals(f.length(), log.getBytesWritten() + LogFile.LONG_SIZE);
+    }
+
+    /** force(lsn) does nothing once the record is on disk. */
+    @Test public void forceUpToLsn() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, page, page);
+        assertTrue(log.getDurableLsn() <= lsn);
+        log.force(lsn);
+        assertTrue(log.getDurableLsn() > lsn);
+        long writes = log.getFileWrites();
+        log.force(lsn);
+        assertEquals(writes, log.getFileWrites());
+        assertTrue(log.logWrite(tid, page, page) > lsn);
+    }
+
+    /**
+     * Changes to a HeapPage are logged slot by slot, in the documented
+     * format.
+     */
+    @Test public void slotUpdateRecordFormat() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage after = new HeapPage(page.getId(), page.getPageData());
+        Tuple deleted = after.iterator().next();
+        after.deleteTuple(deleted);
+        Tuple inserted = Utility.getHeapTuple(new int[] { 1, 2 });
+        after.insertTuple(inserted);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+        log.logWrite(tid, page, after);
+        log.force();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek(LogFile.LONG_SIZE + 20);
+            assertEquals(LogFile.SLOT_UPDATE_RECORD, raf.readInt());
+            assertEquals(tid.getId(), raf.readLong());
+            assertEquals(hf.getId(), raf.readInt());
+            assertEquals(0, raf.readInt());
+            assertEquals(8, raf.readInt());
+            assertEquals(2, raf.readInt());
+            // the deleted tuple's slot, reused by the first insert
+            assertEquals(0, raf.readInt());
+            byte[] tuple = new byte[8];
+            assertEquals(1, raf.readByte());
+            raf.readFully(tuple);
+            assertEquals(((IntField) deleted.getField(0)).getValue(),
+                    java.nio.ByteBuffer.wrap(tuple).getInt());
+            assertEquals(1, raf.readByte());
+            raf.readFully(tuple);
+            assertEquals(1, java.nio.ByteBuffer.wrap(tuple).getInt());
+            // the second insert filled the first empty slot
+            assertEquals(10, raf.readInt());
+            assertEquals(0, raf.readByte());
+            assertEquals(1, raf.readByte());
+            raf.readFully(tuple);
+            assertEquals(3, java.nio.ByteBuffer.wrap(tuple).getInt());
+            assertEquals(LogFile.LONG_SIZE + 20, raf.readLong());
+            assertEquals(raf.length(), raf.getFilePointer());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Pages other than HeapPages are logged as before and after images. */
+    @Test public void updateRecordFormat() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        PaxHeapPage pax = new PaxHeapPage(page.getId(), page.getPageData());
+        log.logWrite(tid, pax, pax);
+        log.force();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            assertEquals(LogFile.NO_CHECKPOINT_ID, raf.readLong());
+            assertEquals(LogFile.BEGIN_RECORD, raf.readInt());
+            assertEquals(tid.getId(), raf.readLong());
+            assertEquals(LogFile.LONG_SIZE, raf.readLong());
+            long start = raf.getFilePointer();
+            assertEquals(LogFile.UPDATE_RECORD, raf.readInt());
+            assertEquals(tid.getId(), raf.readLong());
+            Page before = log.readPageData(raf);
+            assertEquals(PaxHeapPage.class, before.getClass());
+            assertEquals(page.getId(), before.getId());
+            assertTrue(Arrays.equals(pax.getPageData(), before.getPageData()));
+            assertTrue(Arrays.equals(pax.getPageData(), log.readPageData(raf).getPageData()));
+            assertEquals(start, raf.readLong());
+            assertEquals(raf.length(), raf.getFilePointer());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Truncation drops finished transactions' records but not LSNs. */
+    @Test public void lsnsSurviveTruncation() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logWrite(tid, page, page);
+            log.logCommit(tid);
+        }
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        long lsn = log.logWrite(open, page, page);
+        long length = f.length();
+        log.logCheckpoint();
+
+        assertTrue(f.length() < length);
+        long next = log.getCurrentLsn();
+        assertTrue(next > lsn);
+        assertTrue(log.getDurableLsn() >= next);
+        assertEquals(next, log.logWrite(open, page, page));
+        log.logCommit(open);
+        assertTrue(log.getDurableLsn() > next);
+    }
+
+    /**
+     * A committing transaction's pages are logged before they are written,
+     * and the log forced by its commit.
+     */
+    @Test public void commitLogsUpdates() throws Exception {
+        LogFile dbLog = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        long lsn = dbLog.getCurrentLsn();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { 1, 2 }));
+        Database.getBufferPool().flushPages(t.getId());
+        assertTrue(dbLog.getCurrentLsn() > lsn);
+        // one slot, not two page images
+        assertTrue(dbLog.getCurrentLsn() - lsn < 100);
+        t.commit();
+        assertTrue(dbLog.getDurableLsn() > lsn);
+    }
+
+    /**
+     * The dirty page table keeps the oldest LSN of each page written until
+     * syncPages forces its file.
+     */
+    @Test public void dirtyPageTable() throws Exception {
+        HeapPageId other = new HeapPageId(hf.getId(), 1);
+        log.pageWritten(page.getId(), 20);
+        log.pageWritten(page.getId(), 30);
+        log.pageWritten(other, 10);
+        Map<PageId,Long> dirty = log.getDirtyPageTable();
+        assertEquals(2, dirty.size());
+        assertEquals(Long.valueOf(20), dirty.get(page.getId()));
+        assertEquals(Long.valueOf(10), dirty.get(other));
+        log.syncPages();
+        assertTrue(log.getDirtyPageTable().isEmpty());
+    }
+
+    /**
+     * A committed page stays in the dirty page table, whatever syncPages
+     * forces, until it is written; a later commit of it still waiting
+     * then keeps it there.
+     */
+    @Test public void committedPagesStayUntilWritten() throws Exception {
+        log.pageCommitted(page.getId(), 20);
+        log.syncPages();
+        assertEquals(Long.valueOf(20), log.getDirtyPageTable().get(page.getId()));
+        log.pageWritten(page.getId(), 20, 40);
+        log.syncPages();
+        assertEquals(Long.valueOf(40), log.getDirtyPageTable().get(page.getId()));
+        log.pageWritten(page.getId(), 40, -1);
+        assertEquals(Long.valueOf(40), log.getDirtyPageTable().get(page.getId()));
+        log.syncPages();
+        assertTrue(log.getDirtyPageTable().isEmpty());
+    }
+
+    /**
+     * A checkpoint records the transactions running and redo offset, and
+     * truncation keeps the log from the first record of the oldest one.
+     */
+    @Test public void checkpointKeepsActiveTransactions() throws Exception {
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        log.logWrite(done, page, page);
+        log.logCommit(done);
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        log.logWrite(open, page, page);
+        TransactionId later = new TransactionId();
+        log.logXactionBegin(later);
+        log.logCommit(later);
+        log.logCheckpoint();
+
+        assertTrue(log.isActive(open));
+        assertFalse(log.isActive(later));
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long cpLoc = raf.readLong();
+            assertEquals(LogFile.BEGIN_RECORD, raf.readInt());
+            assertEquals(open.getId(), raf.readLong());
+            raf.seek(cpLoc);
+            assertEquals(LogFile.CHECKPOINT_RECORD, raf.readInt());
+            raf.readLong();
+            assertEquals(1, raf.readInt());
+            assertEquals(open.getId(), raf.readLong());
+            assertEquals(LogFile.LONG_SIZE, raf.readLong());
+            assertEquals(0, raf.readInt());
+            assertEquals(LogFile.LONG_SIZE, raf.readLong());
+            assertEquals(cpLoc, raf.readLong());
+            assertEquals(raf.length(), raf.getFilePointer());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** The background writer checkpoints by log volume. */
+    @Test public void checkpointsByLogVolume() throws Exception {
+        LogFile dbLog = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        dbLog.setCheckpointPolicy(0, 1);
+        try {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { 1, 2 }));
+            t.commit();
+            long end = System.currentTimeMillis() + 10000;
+            while (dbLog.getCheckpoints() == 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertTrue(dbLog.getCheckpoints() > 0);
+        } finally {
+            dbLog.setCheckpointPolicy(0, 0);
+        }
+        long checkpoints = dbLog.getCheckpoints();
+        Thread.sleep(3 * Checkpointer.TICK_MILLIS);
+        assertEquals(checkpoints, dbLog.getCheckpoints());
+    }
+
+    /** Begins a transaction, logs a change and commits it. */
+    class Committer extends Thread {
+        long lsn;
+        Throwable error;
+
+        public void run() {
+            try {
+                TransactionId tid = new TransactionId();
+                log.logXactionBegin(tid);
+                lsn = log.logWrite(tid, page, page);
+                log.logCommit(tid);
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+
+        void check() throws Exception {
+            join();
+            assertNull(error);
+            assertTrue(log.getDurableLsn() > lsn);
+        }
+    }
+
+    /**
+     * A leader waits for the batch to fill rather than for its delay, and
+     * its one force covers the followers, which return without forcing.
+     */
+    @Test(timeout = 5000) public void followersShareForce() throws Exception {
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        log.setGroupCommit(10000000, 3);
+        long forces = log.getGroupForces();
+        long grouped = log.getGroupedCommits();
+        Committer[] committers = new Committer[3];
+        for (int i = 0; i < committers.length; i++) {
+            committers[i] = new Committer();
+            committers[i].start();
+        }
+        for (Committer c : committers) {
+            c.check();
+        }
+        assertEquals(forces + 1, log.getGroupForces());
+        assertEquals(grouped + 2, log.getGroupedCommits());
+    }
+
+    /** A batch size of 1 turns group commit off, delay and all. */
+    @Test(timeout = 5000) public void batchOfOneForcesEachCommit() throws Exception {
+        TransactionId open = new TransactionId();
+        log.logXactionBegin(open);
+        log.setGroupCommit(10000000, 1);
+        long writes = log.getFileWrites();
+        Committer[] committers = new Committer[3];
+        for (int i = 0; i < committers.length; i++) {
+            committers[i] = new Committer();
+            committers[i].start();
+        }
+        for (Committer c : committers) {
+            c.check();
+        }
+        assertEquals(0, log.getGroupForces());
+        assertEquals(0, log.getGroupedCommits());
+        assertTrue(log.getFileWrites() > writes);
+    }
+
+    /**
+     * Committers waiting on a force while checkpoints truncate the log,
+     * closing the channel being forced, all return with their records on
+     * disk.
+     */
+    @Test(timeout = 20000) public void waitersSurviveTruncation() throws Exception {
+        log.setGroupCommit(1000, 4);
+        for (int round = 0; round < 20; round++) {
+            Committer[] committers = new Committer[4];
+            for (int i = 0; i < committers.length; i++) {
+                committers[i] = new Committer();
+                committers[i].start();
+            }
+            log.logCheckpoint();
+            log.logTruncate();
+            for (Committer c : committers) {
+                c.check();
+            }
+        }
+        assertTrue(log.getCheckpoints() >= 20);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
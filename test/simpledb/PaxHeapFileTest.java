@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxHeapFileTest {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 2000;
+
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private PaxHeapFile pf;
+
+    /**
+     * Set up initial resources for each unit test: a PAX table loaded by
+     * HeapFileEncoder from random integer tuples.
+     */
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, ROWS, 1000, null, tuples);
+
+        File in = File.createTempFile("pax", ".txt");
+        in.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        for (ArrayList<Integer> t : tuples) {
+            bw.write(Utility.listToString(t).replace('\t', ',') + "\n");
+        }
+        bw.close();
+        File out = File.createTempFile("pax", ".dat");
+        out.deleteOnExit();
+        HeapFileEncoder.convert(in, out, BufferPool.PAGE_SIZE, COLUMNS,
+                Utility.getTypes(COLUMNS), ',', HeapFileEncoder.Format.PAX);
+
+        pf = new PaxHeapFile(out, Utility.getTupleDesc(COLUMNS));
+        Database.getCatalog().addTable(pf, "pax");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A full scan returns the loaded tuples.
+     */
+    @Test public void scan() throws Exception {
+        assertEquals(ROWS / HeapPage.slotsPerPage(pf.getTupleDesc()) + 1, pf.numPages());
+        SystemTestUtil.matchTuples(pf, tid, tuples);
+    }
+
+    /**
+     * A SeqScan over a projection returns just the requested fields, in
+     * the requested order.
+     */
+    @Test public void projectedScan() throws Exception {
+        int[] fields = new int[] { 7, 2 };
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> p = new ArrayList<Integer>();
+            for (int f : fields) {
+                p.add(t.get(f));
+            }
+            expected.add(p);
+        }
+        SeqScan ss = new SeqScan(tid, pf.getId(), "p", fields);
+        assertEquals(2, ss.getTupleDesc().numFields());
+        assertEquals("p." + pf.getTupleDesc().getFieldName(7), ss.getTupleDesc().getFieldName(0));
+        SystemTestUtil.matchTuples(ss, expected);
+    }
+
+    /**
+     * Tuples inserted into a PaxHeapPage survive a round trip through
+     * getPageData.
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(pf.getId(), 0);
+        PaxHeapPage p = (PaxHeapPage) pf.readPage(pid);
+        Tuple first = p.iterator().next();
+        p.deleteTuple(first);
+        Tuple t = Utility.getHeapTuple(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        p.insertTuple(t);
+
+        PaxHeapPage q = new PaxHeapPage(pid, p.getPageData());
+        assertArrayEquals(p.getPageData(), q.getPageData());
+        for (int j = 0; j < COLUMNS; j++) {
+            assertEquals(new IntField(j), q.getField(t.getRecordId().tupleno(), j));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxHeapFileTest.class);
+    }
+}
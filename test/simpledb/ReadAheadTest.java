@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A scan with read-ahead returns every tuple, and after the first page
+     * finds each page already in the BufferPool.
+     */
+    @Test public void scanWithReadAhead() throws Exception {
+        SeqScan ss = new SeqScan(tid, hf.getId(), "t");
+        ss.setReadAhead(true);
+        ss.open();
+        ArrayList<ArrayList<Integer>> seen = new ArrayList<ArrayList<Integer>>();
+        while (ss.hasNext()) {
+            seen.add(SystemTestUtil.tupleToList(ss.next()));
+        }
+        ReadAhead ra = ss.getReadAhead();
+        ss.close();
+
+        assertEquals(tuples.size(), seen.size());
+        assertTrue(seen.containsAll(tuples));
+        assertEquals(hf.numPages(), ra.getHits() + ra.getMisses());
+        assertEquals(1, ra.getMisses());
+        assertTrue(ra.getDepth() <= Database.getBufferPool().capacity() / 4);
+    }
+
+    /**
+     * Read-ahead is off unless asked for.
+     */
+    @Test public void offByDefault() throws Exception {
+        SeqScan ss = new SeqScan(tid, hf.getId(), "t");
+        ss.open();
+        assertNull(ss.getReadAhead());
+        ss.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
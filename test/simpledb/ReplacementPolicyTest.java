@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final int CAPACITY = 8;
+
+    private static PageId page(int i) {
+        return new HeapPageId(1, i);
+    }
+
+    private static final ReplacementPolicy.Evictable ALL = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    /**
+     * Simulates a pool of CAPACITY pages with the given policy: two hot
+     * pages are read in, hit, evicted and read in again, as pages that are
+     * used over and over, and then a scan reads 100 other pages once,
+     * hitting the hot pages after every hotEvery pages if hotEvery is
+     * positive.  Returns true if both hot pages are still cached.
+     */
+    private static boolean hotPagesSurviveScan(ReplacementPolicy.Kind kind, int hotEvery) {
+        ReplacementPolicy p = ReplacementPolicy.create(kind, CAPACITY);
+        Set<PageId> pool = new HashSet<PageId>();
+        for (int round = 0; round < 2; round++) {
+            for (int hot = 0; hot < 2; hot++) {
+                request(p, pool, page(hot));
+                request(p, pool, page(hot));
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                request(p, pool, page(1000 + round * CAPACITY + i));
+            }
+        }
+        for (int hot = 0; hot < 2; hot++) {
+            request(p, pool, page(hot));
+        }
+        for (int i = 0; i < 100; i++) {
+            request(p, pool, page(100 + i));
+            if (hotEvery > 0 && i % hotEvery == 0) {
+                for (int hot = 0; hot < 2 && pool.contains(page(hot)); hot++) {
+                    request(p, pool, page(hot));
+                }
+            }
+        }
+        return pool.contains(page(0)) && pool.contains(page(1));
+    }
+
+    private static void request(ReplacementPolicy p, Set<PageId> pool, PageId pid) {
+        if (pool.contains(pid)) {
+            p.accessed(pid);
+            return;
+        }
+        if (pool.size() >= CAPACITY) {
+            PageId victim = p.evict(ALL);
+            assertNotNull(victim);
+            assertTrue(pool.remove(victim));
+        }
+        pool.add(pid);
+        p.added(pid);
+    }
+
+    /**
+     * Only 2Q keeps the hot pages through a scan that doesn't touch them.
+     */
+    @Test public void scanResistance() {
+        assertFalse(hotPagesSurviveScan(ReplacementPolicy.Kind.FIFO, 0));
+        assertFalse(hotPagesSurviveScan(ReplacementPolicy.Kind.LRU, 0));
+        assertTrue(hotPagesSurviveScan(ReplacementPolicy.Kind.TWO_Q, 0));
+    }
+
+    /**
+     * All but FIFO keep the hot pages through a scan that keeps using them.
+     */
+    @Test public void scanWithHotPages() {
+        assertFalse(hotPagesSurviveScan(ReplacementPolicy.Kind.FIFO, 4));
+        assertTrue(hotPagesSurviveScan(ReplacementPolicy.Kind.LRU, 4));
+        assertTrue(hotPagesSurviveScan(ReplacementPolicy.Kind.CLOCK, 4));
+        assertTrue(hotPagesSurviveScan(ReplacementPolicy.Kind.TWO_Q, 4));
+    }
+
+    /**
+     * Every policy only evicts pages it is allowed to, returns null when
+     * there are none, and forgets removed pages.
+     */
+    @Test public void evictOnlyEvictable() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy p = ReplacementPolicy.create(kind, CAPACITY);
+            for (int i = 0; i < CAPACITY; i++) {
+                p.added(page(i));
+                p.accessed(page(i));
+            }
+            p.removed(page(3));
+            ReplacementPolicy.Evictable threeOrFive = new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId pid) {
+                    return pid.equals(page(3)) || pid.equals(page(5));
+                }
+            };
+            assertEquals(kind.toString(), page(5), p.evict(threeOrFive));
+            assertNull(kind.toString(), p.evict(threeOrFive));
+            Set<PageId> evicted = new HashSet<PageId>();
+            PageId pid;
+            while ((pid = p.evict(ALL)) != null) {
+                assertTrue(evicted.add(pid));
+            }
+            assertEquals(kind.toString(), CAPACITY - 2, evicted.size());
+        }
+    }
+
+    /** Without the system property, pools keep the original FIFO policy. */
+    @Test public void defaultKind() {
+        String old = System.getProperty("simpledb.ReplacementPolicy");
+        try {
+            System.clearProperty("simpledb.ReplacementPolicy");
+            assertEquals(ReplacementPolicy.Kind.FIFO, ReplacementPolicy.defaultKind());
+            System.setProperty("simpledb.ReplacementPolicy", "2q");
+            assertEquals(ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.defaultKind());
+        } finally {
+            if (old == null) {
+                System.clearProperty("simpledb.ReplacementPolicy");
+            } else {
+                System.setProperty("simpledb.ReplacementPolicy", old);
+            }
+        }
+    }
+
+    @Test public void parse() {
+        assertEquals(ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.parse("2q"));
+        assertEquals(ReplacementPolicy.Kind.CLOCK, ReplacementPolicy.parse("Clock"));
+        assertEquals(ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.parse("TWO_Q"));
+        try {
+            ReplacementPolicy.parse("mru");
+            fail("should not parse mru");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The BufferPool evicts by its policy and never evicts dirty pages: a
+     * page hit between the scanned pages stays with CLOCK, where FIFO would
+     * evict it.
+     */
+    @Test public void bufferPoolUsesPolicy() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 12, null, null);
+        assertEquals(12, f.numPages());
+        BufferPool bp = Database.resetBufferPool(4, ReplacementPolicy.Kind.CLOCK);
+        TransactionId tid = new TransactionId();
+        HeapPageId hot = new HeapPageId(f.getId(), 0);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        Page dirty = bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_WRITE);
+        dirty.markDirty(true, tid);
+        for (int i = 2; i < 12; i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+            bp.getPage(tid, hot, Permissions.READ_ONLY);
+        }
+        assertTrue(bp.isCached(hot));
+        assertTrue(bp.isCached(dirty.getId()));
+        assertEquals(11, bp.getHits());
+        assertEquals(12, bp.getMisses());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
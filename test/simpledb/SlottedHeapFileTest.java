@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SlottedHeapFileTest {
+    private TransactionId tid;
+    private TupleDesc td;
+    private SlottedHeapFile sf;
+
+    /**
+     * Set up initial resources for each unit test: an empty slotted table
+     * with an int and a string column.
+     */
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "name" });
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        sf = new SlottedHeapFile(f, td);
+        Database.getCatalog().addTable(sf, "slotted");
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private int count() throws Exception {
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Short strings should take far less room than in a HeapPage, which
+     * fits 30 of these tuples per page.
+     */
+    @Test public void insertShortStrings() throws Exception {
+        for (int i = 0; i < 250; i++) {
+            sf.insertTuple(tid, tuple(i, "n" + i));
+        }
+        assertEquals(1, sf.numPages());
+        assertEquals(250, count());
+    }
+
+    /**
+     * Unit test for SlottedHeapPage.getPageData() round-tripping through
+     * the SlottedHeapPage constructor, with deleted slots.
+     */
+    @Test public void pageDataRoundTrip() throws Exception {
+        HeapPageId pid = new HeapPageId(sf.getId(), 0);
+        SlottedHeapPage p = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        Tuple[] ts = new Tuple[10];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = tuple(i, "name number " + i);
+            p.insertTuple(ts[i]);
+        }
+        p.deleteTuple(ts[3]);
+        p.deleteTuple(ts[9]);
+
+        SlottedHeapPage q = new SlottedHeapPage(pid, p.getPageData());
+        assertArrayEquals(p.getPageData(), q.getPageData());
+        assertEquals(8, q.getNumTuples());
+        assertFalse(q.isSlotUsed(3));
+        assertTrue(q.isSlotUsed(4));
+        assertEquals(p.getFreeSpace(), q.getFreeSpace());
+
+        // the freed slot is reused, keeping other tuples' slot numbers
+        Tuple t = tuple(42, "x");
+        q.insertTuple(t);
+        assertEquals(3, t.getRecordId().tupleno());
+        java.util.Iterator<Tuple> it = q.iterator();
+        for (int i = 0; i < 9; i++) {
+            Tuple u = it.next();
+            if (i == 3) {
+                assertEquals(new IntField(42), u.getField(0));
+            } else {
+                assertEquals(new StringField("name number " + i, Type.STRING_LEN), u.getField(1));
+            }
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for SlottedHeapPage.insertTuple() on a full page.
+     */
+    @Test(expected=DbException.class) public void insertFullPage() throws Exception {
+        HeapPageId pid = new HeapPageId(sf.getId(), 0);
+        SlottedHeapPage p = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < Type.STRING_LEN; i++) {
+            big.append('a');
+        }
+        while (true) {
+            p.insertTuple(tuple(0, big.toString()));
+        }
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.convert() writing the slotted format.
+     */
+    @Test public void convertSlotted() throws Exception {
+        File in = File.createTempFile("slotted", ".txt");
+        in.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(in));
+        for (int i = 0; i < 1000; i++) {
+            bw.write(i + ",name" + i + "\n");
+        }
+        bw.close();
+        File out = File.createTempFile("slotted", ".dat");
+        out.deleteOnExit();
+        HeapFileEncoder.convert(in, out, BufferPool.PAGE_SIZE, 2,
+                new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, ',',
+                HeapFileEncoder.Format.SLOTTED);
+
+        SlottedHeapFile conv = new SlottedHeapFile(out, td);
+        Database.getCatalog().addTable(conv, "converted");
+        // ~20 bytes per tuple instead of 136
+        assertTrue(conv.numPages() <= 6);
+        DbFileIterator it = conv.iterator(tid);
+        it.open();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(it.hasNext());
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), t.getField(1));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
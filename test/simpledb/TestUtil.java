@@ -215,6 +215,9 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void close() {
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -117,6 +117,7 @@ public class TupleTest extends SimpleDbTestBase {
         private Type t;
         public TestField(Type t) {this.t = t;}
         public void serialize(DataOutputStream dos) throws IOException {}
+        public void serialize(java.nio.ByteBuffer buf) {}
         public boolean compare(Predicate.Op op, Field value) { return false; }
         public Type getType() { return this.t; }
         public int hashCode() { return 0; }
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class WarmStartTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private File sidecar;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        sidecar = File.createTempFile("warmstart", ".hot");
+        sidecar.deleteOnExit();
+    }
+
+    private HeapPageId pid(int i) {
+        return new HeapPageId(hf.getId(), i);
+    }
+
+    private void read(BufferPool bp, int... pages) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i : pages) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** The pool lists its pages in the order its policy would keep them. */
+    @Test public void hotPagesOrder() throws Exception {
+        BufferPool bp = new BufferPool(8, ReplacementPolicy.Kind.LRU, 1);
+        read(bp, 0, 1, 2, 3, 1);
+        assertEquals(Arrays.asList(pid(1), pid(3), pid(2), pid(0)), bp.hotPages());
+    }
+
+    /**
+     * Saved pages are read back into a new pool, the hottest ones if they
+     * don't all fit.
+     */
+    @Test public void saveAndRestore() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8, ReplacementPolicy.Kind.LRU);
+        read(bp, 2, 0, 3, 0);
+        assertEquals(3, WarmStart.save(bp, sidecar));
+
+        bp = Database.resetBufferPool(8);
+        WarmStart ws = WarmStart.start(sidecar);
+        ws.await();
+        assertTrue(ws.isDone());
+        assertEquals(3, ws.getRequested());
+        assertEquals(3, ws.getRestored());
+        assertTrue(ws.getMillis() >= 0);
+        for (int i : new int[] { 0, 2, 3 }) {
+            assertTrue(bp.isCached(pid(i)));
+        }
+        assertFalse(bp.isCached(pid(1)));
+
+        bp = Database.resetBufferPool(2);
+        ws = WarmStart.start(sidecar);
+        ws.await();
+        assertEquals(2, ws.getRestored());
+        assertTrue(bp.isCached(pid(0)));
+        assertTrue(bp.isCached(pid(3)));
+    }
+
+    /**
+     * Restored pages count as hot: a 2Q pool keeps them over pages read
+     * only once.
+     */
+    @Test public void restoredPagesAreHot() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, ReplacementPolicy.Kind.TWO_Q);
+        read(bp, 0);
+        WarmStart.save(bp, sidecar);
+        // 2Q with room for 3 pages, 1 of them for pages read once
+        bp = new BufferPool(3, ReplacementPolicy.Kind.TWO_Q, 1);
+        WarmStart.load(bp, sidecar).restore();
+        read(bp, 1, 2, 3);
+        assertTrue(bp.isCached(pid(0)));
+    }
+
+    /** A missing sidecar means a cold start. */
+    @Test public void missingSidecar() throws Exception {
+        assertTrue(sidecar.delete());
+        assertNull(WarmStart.start(sidecar));
+        // and nothing is saved unless warm start is on
+        WarmStart.save();
+        assertFalse(sidecar.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmStartTest.class);
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Helpers shared by the micro-benchmarks in this package.  Benchmarks are
+ * plain main() programs rather than JUnit tests so they are not run by the
+ * test targets; use <code>ant runbench -Dbench=ClassName</code>.
+ */
+public class BenchmarkUtil {
+    /** A unit of work to time. */
+    public static abstract class Workload {
+        public abstract void run() throws Exception;
+    }
+
+    /**
+     * Runs the workload warmup times without measuring, then reps times,
+     * and returns the best observed wall clock time in nanoseconds.
+     */
+    public static long bestOf(int warmup, int reps, Workload w) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            w.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < reps; i++) {
+            long start = System.nanoTime();
+            w.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of write system calls this process has made, from
+     * /proc/self/io, or -1 where that is not available.
+     */
+    public static long writeCalls() {
+        try {
+            BufferedReader r = new BufferedReader(new FileReader("/proc/self/io"));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("syscw:")) {
+                        return Long.parseLong(line.substring(6).trim());
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    /** Prints one result line with a throughput in units per second. */
+    public static void report(String label, long nanos, long units, String unitName) {
+        double secs = nanos / 1e9;
+        System.out.printf("%-40s %10.2f ms %14.0f %s/s%n", label, nanos / 1e6,
+                units / secs, unitName);
+    }
+}
@@ -0,0 +1,97 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures BufferPool.getPage miss latency as the number of tables in the
+ * catalog grows.  Each table is a one-page HeapFile, and the scan cycles
+ * through the tables' pages with a 2-page pool, so every getPage misses.
+ * For comparison, also reports the cost of the linear search over
+ * Catalog.tableIdIterator() that the miss path used to do.
+ */
+public class CatalogLookupBenchmark {
+    private static final int[] SIZES = new int[] { 1, 10, 100, 500, 1000 };
+    private static final int MISSES = 200000;
+
+    static void addTables(int n) throws Exception {
+        byte[] empty = HeapPage.createEmptyPageData();
+        TupleDesc td = Utility.getTupleDesc(2);
+        for (int i = 0; i < n; i++) {
+            File f = File.createTempFile("catbench", ".dat");
+            f.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(empty);
+            out.close();
+            Database.getCatalog().addTable(new HeapFile(f, td), "t" + i);
+        }
+    }
+
+    static int[] tableIds() {
+        int n = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        int[] ids = new int[n];
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        for (int i = 0; i < n; i++) {
+            ids[i] = it.next();
+        }
+        return ids;
+    }
+
+    static long misses(final int[] ids) throws Exception {
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Database.resetBufferPool(2);
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < MISSES; i++) {
+                    PageId pid = new HeapPageId(ids[i % ids.length], 0);
+                    Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                    // with fewer tables than pool pages, force the miss
+                    if (ids.length < 3) {
+                        Database.getBufferPool().discardPage(pid);
+                    }
+                }
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        });
+    }
+
+    static long linearSearch(final int[] ids) throws Exception {
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                long found = 0;
+                for (int i = 0; i < MISSES; i++) {
+                    int wanted = ids[i % ids.length];
+                    Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+                    while (it.hasNext()) {
+                        if (it.next() == wanted) {
+                            found++;
+                            break;
+                        }
+                    }
+                }
+                if (found != MISSES) {
+                    throw new IllegalStateException("table not found");
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        int tables = 0;
+        for (int size : SIZES) {
+            addTables(size - tables);
+            tables = size;
+            int[] ids = tableIds();
+            BenchmarkUtil.report(size + " tables, getPage miss", misses(ids), MISSES, "misses");
+            BenchmarkUtil.report(size + " tables, catalog iteration", linearSearch(ids),
+                    MISSES, "lookups");
+        }
+    }
+}
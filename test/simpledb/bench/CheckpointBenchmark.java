@@ -0,0 +1,202 @@
+package simpledb.bench;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures query and commit latency while checkpoints run.  Query threads
+ * read random pages of a cached table, committer threads insert a tuple
+ * per transaction, and a long transaction keeps dirtying the pages of a
+ * third table, one tuple at a time, without committing.  Meanwhile a
+ * checkpoint is taken every 100 ms, or never, for comparison; a
+ * checkpoint that writes out the pool's dirty pages holds up the queries
+ * and commits that need the pages or the log while it does.  Prints the
+ * median, 99th percentile and maximum latency of each, and the mean time
+ * a checkpoint took.
+ */
+public class CheckpointBenchmark {
+    private static final int QUERY_PAGES = 400;
+    private static final int BULK_PAGES = 200;
+    private static final int ROWS_PER_PAGE = 500;
+    private static final int QUERY_THREADS = 2;
+    private static final int COMMITTERS = 2;
+    private static final int PAGES_PER_QUERY = 10;
+    private static final long SECONDS = 4;
+    private static final long CHECKPOINT_MILLIS = 100;
+
+    /** Latencies in nanoseconds, recorded by one thread. */
+    static class Latencies {
+        long[] nanos = new long[1024];
+        int n;
+
+        void add(long x) {
+            if (n == nanos.length) {
+                long[] grown = new long[n * 2];
+                System.arraycopy(nanos, 0, grown, 0, n);
+                nanos = grown;
+            }
+            nanos[n++] = x;
+        }
+
+        static String summary(Latencies[] all) {
+            int total = 0;
+            for (Latencies l : all) {
+                total += l.n;
+            }
+            long[] sorted = new long[total];
+            int i = 0;
+            for (Latencies l : all) {
+                System.arraycopy(l.nanos, 0, sorted, i, l.n);
+                i += l.n;
+            }
+            Arrays.sort(sorted);
+            if (total == 0) {
+                return "none";
+            }
+            return String.format("%6d ops p50 %8.1f us p99 %8.1f us max %8.1f us", total,
+                    sorted[total / 2] / 1e3, sorted[(int) (total * 0.99)] / 1e3,
+                    sorted[total - 1] / 1e3);
+        }
+    }
+
+    private static volatile boolean stop;
+
+    static void run(boolean checkpoints) throws Exception {
+        Database.reset();
+        final BufferPool bp = Database.resetBufferPool(2 * (QUERY_PAGES + BULK_PAGES));
+        final HeapFile query = SystemTestUtil.createRandomHeapFile(2,
+                QUERY_PAGES * ROWS_PER_PAGE, null, null);
+        final HeapFile bulk = SystemTestUtil.createRandomHeapFile(2,
+                BULK_PAGES * ROWS_PER_PAGE, null, null);
+        final HeapFile inserts = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        for (int i = 0; i < query.numPages(); i++) {
+            bp.getPage(null, new HeapPageId(query.getId(), i), Permissions.READ_ONLY);
+        }
+        stop = false;
+
+        final Latencies[] queries = new Latencies[QUERY_THREADS];
+        final Latencies[] commits = new Latencies[COMMITTERS];
+        final Latencies cps = new Latencies();
+        Thread[] threads = new Thread[QUERY_THREADS + COMMITTERS + 2];
+        int t = 0;
+        for (int i = 0; i < QUERY_THREADS; i++) {
+            final Latencies l = queries[i] = new Latencies();
+            final Random rand = new Random(i);
+            threads[t++] = new Thread() {
+                public void run() {
+                    try {
+                        while (!stop) {
+                            long start = System.nanoTime();
+                            TransactionId tid = new TransactionId();
+                            for (int k = 0; k < PAGES_PER_QUERY; k++) {
+                                bp.getPage(tid, new HeapPageId(query.getId(),
+                                        rand.nextInt(QUERY_PAGES)), Permissions.READ_ONLY);
+                            }
+                            bp.transactionComplete(tid);
+                            l.add(System.nanoTime() - start);
+                            Thread.sleep(1);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < COMMITTERS; i++) {
+            final Latencies l = commits[i] = new Latencies();
+            final int base = i << 24;
+            threads[t++] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; !stop; n++) {
+                            long start = System.nanoTime();
+                            Transaction tx = new Transaction();
+                            tx.start();
+                            bp.insertTuple(tx.getId(), inserts.getId(),
+                                    Utility.getHeapTuple(new int[] { base + n, n }));
+                            tx.commit();
+                            l.add(System.nanoTime() - start);
+                            Thread.sleep(1);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        final Transaction bulkTx = new Transaction();
+        bulkTx.start();
+        threads[t++] = new Thread() {
+            public void run() {
+                try {
+                    for (int n = 0; !stop; n++) {
+                        HeapPageId pid = new HeapPageId(bulk.getId(), n % BULK_PAGES);
+                        HeapPage p = (HeapPage) bp.getPage(bulkTx.getId(), pid,
+                                Permissions.READ_WRITE);
+                        Iterator<Tuple> it = p.iterator();
+                        if (it.hasNext()) {
+                            bp.deleteTuple(bulkTx.getId(), it.next());
+                        }
+                        if (n % 20 == 19) {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        final boolean checkpointing = checkpoints;
+        threads[t++] = new Thread() {
+            public void run() {
+                try {
+                    while (!stop) {
+                        Thread.sleep(CHECKPOINT_MILLIS);
+                        if (checkpointing && !stop) {
+                            long start = System.nanoTime();
+                            Database.getLogFile().logCheckpoint();
+                            cps.add(System.nanoTime() - start);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        for (Thread th : threads) {
+            th.start();
+        }
+        Thread.sleep(SECONDS * 1000);
+        stop = true;
+        for (Thread th : threads) {
+            th.join();
+        }
+        bulkTx.abort();
+
+        String label = checkpoints ? "checkpoint every " + CHECKPOINT_MILLIS + " ms" : "no checkpoints";
+        System.out.printf("%-26s queries  %s%n", label, Latencies.summary(queries));
+        System.out.printf("%-26s commits  %s%n", "", Latencies.summary(commits));
+        if (checkpoints) {
+            long sum = 0;
+            for (int i = 0; i < cps.n; i++) {
+                sum += cps.nanos[i];
+            }
+            System.out.printf("%-26s %d checkpoints, %.1f ms each%n", "", cps.n,
+                    cps.n == 0 ? 0 : sum / 1e6 / cps.n);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("CheckpointBenchmark: " + QUERY_THREADS + " query threads reading "
+                + PAGES_PER_QUERY + " pages, " + COMMITTERS + " committers, one open transaction "
+                + "dirtying " + BULK_PAGES + " pages, " + SECONDS + " s per run");
+        run(false);
+        run(true);
+        run(false);
+        run(true);
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import simpledb.*;
+
+/**
+ * Measures the latency of committing and of aborting a transaction that
+ * inserts one tuple, with a BufferPool of 50 to 50,000 pages filled with
+ * clean pages of another table.  The cost of completing a transaction
+ * should depend on the pages it dirtied, not on the size of the pool.
+ * The pools are off-heap so that the largest fits a heap of about 512 MB,
+ * e.g. <code>java -Xmx512m simpledb.bench.CommitScalingBenchmark</code>.
+ */
+public class CommitScalingBenchmark {
+    private static final int[] POOL_PAGES = new int[] { 50, 500, 5000, 50000 };
+    private static final int TXNS = 2000;
+
+    static double run(BufferPool bp, int table, boolean commit) throws Exception {
+        long nanos = 0;
+        for (int i = 0; i < TXNS; i++) {
+            TransactionId tid = new TransactionId();
+            bp.insertTuple(tid, table, Utility.getHeapTuple(new int[] { i, -i }));
+            long start = System.nanoTime();
+            bp.transactionComplete(tid, commit);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos / 1e3 / TXNS;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxPages = POOL_PAGES[POOL_PAGES.length - 1];
+        // a table of empty pages to fill the pools with
+        File f = File.createTempFile("commitbench", ".dat");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength((long) maxPages * BufferPool.PAGE_SIZE);
+        raf.close();
+        HeapFile filler = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(filler, "filler");
+        File g = File.createTempFile("commitbench", ".dat");
+        g.deleteOnExit();
+        HeapFile target = Utility.createEmptyHeapFile(g.getAbsolutePath(), 2);
+
+        System.out.println("CommitScalingBenchmark: " + TXNS
+                + " one-tuple insert transactions per pool size");
+        for (int pages : POOL_PAGES) {
+            BufferPool bp = Database.resetBufferPool(pages, ReplacementPolicy.defaultKind(), true);
+            for (int i = 0; i < pages; i++) {
+                bp.getPage(null, new HeapPageId(filler.getId(), i), Permissions.READ_ONLY);
+            }
+            // warm up
+            run(bp, target.getId(), true);
+            double commit = run(bp, target.getId(), true);
+            double abort = run(bp, target.getId(), false);
+            System.out.printf("%6d-page pool %9.1f us/commit %9.1f us/abort%n", pages, commit,
+                    abort);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Reports the compression ratio of each PageCodec on the bundled DBLP
+ * tables paperauths and venues, and compares cold SeqScan throughput over
+ * the plain HeapFile and its CompressedHeapFile copies.  The files stay in
+ * the OS cache, so the scan numbers show the CPU cost of decompression; on
+ * a disk-bound scan, I/O volume shrinks by the compression ratio.
+ */
+public class CompressionBenchmark {
+    private static final String SCHEMA = "src/java/simpledb/dblp_simpledb.schema";
+    private static final String[] TABLES = new String[] { "paperauths", "venues" };
+
+    static long scan(final HeapFile f) throws Exception {
+        final int tableid = f.getId();
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                TransactionId tid = new TransactionId();
+                SeqScan ss = new SeqScan(tid, tableid, "t");
+                ss.open();
+                while (ss.hasNext()) {
+                    ss.next();
+                }
+                ss.close();
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        });
+    }
+
+    static int count(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.getCatalog().loadSchema(SCHEMA);
+        for (String name : TABLES) {
+            HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(
+                    Database.getCatalog().getTableId(name));
+            long raw = hf.getFile().length();
+            int rows = count(hf);
+            System.out.println();
+            System.out.println(name + ": " + hf.numPages() + " pages, " + rows
+                    + " tuples, " + raw + " bytes");
+            BenchmarkUtil.report(name + ", HeapFile scan", scan(hf), rows, "tuples");
+
+            for (PageCodec codec : PageCodec.values()) {
+                File out = File.createTempFile(name + "-" + codec, ".dat");
+                out.deleteOnExit();
+                out.delete();
+                CompressedHeapFile cf = new CompressedHeapFile(out, hf.getTupleDesc(), codec);
+                long start = System.nanoTime();
+                for (int i = 0; i < hf.numPages(); i++) {
+                    cf.writePage(hf.readPage(new HeapPageId(hf.getId(), i)));
+                }
+                long compressNanos = System.nanoTime() - start;
+                Database.getCatalog().addTable(cf, name + "_" + codec);
+
+                System.out.printf("%-40s %10d bytes %8.1fx smaller%n",
+                        name + ", " + codec, out.length(), (double) raw / out.length());
+                BenchmarkUtil.report(name + ", " + codec + " compress", compressNanos,
+                        hf.numPages(), "pages");
+                BenchmarkUtil.report(name + ", " + codec + " scan", scan(cf), rows, "tuples");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.bench;
+
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures BufferPool.getPage throughput for 1, 2, 4 and 8 threads reading
+ * random pages of a 512-page table, with a page table of one shard, which
+ * is what one monitor around the whole pool amounts to, and with the
+ * default number of shards.  Reads are done without a transaction so that
+ * only the page table is measured, not the lock manager.  In the "hits"
+ * runs the pool holds the whole table; in the "mixed" runs it holds half
+ * of it, so about half of the reads miss and evict a page.
+ */
+public class ConcurrentReadBenchmark {
+    private static final int PAGES = 512;
+    private static final int READS_PER_THREAD = 200000;
+    private static final int[] THREADS = new int[] { 1, 2, 4, 8 };
+
+    static long run(final int tableid, final int poolPages, final int shards, final int threads)
+            throws Exception {
+        return BenchmarkUtil.bestOf(1, 3, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                final BufferPool pool = new BufferPool(poolPages,
+                        ReplacementPolicy.defaultKind(), shards);
+                Thread[] ts = new Thread[threads];
+                for (int i = 0; i < ts.length; i++) {
+                    final long seed = i;
+                    ts[i] = new Thread() {
+                        public void run() {
+                            Random r = new Random(seed);
+                            try {
+                                for (int n = 0; n < READS_PER_THREAD; n++) {
+                                    pool.getPage(null, new HeapPageId(tableid, r.nextInt(PAGES)),
+                                            Permissions.READ_ONLY);
+                                }
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    };
+                }
+                for (Thread t : ts) {
+                    t.start();
+                }
+                for (Thread t : ts) {
+                    t.join();
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile f = Utility.createEmptyHeapFile(
+                java.io.File.createTempFile("readbench", ".dat").getAbsolutePath(), 2);
+        for (int i = 0; i < PAGES; i++) {
+            f.writePage(new HeapPage(new HeapPageId(f.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        f.getFile().deleteOnExit();
+        System.out.println("ConcurrentReadBenchmark: " + Runtime.getRuntime().availableProcessors()
+                + " processors");
+
+        for (int threads : THREADS) {
+            long reads = (long) threads * READS_PER_THREAD;
+            for (int shards : new int[] { 1, BufferPool.DEFAULT_SHARDS }) {
+                BenchmarkUtil.report(threads + " threads, hits, " + shards + " shards",
+                        run(f.getId(), PAGES, shards, threads), reads, "reads");
+            }
+            for (int shards : new int[] { 1, BufferPool.DEFAULT_SHARDS }) {
+                BenchmarkUtil.report(threads + " threads, mixed, " + shards + " shards",
+                        run(f.getId(), PAGES / 2, shards, threads), reads, "reads");
+            }
+        }
+    }
+}
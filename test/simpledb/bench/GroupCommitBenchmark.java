@@ -0,0 +1,69 @@
+package simpledb.bench;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures commit throughput of LogFile with 1 to 64 concurrent
+ * committers, with group commit off (each commit forces the log itself)
+ * and on with the default policy.  Each transaction writes a BEGIN and a
+ * COMMIT record, as Transaction does; there is nothing else in the log, so
+ * this is the bound log forces put on commit throughput.  Pass a delay in
+ * microseconds to also run group commit with that maximum delay.
+ */
+public class GroupCommitBenchmark {
+    private static final int COMMITS = 2000;
+    private static final int[] COMMITTERS = new int[] { 1, 2, 4, 8, 16, 32, 64 };
+
+    static void run(final int committers, long delayMicros, int batch) throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommit(delayMicros, batch);
+        final int perThread = COMMITS / committers;
+        Thread[] ts = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < perThread; n++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        long commits = (long) perThread * committers;
+        long forces = batch <= 1 ? commits : log.getGroupForces();
+        BenchmarkUtil.report(String.format("%2d committers, %s", committers,
+                batch <= 1 ? "one force each" : "group, " + delayMicros + " us delay"),
+                nanos, commits, "commits");
+        System.out.printf("%40s %10.1f commits/force%n", "", (double) commits / forces);
+        f.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        long delay = args.length > 0 ? Long.parseLong(args[0]) : -1;
+        System.out.println("GroupCommitBenchmark: " + COMMITS + " commits");
+        for (int committers : COMMITTERS) {
+            run(committers, 0, 1);
+            run(committers, 0, LogFile.DEFAULT_GROUP_COMMIT_BATCH);
+            if (delay >= 0) {
+                run(committers, delay, LogFile.DEFAULT_GROUP_COMMIT_BATCH);
+            }
+        }
+    }
+}
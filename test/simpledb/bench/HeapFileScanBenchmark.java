@@ -0,0 +1,107 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares sequential-scan throughput of HeapFile's long-lived FileChannel
+ * page I/O against the old path, which opened a RandomAccessFile, seeked,
+ * read one page and closed the file on every readPage call, and against
+ * HeapFile's memory-mapped mode, with one thread and with several.
+ */
+public class HeapFileScanBenchmark {
+    private static final int ROWS = 1024 * 500;
+    private static final int THREADS = 4;
+
+    /** The pre-FileChannel readPage implementation, kept for comparison. */
+    static Page legacyReadPage(File f, HeapPageId pid) throws Exception {
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek(pid.pageNumber() * BufferPool.PAGE_SIZE);
+        raf.read(data, 0, BufferPool.PAGE_SIZE);
+        raf.close();
+        return new HeapPage(pid, data);
+    }
+
+    /** Reads every page of f once, THREADS threads sharing the pages. */
+    static BenchmarkUtil.Workload parallelReads(final HeapFile f, final int pages) {
+        return new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Thread[] ts = new Thread[THREADS];
+                for (int t = 0; t < THREADS; t++) {
+                    final int first = t;
+                    ts[t] = new Thread() {
+                        public void run() {
+                            for (int i = first; i < pages; i += THREADS) {
+                                f.readPage(new HeapPageId(f.getId(), i));
+                            }
+                        }
+                    };
+                    ts[t].start();
+                }
+                for (Thread t : ts) {
+                    t.join();
+                }
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        final int pages = hf.numPages();
+        System.out.println("HeapFileScanBenchmark: " + pages + " pages");
+
+        long legacy = BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                for (int i = 0; i < pages; i++) {
+                    legacyReadPage(hf.getFile(), new HeapPageId(hf.getId(), i));
+                }
+            }
+        });
+        BenchmarkUtil.report("readPage, RandomAccessFile per call", legacy, pages, "pages");
+
+        long channel = BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                for (int i = 0; i < pages; i++) {
+                    hf.readPage(new HeapPageId(hf.getId(), i));
+                }
+            }
+        });
+        BenchmarkUtil.report("readPage, shared FileChannel", channel, pages, "pages");
+
+        final HeapFile mapped = new HeapFile(hf.getFile(), hf.getTupleDesc(), true);
+        long mmap = BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                for (int i = 0; i < pages; i++) {
+                    mapped.readPage(new HeapPageId(mapped.getId(), i));
+                }
+            }
+        });
+        BenchmarkUtil.report("readPage, memory-mapped", mmap, pages, "pages");
+
+        long parallel = BenchmarkUtil.bestOf(1, 5, parallelReads(hf, pages));
+        BenchmarkUtil.report("readPage, FileChannel x" + THREADS + " threads", parallel, pages, "pages");
+
+        long parallelMapped = BenchmarkUtil.bestOf(1, 5, parallelReads(mapped, pages));
+        BenchmarkUtil.report("readPage, memory-mapped x" + THREADS + " threads", parallelMapped,
+                pages, "pages");
+
+        long scan = BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                TransactionId tid = new TransactionId();
+                SeqScan ss = new SeqScan(tid, hf.getId(), "");
+                ss.open();
+                while (ss.hasNext()) {
+                    ss.next();
+                }
+                ss.close();
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        });
+        BenchmarkUtil.report("SeqScan, cold buffer pool", scan, ROWS, "tuples");
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures commit latency and eviction stalls of write-heavy Insert
+ * transactions in three modes: "force", which writes every committed page
+ * out before the commit returns, as the BufferPool did before NO FORCE;
+ * "evict", with the PageWriter's thread off, so that committed pages are
+ * only written when an eviction finds no other page to evict; and
+ * "writer", with the PageWriter writing them in the background at its
+ * default policy.  Each transaction inserts PAGES_PER_TXN pages' worth of
+ * tuples into its committer's own table through Insert and commits,
+ * forcing the log; 1, 4 and 16 committers run concurrently, with a pool
+ * of POOL_PAGES_PER_COMMITTER pages each, far smaller than their tables
+ * grow.  Each configuration is run three times and the run with the
+ * lowest commit latency reported.
+ */
+public class InsertCommitBenchmark {
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int PAGES_PER_TXN = 16;
+    private static final int POOL_PAGES_PER_COMMITTER = PAGES_PER_TXN * 4;
+    private static final int TXNS = 160;
+    private static final int RUNS = 3;
+    private static final int[] COMMITTERS = new int[] { 1, 4, 16 };
+    private static final String[] MODES = new String[] { "force", "evict", "writer" };
+
+    /** The outcome of one run. */
+    static class Result {
+        final double msPerCommit;
+        final String line;
+
+        Result(double msPerCommit, String line) {
+            this.msPerCommit = msPerCommit;
+            this.line = line;
+        }
+    }
+
+    /** Runs TXNS transactions split among the committers. */
+    static Result run(final int committers, String mode) throws Exception {
+        Database.reset();
+        final BufferPool bp = Database.resetBufferPool(committers * POOL_PAGES_PER_COMMITTER);
+        final boolean force = mode.equals("force");
+        if (!mode.equals("writer")) {
+            bp.getPageWriter().setPolicy(0, 0);
+        }
+        final TupleDesc td = Utility.getTupleDesc(2);
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < PAGES_PER_TXN * TUPLES_PER_PAGE; i++) {
+            tuples.add(Utility.getHeapTuple(new int[] { i, -i }));
+        }
+        final int[] tables = new int[committers];
+        for (int i = 0; i < committers; i++) {
+            File f = File.createTempFile("insertbench", ".dat");
+            f.deleteOnExit();
+            HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+            Database.getCatalog().addTable(hf, "insertbench" + i);
+            tables[i] = hf.getId();
+        }
+
+        final AtomicLong commitNanos = new AtomicLong();
+        PageWriter writer = bp.getPageWriter();
+        long start = System.nanoTime();
+        Thread[] ts = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            final int table = tables[i];
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < TXNS / committers; n++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            Insert insert = new Insert(t.getId(), new TupleIterator(td, tuples), table);
+                            insert.open();
+                            insert.next();
+                            insert.close();
+                            long s = System.nanoTime();
+                            t.commit();
+                            if (force) {
+                                bp.writeCommittedPages();
+                            }
+                            commitNanos.addAndGet(System.nanoTime() - s);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        int txns = TXNS / committers * committers;
+        double msPerCommit = commitNanos.get() / 1e6 / txns;
+        String line = String.format("%2d committers %-6s %8.3f ms/commit %9.1f txns/s"
+                + " %5d stalls %8.1f ms stalled %6d writes", committers, mode, msPerCommit,
+                txns / (nanos / 1e9), bp.getEvictionStalls(),
+                bp.getEvictionStallNanos() / 1e6, writer.getWrites());
+        return new Result(msPerCommit, line);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("InsertCommitBenchmark: " + TXNS + " transactions of "
+                + PAGES_PER_TXN + " pages of inserts, " + POOL_PAGES_PER_COMMITTER
+                + " pool pages per committer");
+        // warm up
+        for (String mode : MODES) {
+            run(1, mode);
+        }
+        for (int committers : COMMITTERS) {
+            for (String mode : MODES) {
+                Result best = null;
+                for (int i = 0; i < RUNS; i++) {
+                    Result r = run(committers, mode);
+                    if (best == null || r.msPerCommit < best.msPerCommit) {
+                        best = r;
+                    }
+                }
+                System.out.println(best.line);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures transaction throughput of the page lock manager with 1, 2, 4
+ * and 8 threads.  Each transaction locks 8 random pages out of 1024, one
+ * in ten of them exclusively, in page order so that transactions never
+ * deadlock, and then completes.  Runs against a LockManager with a single
+ * stripe, which is what one monitor around the lock table amounts to,
+ * against the default striped LockManager, and through BufferPool.getPage
+ * on cached pages.
+ */
+public class LockThroughputBenchmark {
+    private static final int PAGES = 1024;
+    private static final int LOCKS_PER_XACTION = 8;
+    private static final int XACTIONS_PER_THREAD = 20000;
+    private static final int[] THREADS = new int[] { 1, 2, 4, 8 };
+
+    /** Runs one transaction's worth of locking on the pages given. */
+    static abstract class Target {
+        abstract void lock(TransactionId tid, PageId pid, Permissions perm) throws Exception;
+        abstract void complete(TransactionId tid) throws Exception;
+    }
+
+    static long run(final Target target, final int tableid, final int threads,
+            final AtomicLong aborts) throws Exception {
+        return BenchmarkUtil.bestOf(1, 3, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Thread[] ts = new Thread[threads];
+                for (int i = 0; i < ts.length; i++) {
+                    final long seed = i;
+                    ts[i] = new Thread() {
+                        public void run() {
+                            Random r = new Random(seed);
+                            int[] pages = new int[LOCKS_PER_XACTION];
+                            for (int x = 0; x < XACTIONS_PER_THREAD; x++) {
+                                for (int j = 0; j < pages.length; j++) {
+                                    pages[j] = r.nextInt(PAGES);
+                                }
+                                Arrays.sort(pages);
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    for (int p : pages) {
+                                        Permissions perm = r.nextInt(10) == 0
+                                                ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                        target.lock(tid, new HeapPageId(tableid, p), perm);
+                                    }
+                                } catch (TransactionAbortedException e) {
+                                    aborts.incrementAndGet();
+                                } catch (Exception e) {
+                                    throw new RuntimeException(e);
+                                }
+                                try {
+                                    target.complete(tid);
+                                } catch (Exception e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                        }
+                    };
+                }
+                for (Thread t : ts) {
+                    t.start();
+                }
+                for (Thread t : ts) {
+                    t.join();
+                }
+            }
+        });
+    }
+
+    static Target lockManager(int stripes) {
+        final LockManager lm = new LockManager(stripes, LockManager.VictimPolicy.YOUNGEST);
+        return new Target() {
+            void lock(TransactionId tid, PageId pid, Permissions perm) throws Exception {
+                lm.acquire(tid, pid, perm);
+            }
+
+            void complete(TransactionId tid) {
+                lm.releaseAll(tid);
+            }
+        };
+    }
+
+    static Target bufferPool() {
+        return new Target() {
+            void lock(TransactionId tid, PageId pid, Permissions perm) throws Exception {
+                Database.getBufferPool().getPage(tid, pid, perm);
+            }
+
+            void complete(TransactionId tid) throws Exception {
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile f = Utility.createEmptyHeapFile(
+                java.io.File.createTempFile("lockbench", ".dat").getAbsolutePath(), 2);
+        for (int i = 0; i < PAGES; i++) {
+            f.writePage(new HeapPage(new HeapPageId(f.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        f.getFile().deleteOnExit();
+        System.out.println("LockThroughputBenchmark: " + Runtime.getRuntime().availableProcessors()
+                + " processors");
+
+        for (int threads : THREADS) {
+            long xactions = (long) threads * XACTIONS_PER_THREAD;
+            AtomicLong aborts = new AtomicLong();
+            BenchmarkUtil.report(threads + " threads, LockManager, 1 stripe",
+                    run(lockManager(1), f.getId(), threads, aborts), xactions, "xactions");
+            BenchmarkUtil.report(threads + " threads, LockManager, " + LockManager.DEFAULT_STRIPES
+                    + " stripes", run(lockManager(LockManager.DEFAULT_STRIPES), f.getId(), threads,
+                    aborts), xactions, "xactions");
+            Database.resetBufferPool(PAGES);
+            BenchmarkUtil.report(threads + " threads, BufferPool.getPage",
+                    run(bufferPool(), f.getId(), threads, aborts), xactions, "xactions");
+            if (aborts.get() > 0) {
+                System.out.println("  " + aborts.get() + " aborted transactions");
+            }
+        }
+    }
+}
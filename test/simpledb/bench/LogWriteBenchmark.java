@@ -0,0 +1,141 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the cost of appending to the log for the records of a
+ * TransactionTest-style workload, where each transaction reads the single
+ * tuple of a one-page table, deletes it and inserts its successor.  First
+ * logWrite alone, appending UPDATE records with the before and after image
+ * of that page; then a stream of BEGIN, UPDATE and COMMIT records, one
+ * force per transaction; then the workload itself through Transaction, on
+ * one thread.  Finally transactions that insert 1 or 100 two-column
+ * tuples and commit, for the log volume per inserted tuple.  Write calls
+ * are the write system calls of the whole process, per record or
+ * transaction, from /proc/self/io.
+ */
+public class LogWriteBenchmark {
+    private static final int RECORDS = 20000;
+    private static final int TXNS = 2000;
+
+    static void logWrites(Page before, Page after) throws Exception {
+        File f = File.createTempFile("logbench", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long calls = BenchmarkUtil.writeCalls();
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            log.logWrite(tid, before, after);
+        }
+        log.force();
+        long nanos = System.nanoTime() - start;
+        calls = BenchmarkUtil.writeCalls() - calls;
+        System.out.printf("%-24s %8.2f us/record %8.2f write calls/record %8.0f bytes/record%n",
+                "logWrite", nanos / 1e3 / RECORDS, (double) calls / RECORDS,
+                (double) f.length() / (RECORDS + 1));
+        f.delete();
+    }
+
+    static void recordStream(Page before, Page after) throws Exception {
+        File f = File.createTempFile("logbench", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        long calls = BenchmarkUtil.writeCalls();
+        long start = System.nanoTime();
+        for (int i = 0; i < TXNS; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logWrite(tid, before, after);
+            log.logCommit(tid);
+        }
+        long nanos = System.nanoTime() - start;
+        calls = BenchmarkUtil.writeCalls() - calls;
+        System.out.printf("%-24s %8.2f us/txn    %8.2f write calls/txn    %8.0f bytes/txn%n",
+                "BEGIN, UPDATE, COMMIT", nanos / 1e3 / TXNS, (double) calls / TXNS,
+                (double) f.length() / TXNS);
+        f.delete();
+    }
+
+    static void transactions(int tableId) throws Exception {
+        File logFile = new File("log");
+        long length = logFile.length();
+        long calls = BenchmarkUtil.writeCalls();
+        long start = System.nanoTime();
+        for (int i = 0; i < TXNS; i++) {
+            Transaction tr = new Transaction();
+            tr.start();
+            SeqScan scan = new SeqScan(tr.getId(), tableId, "");
+            scan.open();
+            Tuple t = scan.next();
+            scan.close();
+            Tuple next = new Tuple(t.getTupleDesc());
+            next.setField(0, new IntField(((IntField) t.getField(0)).getValue() + 1));
+            Database.getBufferPool().deleteTuple(tr.getId(), t);
+            HashSet<Tuple> ts = new HashSet<Tuple>();
+            ts.add(next);
+            Insert insert = new Insert(tr.getId(), new TupleIterator(next.getTupleDesc(), ts),
+                    tableId);
+            insert.open();
+            insert.next();
+            insert.close();
+            tr.commit();
+        }
+        long nanos = System.nanoTime() - start;
+        calls = BenchmarkUtil.writeCalls() - calls;
+        System.out.printf("%-24s %8.2f us/txn    %8.2f write calls/txn    %8.0f bytes/txn%n",
+                "Transaction", nanos / 1e3 / TXNS, (double) calls / TXNS,
+                (double) (logFile.length() - length) / TXNS);
+    }
+
+    static void inserts(int tableId, int perTxn) throws Exception {
+        File logFile = new File("log");
+        long length = logFile.length();
+        int txns = TXNS / perTxn;
+        long start = System.nanoTime();
+        for (int i = 0; i < txns; i++) {
+            Transaction tr = new Transaction();
+            tr.start();
+            for (int j = 0; j < perTxn; j++) {
+                Database.getBufferPool().insertTuple(tr.getId(), tableId,
+                        Utility.getHeapTuple(new int[] { i, j }));
+            }
+            tr.commit();
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-24s %8.2f us/txn    %8.1f log bytes/tuple%n",
+                "Insert " + perTxn + " per txn", nanos / 1e3 / txns,
+                (double) (logFile.length() - length) / (txns * perTxn));
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<Integer, Integer> columns = new HashMap<Integer, Integer>();
+        columns.put(0, 0);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 1, columns, null);
+        HeapPage before = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        HeapPage after = new HeapPage(before.getId(), before.getPageData());
+        File f = File.createTempFile("logbench", ".dat");
+        f.deleteOnExit();
+        HeapFile inserts = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        Tuple t = after.iterator().next();
+        after.deleteTuple(t);
+        after.insertTuple(t);
+
+        System.out.println("LogWriteBenchmark: " + RECORDS + " records, " + TXNS
+                + " transactions");
+        for (int i = 0; i < 2; i++) {
+            // the first round warms up
+            logWrites(before, after);
+            recordStream(before, after);
+            transactions(table.getId());
+            inserts(inserts.getId(), 1);
+            inserts(inserts.getId(), 100);
+        }
+    }
+}
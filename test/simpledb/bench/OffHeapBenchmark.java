@@ -0,0 +1,123 @@
+package simpledb.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Compares the Java heap footprint and garbage collection cost of a
+ * 10,000-page BufferPool holding its pages on the heap with one holding
+ * them in off-heap frames.  Each run scans a 10,000-page table of two int
+ * columns three times through a pool large enough for all of it, then
+ * reports the heap in use after a full collection with the pool still
+ * live, the off-heap memory holding pages, and the collections and collection time
+ * during the scans.  Needs a heap of about 1 GB for the on-heap run, e.g.
+ * <code>java -Xmx1g simpledb.bench.OffHeapBenchmark</code>; pass "heap"
+ * or "offheap" to run only one of the two.
+ */
+public class OffHeapBenchmark {
+    private static final int PAGES = 10000;
+    private static final int SCANS = 3;
+
+    /** Writes a table of PAGES full pages of random two-int tuples. */
+    static HeapFile createTable() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        int slots = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        int headerLen = (slots + 7) / 8;
+        File f = File.createTempFile("offheapbench", ".dat");
+        f.deleteOnExit();
+        Random r = new Random(0);
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        for (int p = 0; p < PAGES; p++) {
+            r.nextBytes(page);
+            for (int b = 0; b < headerLen; b++) {
+                page[b] = (byte) 0xFF;
+            }
+            if (slots % 8 != 0) {
+                page[headerLen - 1] = (byte) ((1 << (slots % 8)) - 1);
+            }
+            Arrays.fill(page, headerLen + slots * td.getSize(), page.length, (byte) 0);
+            out.write(page);
+        }
+        out.close();
+        HeapFile hf = new HeapFile(f, td);
+        Database.getCatalog().addTable(hf, "offheapbench");
+        return hf;
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += gc.getCollectionCount();
+        }
+        return n;
+    }
+
+    static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += gc.getCollectionTime();
+        }
+        return n;
+    }
+
+    static long heapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static void run(HeapFile hf, boolean offHeap) throws Exception {
+        Database.resetBufferPool(1, ReplacementPolicy.Kind.TWO_Q);
+        long heapBefore = heapAfterGc();
+        BufferPool bp = Database.resetBufferPool(PAGES, ReplacementPolicy.Kind.TWO_Q, offHeap);
+        long gcs = gcCount();
+        long gcTime = gcMillis();
+        long start = System.nanoTime();
+        long tuples = 0;
+        for (int i = 0; i < SCANS; i++) {
+            TransactionId tid = new TransactionId();
+            SeqScan scan = new SeqScan(tid, hf.getId(), "");
+            scan.open();
+            while (scan.hasNext()) {
+                scan.next();
+                tuples++;
+            }
+            scan.close();
+            bp.transactionComplete(tid);
+        }
+        long nanos = System.nanoTime() - start;
+        gcs = gcCount() - gcs;
+        gcTime = gcMillis() - gcTime;
+        long heap = heapAfterGc() - heapBefore;
+        long frames = (long) bp.framesInUse() * BufferPool.PAGE_SIZE;
+        System.out.printf("%-9s %8.1f MB heap %8.1f MB in frames %5d GCs %7d ms GC %9.1f ms scans"
+                + " (%d tuples, %d hits)%n",
+                offHeap ? "off-heap" : "on-heap", heap / 1048576.0, frames / 1048576.0, gcs,
+                gcTime, nanos / 1e6, tuples, bp.getHits());
+        // release the pool before the next run
+        Database.resetBufferPool(1, ReplacementPolicy.Kind.TWO_Q);
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile hf = createTable();
+        System.out.println("OffHeapBenchmark: " + PAGES + "-page pool and table, max heap "
+                + Runtime.getRuntime().maxMemory() / 1048576 + " MB");
+        String mode = args.length > 0 ? args[0] : "both";
+        if (!mode.equals("offheap")) {
+            run(hf, false);
+        }
+        if (!mode.equals("heap")) {
+            run(hf, true);
+        }
+    }
+}
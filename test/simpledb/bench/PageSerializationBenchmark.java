@@ -0,0 +1,79 @@
+package simpledb.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures the cost of serializing dirtied HeapPages in a
+ * HeapFileWriteTest-style insert loop, where every insert is followed by a
+ * flush (getPageData) and a commit (setBeforeImage).  Compares the current
+ * HeapPage serializer with the old DataOutputStream-based one.
+ */
+public class PageSerializationBenchmark {
+    private static final int PAGES = 20;
+
+    /** The old stream-based HeapPage.getPageData, kept for comparison. */
+    static byte[] legacyPageData(HeapPage p, TupleDesc td) throws IOException {
+        int numSlots = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        int headerLen = (numSlots + 7) / 8;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < headerLen; i++) {
+            byte b = 0;
+            for (int bit = 0; bit < 8 && i * 8 + bit < numSlots; bit++) {
+                if (p.isSlotUsed(i * 8 + bit))
+                    b |= (1 << bit);
+            }
+            dos.writeByte(b);
+        }
+        Iterator<Tuple> it = p.iterator();
+        for (int i = 0; i < numSlots; i++) {
+            if (!p.isSlotUsed(i)) {
+                for (int j = 0; j < td.getSize(); j++)
+                    dos.writeByte(0);
+                continue;
+            }
+            Tuple t = it.next();
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+        }
+        int zerolen = BufferPool.PAGE_SIZE - (headerLen + td.getSize() * numSlots);
+        dos.write(new byte[zerolen], 0, zerolen);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    static long run(final boolean legacy) throws Exception {
+        final HeapFile hf = Utility.createEmptyHeapFile(
+                java.io.File.createTempFile("serbench", ".dat").getAbsolutePath(), 2);
+        final TupleDesc td = hf.getTupleDesc();
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                for (int p = 0; p < PAGES; p++) {
+                    HeapPage page = new HeapPage(new HeapPageId(hf.getId(), p),
+                            HeapPage.createEmptyPageData());
+                    while (page.getNumEmptySlots() > 0) {
+                        page.insertTuple(Utility.getHeapTuple(p, 2));
+                        if (legacy) {
+                            legacyPageData(page, td);
+                            legacyPageData(page, td).clone();
+                        } else {
+                            page.getPageData();
+                            page.setBeforeImage();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        int inserts = PAGES * 504;
+        BenchmarkUtil.report("insert+flush+commit, stream serializer", run(true), inserts, "inserts");
+        BenchmarkUtil.report("insert+flush+commit, HeapPage.getPageData", run(false), inserts, "inserts");
+    }
+}
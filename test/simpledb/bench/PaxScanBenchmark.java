@@ -0,0 +1,74 @@
+package simpledb.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Compares SeqScan throughput over a wide (10 int column) table stored as a
+ * HeapFile and as a PaxHeapFile, reading whole tuples and a projection of
+ * 2 columns.  Each run starts with an empty buffer pool, because pages
+ * cache the tuples they decode; the table files stay in the OS cache, so
+ * this mostly measures page construction and decoding.
+ */
+public class PaxScanBenchmark {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 200000;
+    private static final int[] PROJECTION = new int[] { 3, 8 };
+
+    static HeapFile load(File text, HeapFileEncoder.Format format) throws Exception {
+        File out = File.createTempFile("paxbench", ".dat");
+        out.deleteOnExit();
+        HeapFileEncoder.convert(text, out, BufferPool.PAGE_SIZE, COLUMNS,
+                Utility.getTypes(COLUMNS), ',', format);
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        HeapFile f = (format == HeapFileEncoder.Format.PAX)
+                ? new PaxHeapFile(out, td) : new HeapFile(out, td);
+        Database.getCatalog().addTable(f, format.name());
+        return f;
+    }
+
+    static long scan(final HeapFile f, final int[] fields) throws Exception {
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Database.resetBufferPool(f.numPages());
+                TransactionId tid = new TransactionId();
+                SeqScan ss = (fields == null) ? new SeqScan(tid, f.getId(), "t")
+                                              : new SeqScan(tid, f.getId(), "t", fields);
+                ss.open();
+                long sum = 0;
+                while (ss.hasNext()) {
+                    sum += ((IntField) ss.next().getField(0)).getValue();
+                }
+                ss.close();
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        File text = File.createTempFile("paxbench", ".txt");
+        text.deleteOnExit();
+        Random r = new Random(0);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < COLUMNS; j++) {
+                bw.write((j > 0 ? "," : "") + r.nextInt(100000));
+            }
+            bw.write('\n');
+        }
+        bw.close();
+
+        HeapFile heap = load(text, HeapFileEncoder.Format.HEAP);
+        HeapFile pax = load(text, HeapFileEncoder.Format.PAX);
+        System.out.println("PaxScanBenchmark: " + heap.numPages() + " pages per table");
+
+        BenchmarkUtil.report("HeapFile, all columns", scan(heap, null), ROWS, "tuples");
+        BenchmarkUtil.report("HeapFile, 2-column SeqScan", scan(heap, PROJECTION), ROWS, "tuples");
+        BenchmarkUtil.report("PaxHeapFile, all columns", scan(pax, null), ROWS, "tuples");
+        BenchmarkUtil.report("PaxHeapFile, 2-column SeqScan", scan(pax, PROJECTION), ROWS, "tuples");
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares cold SeqScan time with and without read-ahead.  The table file
+ * sits in the OS cache, so disk latency is simulated by sleeping for each
+ * page read, and the scan does some work per tuple so that there is
+ * processing for the reads to overlap with.  Also prints the hit and miss
+ * counts and the depth the read-ahead settled on.
+ */
+public class ReadAheadBenchmark {
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 100000;
+    private static final long READ_MICROS = 500;
+    private static final int WORK = 1000;
+
+    /** A HeapFile whose page reads take at least READ_MICROS. */
+    static class SlowHeapFile extends HeapFile {
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        protected void readPageBytes(int pageNo, ByteBuffer dst) throws IOException {
+            long until = System.nanoTime() + READ_MICROS * 1000;
+            super.readPageBytes(pageNo, dst);
+            long left;
+            while ((left = until - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(left);
+            }
+        }
+    }
+
+    static long scan(final HeapFile f, final boolean readAhead, final ReadAhead[] last)
+            throws Exception {
+        return BenchmarkUtil.bestOf(1, 5, new BenchmarkUtil.Workload() {
+            public void run() throws Exception {
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                TransactionId tid = new TransactionId();
+                SeqScan ss = new SeqScan(tid, f.getId(), "t");
+                ss.setReadAhead(readAhead);
+                ss.open();
+                long sum = 0;
+                while (ss.hasNext()) {
+                    Tuple t = ss.next();
+                    int v = ((IntField) t.getField(0)).getValue();
+                    for (int i = 0; i < WORK; i++) {
+                        v = v * 31 + i;
+                    }
+                    sum += v;
+                }
+                last[0] = ss.getReadAhead();
+                ss.close();
+                Database.getBufferPool().transactionComplete(tid);
+                if (sum == 42) {
+                    System.out.print("");
+                }
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        File file = SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, ROWS, 100000,
+                null, new ArrayList<ArrayList<Integer>>());
+        file.deleteOnExit();
+        HeapFile f = new SlowHeapFile(file, Utility.getTupleDesc(COLUMNS));
+        Database.getCatalog().addTable(f, "slow");
+        System.out.println("ReadAheadBenchmark: " + f.numPages() + " pages, "
+                + READ_MICROS + "us per page read");
+
+        ReadAhead[] last = new ReadAhead[1];
+        BenchmarkUtil.report("SeqScan, no read-ahead", scan(f, false, last), ROWS, "tuples");
+        BenchmarkUtil.report("SeqScan, read-ahead", scan(f, true, last), ROWS, "tuples");
+        System.out.println("  " + last[0]);
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures restart time after a crash under load, with 1 to 8 recovery
+ * threads.  Committer threads run transactions that each replace a tuple
+ * on a few random pages of a table, with no checkpoint, until the crash:
+ * they stop where they are, leaving their transactions running, and the
+ * pages those have dirtied are written out, so that recovery has to undo
+ * them as well as redo every committed change in the log.  The log and
+ * the table are saved at the crash and put back before each recovery,
+ * which runs with the number of threads given by
+ * simpledb.LogFile.recoveryThreads.  Run it in a scratch directory: the
+ * log is the Database's, <code>log</code> in the working directory.
+ */
+public class RecoveryBenchmark {
+    private static final int PAGES = 1000;
+    private static final int ROWS_PER_PAGE = 500;
+    private static final int COMMITTERS = 4;
+    private static final int TXNS = 4000;
+    private static final int PAGES_PER_TXN = 4;
+    private static final int[] THREADS = new int[] { 1, 2, 4, 8 };
+
+    private static volatile boolean stop;
+    private static int committed;
+
+    static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Runs transactions until TXNS have committed, then crashes. */
+    static void load(final HeapFile table) throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        Thread[] threads = new Thread[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; i++) {
+            final Random rand = new Random(i);
+            final int base = i << 24;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; !stop; n++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                for (int k = 0; k < PAGES_PER_TXN && !stop; k++) {
+                                    HeapPageId pid = new HeapPageId(table.getId(),
+                                            rand.nextInt(PAGES));
+                                    Iterator<Tuple> it = ((HeapPage) bp.getPage(t.getId(), pid,
+                                            Permissions.READ_WRITE)).iterator();
+                                    if (it.hasNext()) {
+                                        bp.deleteTuple(t.getId(), it.next());
+                                    }
+                                    bp.insertTuple(t.getId(), table.getId(),
+                                            Utility.getHeapTuple(new int[] { base + n, k }));
+                                }
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                                continue;
+                            }
+                            if (stop) {
+                                // crash with this one running
+                                return;
+                            }
+                            t.commit();
+                            synchronized (RecoveryBenchmark.class) {
+                                if (++committed >= TXNS) {
+                                    stop = true;
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // the running transactions' pages reach the disk, but not their
+        // COMMIT records
+        bp.flushAllPages();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(2 * PAGES);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, PAGES * ROWS_PER_PAGE, null, null);
+        File tableFile = table.getFile();
+        File log = new File("log");
+        long start = System.nanoTime();
+        load(table);
+        long loadNanos = System.nanoTime() - start;
+
+        File savedLog = File.createTempFile("recoverybench", ".log");
+        savedLog.deleteOnExit();
+        File savedTable = File.createTempFile("recoverybench", ".dat");
+        savedTable.deleteOnExit();
+        copy(log, savedLog);
+        copy(tableFile, savedTable);
+        System.out.printf("RecoveryBenchmark: %d-page table, %d transactions of %d pages "
+                + "committed in %.1f s, %d running at the crash, %.1f MB of log%n", PAGES,
+                committed, PAGES_PER_TXN, loadNanos / 1e9, COMMITTERS, savedLog.length() / 1e6);
+
+        // warm up
+        for (int threads : THREADS) {
+            recover(threads, savedLog, log, savedTable, tableFile);
+        }
+        for (int threads : THREADS) {
+            long best = Long.MAX_VALUE;
+            for (int rep = 0; rep < 5; rep++) {
+                best = Math.min(best, recover(threads, savedLog, log, savedTable, tableFile));
+            }
+            System.out.printf("%2d recovery threads %10.1f ms%n", threads, best / 1e6);
+        }
+    }
+
+    /**
+     * Restores the crashed log and table and recovers them, returning the
+     * time recovery took in nanoseconds.
+     */
+    static long recover(int threads, File savedLog, File log, File savedTable, File tableFile)
+            throws Exception {
+        System.setProperty("simpledb.LogFile.recoveryThreads", Integer.toString(threads));
+        Database.reset();
+        copy(savedLog, log);
+        copy(savedTable, tableFile);
+        Utility.openHeapFile(2, tableFile);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb.bench;
+
+import java.util.Random;
+
+import simpledb.*;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Reports BufferPool hit ratios for each replacement policy with the
+ * 16-page pool of EvictionTest, on three workloads:
+ * <ul>
+ * <li>scan: EvictionTest's sequential scan of a large table, three times;
+ * <li>lookups: random point lookups into an 8-page dimension table;
+ * <li>mixed: the scan, with four point lookups into the dimension table
+ *     per page of the large table, as in a nested loops join against it.
+ * </ul>
+ */
+public class ReplacementBenchmark {
+    private static final int BUFFER_PAGES = 16;
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int FACT_PAGES = 400;
+    private static final int DIM_PAGES = 8;
+    private static final int LOOKUPS_PER_PAGE = 4;
+
+    static abstract class Access {
+        abstract void run(TransactionId tid) throws Exception;
+    }
+
+    static void scan(TransactionId tid, HeapFile f, HeapFile dim, Random r, int lookupsPerPage)
+            throws Exception {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            if (++n % TUPLES_PER_PAGE == 0) {
+                lookups(tid, dim, r, lookupsPerPage);
+            }
+        }
+        scan.close();
+    }
+
+    static void lookups(TransactionId tid, HeapFile dim, Random r, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().getPage(tid,
+                    new HeapPageId(dim.getId(), r.nextInt(dim.numPages())), Permissions.READ_ONLY);
+        }
+    }
+
+    static void report(String workload, ReplacementPolicy.Kind kind, Access a) throws Exception {
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, kind);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        a.run(tid);
+        long nanos = System.nanoTime() - start;
+        bp.transactionComplete(tid);
+        long requests = bp.getHits() + bp.getMisses();
+        System.out.printf("%-8s %-6s %10d requests %10d misses %8.1f%% hits %10.2f ms%n",
+                workload, kind, requests, bp.getMisses(), 100.0 * bp.getHits() / requests,
+                nanos / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HeapFile fact = SystemTestUtil.createRandomHeapFile(2, FACT_PAGES * TUPLES_PER_PAGE,
+                null, null);
+        final HeapFile dim = SystemTestUtil.createRandomHeapFile(2, DIM_PAGES * TUPLES_PER_PAGE,
+                null, null);
+        System.out.println("ReplacementBenchmark: " + BUFFER_PAGES + "-page pool, "
+                + fact.numPages() + "-page table, " + dim.numPages() + "-page dimension table");
+
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            report("scan", kind, new Access() {
+                void run(TransactionId tid) throws Exception {
+                    for (int i = 0; i < 3; i++) {
+                        scan(tid, fact, dim, null, 0);
+                    }
+                }
+            });
+        }
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            report("lookups", kind, new Access() {
+                void run(TransactionId tid) throws Exception {
+                    lookups(tid, dim, new Random(0), FACT_PAGES * LOOKUPS_PER_PAGE);
+                }
+            });
+        }
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            report("mixed", kind, new Access() {
+                void run(TransactionId tid) throws Exception {
+                    scan(tid, fact, dim, new Random(0), LOOKUPS_PER_PAGE);
+                }
+            });
+        }
+    }
+}
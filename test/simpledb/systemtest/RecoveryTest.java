@@ -0,0 +1,255 @@
+package simpledb.systemtest;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that aborts undo the logged changes of a transaction on disk, and
+ * that recovery after a crash keeps the changes of committed transactions
+ * and only those.  A crash is simulated by dropping the Database without
+ * flushing or shutting anything down.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+    }
+
+    /** Starts a transaction that inserts (v, -v) for each value. */
+    private Transaction insert(int... values) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int v : values) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { v, -v }));
+        }
+        return t;
+    }
+
+    private ArrayList<ArrayList<Integer>> plus(int... values) {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        for (int v : values) {
+            expected.add(new ArrayList<Integer>(Arrays.asList(v, -v)));
+        }
+        return expected;
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+    }
+
+    private byte[] readPage(int pageNo) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "r");
+        try {
+            byte[] data = new byte[BufferPool.PAGE_SIZE];
+            raf.seek((long) pageNo * BufferPool.PAGE_SIZE);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writePage(int pageNo, byte[] data) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        try {
+            raf.seek((long) pageNo * BufferPool.PAGE_SIZE);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** An abort undoes an insert that flushAllPages wrote to disk. */
+    @Test public void abortUndoesFlushedInsert() throws Exception {
+        Transaction t = insert(1, 2);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+        crash();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** An abort puts back a deleted tuple that flushAllPages wrote out. */
+    @Test public void abortUndoesFlushedDelete() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        Database.getBufferPool().deleteTuple(t.getId(), scan.next());
+        scan.close();
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+        crash();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Recovery redoes committed changes whose page writes were lost, and
+     * ignores a log record cut short by the crash.
+     */
+    @Test public void redoCommitted() throws Exception {
+        byte[] original = readPage(0);
+        insert(1).commit();
+        insert(2, 3).commit();
+        writePage(0, original);
+        RandomAccessFile log = new RandomAccessFile("log", "rw");
+        log.seek(log.length());
+        log.writeInt(3);
+        log.close();
+
+        crash();
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, plus(1, 2, 3));
+    }
+
+    /**
+     * Commits leave their pages to the PageWriter: recovery redoes the
+     * changes of those it had not written at the crash.
+     */
+    @Test public void redoUnwrittenCommits() throws Exception {
+        byte[] original = readPage(0);
+        Database.getBufferPool().getPageWriter().setPolicy(0, 0);
+        insert(1).commit();
+        insert(2).commit();
+        assertArrayEquals(original, readPage(0));
+        crash();
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, plus(1, 2));
+    }
+
+    /**
+     * Recovery undoes changes of transactions that were running at the
+     * crash, and only once: a later recovery leaves newer commits alone.
+     */
+    @Test public void undoUncommitted() throws Exception {
+        insert(1).commit();
+        insert(2);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, plus(1));
+
+        insert(4).commit();
+        crash();
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, plus(1, 4));
+    }
+
+    /**
+     * A checkpoint writes no pages out of the BufferPool: a running
+     * transaction's page stays dirty and off the disk, and its records
+     * stay in the log.
+     */
+    @Test public void checkpointLeavesDirtyPages() throws Exception {
+        byte[] original = readPage(0);
+        Transaction t = insert(1);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(t.getId(), Database.getBufferPool()
+                .getPage(t.getId(), pid, Permissions.READ_ONLY).isDirty());
+        assertArrayEquals(original, readPage(0));
+        assertTrue(Database.getLogFile().isActive(t.getId()));
+        t.commit();
+        SystemTestUtil.matchTuples(hf, plus(1));
+    }
+
+    /**
+     * Recovery after a checkpoint keeps the changes committed before it,
+     * which it forced to disk, and redoes those committed after it whose
+     * page writes were lost.
+     */
+    @Test public void redoAfterCheckpoint() throws Exception {
+        insert(1).commit();
+        Database.getLogFile().logCheckpoint();
+        byte[] checkpointed = readPage(0);
+        insert(2).commit();
+        insert(3);
+        writePage(0, checkpointed);
+        crash();
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, plus(1, 2));
+    }
+
+    /**
+     * Changes committed before a checkpoint forced their pages are not
+     * redone, even when a running transaction keeps them in the log.
+     */
+    @Test public void skipChangesOnDisk() throws Exception {
+        Transaction running = new Transaction();
+        running.start();
+        insert(1).commit();
+        Database.getLogFile().logCheckpoint();
+        insert(2).commit();
+        crash();
+        LogFile log = Database.getLogFile();
+        log.recover();
+        assertEquals(1, log.getSkippedRecords());
+        assertEquals(1, log.getRedoneRecords());
+        SystemTestUtil.matchTuples(hf, plus(1, 2));
+    }
+
+    /**
+     * Pages recovered by several threads get their committed changes
+     * redone and their uncommitted ones undone.
+     */
+    @Test public void parallelRecovery() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 4000, null, rows);
+        int pages = hf.numPages();
+        assertTrue(pages >= 8);
+        byte[][] original = new byte[pages][];
+        for (int i = 0; i < pages; i++) {
+            original[i] = readPage(i);
+        }
+
+        // delete the first tuple of each page and commit, then the second
+        // and crash after flushAllPages wrote them out
+        Transaction committed = new Transaction();
+        committed.start();
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int i = 0; i < pages; i++) {
+            Iterator<Tuple> it = ((HeapPage) Database.getBufferPool().getPage(committed.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_WRITE)).iterator();
+            Tuple t = it.next();
+            rows.remove(SystemTestUtil.tupleToList(t));
+            Database.getBufferPool().deleteTuple(committed.getId(), t);
+        }
+        committed.commit();
+        for (int i = 0; i < pages; i++) {
+            Iterator<Tuple> it = ((HeapPage) Database.getBufferPool().getPage(loser.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_WRITE)).iterator();
+            Database.getBufferPool().deleteTuple(loser.getId(), it.next());
+        }
+        Database.getBufferPool().flushAllPages();
+        for (int i = 0; i < pages; i += 2) {
+            writePage(i, original[i]);
+        }
+
+        crash();
+        LogFile log = Database.getLogFile();
+        log.recover(4);
+        assertEquals(pages, log.getRecoveredPages());
+        assertEquals(pages, log.getRedoneRecords());
+        SystemTestUtil.matchTuples(hf, rows);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -84,6 +85,13 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            // off-heap pools read pages into their frames
+            @Override
+            public Page readPage(PageId pid, ByteBuffer frame) throws IOException {
+                readCount += 1;
+                return super.readPage(pid, frame);
+            }
+
             public int readCount = 0;
         }
 